@@ -0,0 +1,119 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak.benchmark;
+
+import jakarta.ws.rs.core.UriInfo;
+import org.keycloak.TokenVerifier;
+import org.keycloak.common.VerificationException;
+import org.keycloak.common.util.KeycloakUriBuilder;
+import org.keycloak.common.util.Time;
+import org.keycloak.crypto.*;
+import org.keycloak.jose.jws.DefaultTokenManager;
+import org.keycloak.models.*;
+import org.openjdk.jmh.annotations.*;
+import org.pia.keycloak.ActionTokenSigner;
+import org.pia.keycloak.VerifyEmailWithUsernameAcknowledgementActionToken;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.net.URI;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Issue and verification of the verify email action token with the realm's HMAC key.
+ * `keycloak` looks up the active key for every token like {@link DefaultTokenManager#encode},
+ * `cached` reuses the signer of the realm.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ActionTokenBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class TokenState {
+
+        @Param({"cached", "keycloak"})
+        public String signer;
+
+        KeycloakSession session;
+        RealmModel realm;
+        UriInfo uriInfo;
+        KeyWrapper key;
+        ActionTokenSigner actionTokenSigner;
+        String issuedToken;
+
+        private final AtomicLong sequence = new AtomicLong();
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            byte[] secret = new byte[64];
+            new SecureRandom().nextBytes(secret);
+
+            key = new KeyWrapper();
+            key.setKid("benchmark-hmac");
+            key.setAlgorithm(Algorithm.HS512);
+            key.setType(KeyType.OCT);
+            key.setUse(KeyUse.SIG);
+            key.setSecretKey(new SecretKeySpec(secret, "HmacSHA512"));
+
+            realm = Stubs.of(RealmModel.class)
+                    .returning("getId", "benchmark-realm")
+                    .returning("getName", "benchmark")
+                    .build();
+            uriInfo = Stubs.of(UriInfo.class).returning("getBaseUri", URI.create("https://localhost/auth/")).build();
+
+            KeycloakContext context = Stubs.of(KeycloakContext.class).returning("getRealm", realm).build();
+            KeyManager keys = Stubs.of(KeyManager.class).returning("getActiveKey", key).build();
+            KeycloakSession[] holder = new KeycloakSession[1];
+            session = Stubs.of(KeycloakSession.class)
+                    .returning("getContext", context)
+                    .returning("keys", keys)
+                    .on("tokens", args -> new DefaultTokenManager(holder[0]))
+                    .on("getProvider", args -> SignatureProvider.class.equals(args[0]) && args.length > 1
+                            ? new MacSecretSignatureProvider(holder[0], (String) args[1]) : null)
+                    .build();
+            holder[0] = session;
+
+            actionTokenSigner = new ActionTokenSigner(ActionTokenSigner.DEFAULT_TIME_TO_LIVE_MILLIS, ActionTokenSigner.DEFAULT_MAX_SIZE);
+            issuedToken = issue(newToken());
+        }
+
+        VerifyEmailWithUsernameAcknowledgementActionToken newToken() {
+            long id = sequence.incrementAndGet();
+            return new VerifyEmailWithUsernameAcknowledgementActionToken("user-" + id, Time.currentTime() + 300,
+                    "auth-session-" + id, "participant-" + id + "@example.com", "benchmark-client");
+        }
+
+        String issue(VerifyEmailWithUsernameAcknowledgementActionToken token) {
+            if (signer.equals("cached")) {
+                return actionTokenSigner.serialize(token, session, realm, uriInfo);
+            }
+
+            // DefaultActionToken#serialize, which builds the issuer with the JAX-RS runtime
+            String issuer = KeycloakUriBuilder.fromUri(uriInfo.getBaseUri()).path("/realms/{realm}").build(realm.getName()).toString();
+            token.issuedAt(Time.currentTime());
+            token.id(token.getActionVerificationNonce().toString());
+            token.issuer(issuer);
+            token.audience(issuer);
+            return session.tokens().encode(token);
+        }
+    }
+
+    @Benchmark
+    public String issue(TokenState state) {
+        return state.issue(state.newToken());
+    }
+
+    @Benchmark
+    public Object verify(TokenState state) throws VerificationException {
+        return TokenVerifier.create(state.issuedToken, VerifyEmailWithUsernameAcknowledgementActionToken.class)
+                .verifierContext(new MacSignatureVerifierContext(state.key))
+                .verify()
+                .getToken();
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak.benchmark;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.TypedQuery;
+import jakarta.ws.rs.core.MultivaluedHashMap;
+import jakarta.ws.rs.core.MultivaluedMap;
+import jakarta.ws.rs.core.UriInfo;
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.authentication.RequiredActionContext;
+import org.keycloak.authentication.ValidationContext;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.forms.login.LoginFormsProvider;
+import org.keycloak.http.HttpRequest;
+import org.keycloak.models.*;
+import org.keycloak.sessions.AuthenticationSessionModel;
+import org.keycloak.sessions.RootAuthenticationSessionModel;
+import org.pia.keycloak.StudyFormAction;
+import org.pia.keycloak.StudyHelper;
+import org.pia.keycloak.StudyRegistrationCountEntity;
+import org.pia.keycloak.TermsOfServiceAcceptance;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory stand-ins for the providers used by the registration flow.
+ * Counting users scans all members of the study, like the database does. The stored member counts of the
+ * PIA_STUDY_REGISTRATION_COUNT table are seeded from it and changed by new registrations. New registrations
+ * do not add members, so the study size stays constant during a benchmark run.
+ */
+public class InMemoryKeycloak {
+    public static final String STUDY = "benchmark-study";
+
+    private final RealmModel realm;
+    private final GroupModel studyGroup;
+    private final RoleModel probandRole;
+    private final Set<String> members = ConcurrentHashMap.newKeySet();
+    private final Map<String, StudyRegistrationCountEntity> storedCounts = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final ClientModel client;
+
+    private final GroupProvider groups;
+    private final UserProvider users;
+    private final RoleProvider roles;
+    private final KeycloakSessionFactory sessionFactory;
+
+    public InMemoryKeycloak(int studySize) {
+        realm = Stubs.of(RealmModel.class)
+                .returning("getId", "benchmark-realm")
+                .returning("getName", "benchmark")
+                .build();
+        studyGroup = Stubs.of(GroupModel.class)
+                .returning("getId", STUDY)
+                .returning("getName", "Benchmark Study")
+                .on("getFirstAttribute", args -> StudyHelper.REGISTRATION_LIMIT_KEY.equals(args[0]) ? String.valueOf(Integer.MAX_VALUE) : null)
+                .build();
+        probandRole = Stubs.of(RoleModel.class).returning("getName", "Proband").build();
+
+        for (int i = 0; i < studySize; i++) {
+            members.add("member-" + i);
+        }
+
+        client = Stubs.of(ClientModel.class)
+                .on("getAttribute", args -> ClientModel.TOS_URI.equals(args[0]) || ClientModel.POLICY_URI.equals(args[0])
+                        ? "https://example.com/" + args[0] : null)
+                .build();
+
+        groups = Stubs.of(GroupProvider.class)
+                .on("getGroupById", args -> STUDY.equals(args[1]) ? studyGroup : null)
+                .build();
+        users = Stubs.of(UserProvider.class)
+                .on("getUsersCount", args -> (int) members.stream().filter(member -> member != null).count())
+                .build();
+        roles = Stubs.of(RoleProvider.class)
+                .on("getRealmRole", args -> probandRole)
+                .build();
+        RealmProvider realms = Stubs.of(RealmProvider.class)
+                .returning("getRealm", realm)
+                .build();
+        sessionFactory = Stubs.of(KeycloakSessionFactory.class)
+                .on("create", args -> newSession(realms))
+                .build();
+    }
+
+    public RealmModel getRealm() {
+        return realm;
+    }
+
+    /**
+     * A new Keycloak session, as created by Keycloak for every request.
+     */
+    public KeycloakSession newSession() {
+        return newSession(null);
+    }
+
+    private KeycloakSession newSession(RealmProvider realms) {
+        Map<String, Object> attributes = new HashMap<>();
+        KeycloakContext context = Stubs.of(KeycloakContext.class)
+                .returning("getRealm", realm)
+                .returning("getClient", client)
+                .build();
+
+        return Stubs.of(KeycloakSession.class)
+                .returning("groups", groups)
+                .returning("users", users)
+                .returning("roles", roles)
+                .returning("realms", realms)
+                .returning("getContext", context)
+                .returning("getKeycloakSessionFactory", sessionFactory)
+                .returning("getTransactionManager", newTransactionManager())
+                .on("getProvider", args -> args[0] == JpaConnectionProvider.class ? newJpaConnection() : null)
+                .on("getAttribute", args -> attributes.get((String) args[0]))
+                .on("setAttribute", args -> attributes.put((String) args[0], args[1]))
+                .build();
+    }
+
+    /**
+     * Answers the named queries of the stored member counts, the counts are changed right away.
+     */
+    private JpaConnectionProvider newJpaConnection() {
+        EntityManager em = Stubs.of(EntityManager.class)
+                .on("createNamedQuery", args -> newQuery((String) args[0]))
+                .on("find", args -> storedCounts.get((String) args[1]))
+                .on("persist", args -> {
+                    StudyRegistrationCountEntity entity = (StudyRegistrationCountEntity) args[0];
+                    storedCounts.putIfAbsent(entity.getGroupId(), entity);
+                    return null;
+                })
+                .build();
+
+        return Stubs.of(JpaConnectionProvider.class).returning("getEntityManager", em).build();
+    }
+
+    private TypedQuery<?> newQuery(String name) {
+        Map<String, Object> parameters = new HashMap<>();
+        TypedQuery<?>[] query = new TypedQuery<?>[1];
+
+        query[0] = Stubs.of(TypedQuery.class)
+                .on("setParameter", args -> {
+                    parameters.put((String) args[0], args[1]);
+                    return query[0];
+                })
+                .on("getResultList", args -> {
+                    StudyRegistrationCountEntity entity = storedCounts.get((String) parameters.get("groupId"));
+                    return "piaGetStudyMemberCount".equals(name) && entity != null ? List.of(entity.getMemberCount()) : List.of();
+                })
+                .on("executeUpdate", args -> {
+                    StudyRegistrationCountEntity entity = storedCounts.get((String) parameters.get("groupId"));
+
+                    if (!"piaAddStudyMemberCount".equals(name) || entity == null) {
+                        return 0;
+                    }
+
+                    synchronized (entity) {
+                        entity.setMemberCount(entity.getMemberCount() + (Integer) parameters.get("delta"));
+                    }
+                    return 1;
+                })
+                .build();
+
+        return query[0];
+    }
+
+    /**
+     * Every request is committed, so transactions enlisted after completion are committed right away.
+     */
+    private KeycloakTransactionManager newTransactionManager() {
+        return Stubs.of(KeycloakTransactionManager.class)
+                .on("enlistAfterCompletion", args -> {
+                    KeycloakTransaction transaction = (KeycloakTransaction) args[0];
+                    transaction.begin();
+                    transaction.commit();
+                    return null;
+                })
+                .build();
+    }
+
+    public AuthenticationFlowContext newAuthenticationFlowContext(KeycloakSession session, String study) {
+        MultivaluedMap<String, String> queryParameters = new MultivaluedHashMap<>();
+        queryParameters.putSingle(StudyFormAction.PARAM_STUDY, study);
+        UriInfo uriInfo = Stubs.of(UriInfo.class).returning("getQueryParameters", queryParameters).build();
+        HttpRequest httpRequest = Stubs.of(HttpRequest.class)
+                .returning("getHttpMethod", "GET")
+                .returning("getUri", uriInfo)
+                .build();
+
+        return Stubs.of(AuthenticationFlowContext.class)
+                .returning("getSession", session)
+                .returning("getRealm", realm)
+                .returning("getHttpRequest", httpRequest)
+                .returning("getAuthenticationSession", newAuthenticationSession(study))
+                .returning("form", Stubs.of(LoginFormsProvider.class).build())
+                .build();
+    }
+
+    public ValidationContext newValidationContext(KeycloakSession session, MultivaluedMap<String, String> formData) {
+        String userId = "user-" + sequence.incrementAndGet();
+        UserModel user = Stubs.of(UserModel.class).returning("getId", userId).build();
+        HttpRequest httpRequest = Stubs.of(HttpRequest.class)
+                .returning("getHttpMethod", "POST")
+                .returning("getDecodedFormParameters", formData)
+                .build();
+
+        return Stubs.of(ValidationContext.class)
+                .returning("getSession", session)
+                .returning("getRealm", realm)
+                .returning("getUser", user)
+                .returning("getHttpRequest", httpRequest)
+                .returning("getAuthenticationSession", newAuthenticationSession(formData.getFirst(StudyFormAction.FIELD_USER_ATTR_STUDY)))
+                .build();
+    }
+
+    public RequiredActionContext newRequiredActionContext(String acceptedTermsDigest) {
+        UserModel user = Stubs.of(UserModel.class)
+                .returning("getId", "user-" + sequence.incrementAndGet())
+                .on("getFirstAttribute", args -> TermsOfServiceAcceptance.TERMS_DIGEST.equals(args[0]) ? acceptedTermsDigest : null)
+                .build();
+        AuthenticationSessionModel authSession = Stubs.of(AuthenticationSessionModel.class)
+                .returning("getClient", client)
+                .build();
+
+        return Stubs.of(RequiredActionContext.class)
+                .returning("getRealm", realm)
+                .returning("getUser", user)
+                .returning("getAuthenticationSession", authSession)
+                .build();
+    }
+
+    public ClientModel getClient() {
+        return client;
+    }
+
+    public MultivaluedMap<String, String> newRegistrationForm(List<String> confirmedFields) {
+        MultivaluedMap<String, String> formData = new MultivaluedHashMap<>();
+        formData.putSingle(StudyFormAction.FIELD_USER_ATTR_STUDY, STUDY);
+        formData.putSingle(StudyFormAction.FIELD_EMAIL, "participant-" + sequence.incrementAndGet() + "@example.com");
+        confirmedFields.forEach(field -> formData.putSingle(field, "on"));
+
+        return formData;
+    }
+
+    private AuthenticationSessionModel newAuthenticationSession(String study) {
+        RootAuthenticationSessionModel rootSession = Stubs.of(RootAuthenticationSessionModel.class)
+                .returning("getId", "auth-session-" + sequence.incrementAndGet())
+                .build();
+        Map<String, String> userSessionNotes = new HashMap<>();
+        userSessionNotes.put(StudyFormAction.PARAM_STUDY, study);
+
+        return Stubs.of(AuthenticationSessionModel.class)
+                .returning("getParentSession", rootSession)
+                .returning("getTabId", "tab")
+                .returning("getUserSessionNotes", userSessionNotes)
+                .on("setUserSessionNote", args -> userSessionNotes.put((String) args[0], (String) args[1]))
+                .build();
+    }
+}
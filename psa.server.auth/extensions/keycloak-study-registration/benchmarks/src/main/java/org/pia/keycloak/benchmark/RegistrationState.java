@@ -0,0 +1,50 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak.benchmark;
+
+import org.keycloak.models.KeycloakSession;
+import org.openjdk.jmh.annotations.*;
+import org.pia.keycloak.LocalClusterCache;
+import org.pia.keycloak.StudyGroupMetadataCache;
+import org.pia.keycloak.StudyHelper;
+import org.pia.keycloak.StudyRegistrationCounter;
+
+/**
+ * Shared state of all benchmarks. Without caching, group metadata and registration counts
+ * expire immediately, so every request hits the providers.
+ */
+@State(Scope.Benchmark)
+public class RegistrationState {
+
+    @Param({"100", "10000", "100000"})
+    public int studySize;
+
+    @Param({"enabled", "disabled"})
+    public String caching;
+
+    InMemoryKeycloak keycloak;
+
+    private StudyRegistrationCounter registrationCounter;
+    private StudyGroupMetadataCache metadataCache;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        keycloak = new InMemoryKeycloak(studySize);
+
+        if (caching.equals("enabled")) {
+            registrationCounter = new StudyRegistrationCounter(new LocalClusterCache());
+            metadataCache = new StudyGroupMetadataCache(StudyGroupMetadataCache.DEFAULT_TIME_TO_LIVE_MILLIS, StudyGroupMetadataCache.DEFAULT_MAX_SIZE);
+        } else {
+            registrationCounter = new StudyRegistrationCounter(new LocalClusterCache(), 0);
+            metadataCache = new StudyGroupMetadataCache(0, StudyGroupMetadataCache.DEFAULT_MAX_SIZE);
+        }
+    }
+
+    StudyHelper newStudyHelper(KeycloakSession session) {
+        return new StudyHelper(session, registrationCounter, metadataCache);
+    }
+}
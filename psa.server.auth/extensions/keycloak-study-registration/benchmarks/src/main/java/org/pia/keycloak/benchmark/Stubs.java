@@ -0,0 +1,87 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak.benchmark;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Creates lightweight stand-ins for Keycloak interfaces. Methods without an answer return
+ * the stand-in itself for fluent interfaces and default values otherwise.
+ */
+public final class Stubs {
+
+    @FunctionalInterface
+    public interface Answer {
+        Object answer(Object[] args);
+    }
+
+    public static final class Builder<T> {
+        private final Class<T> type;
+        private final Map<String, Answer> answers = new HashMap<>();
+
+        private Builder(Class<T> type) {
+            this.type = type;
+        }
+
+        public Builder<T> on(String method, Answer answer) {
+            answers.put(method, answer);
+            return this;
+        }
+
+        public Builder<T> returning(String method, Object value) {
+            return on(method, args -> value);
+        }
+
+        public T build() {
+            Object proxy = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (self, method, args) -> {
+                Answer answer = answers.get(method.getName());
+
+                if (answer != null) {
+                    return answer.answer(args);
+                }
+
+                switch (method.getName()) {
+                    case "hashCode":
+                        return System.identityHashCode(self);
+                    case "equals":
+                        return self == args[0];
+                    case "toString":
+                        return type.getSimpleName() + " stand-in";
+                    default:
+                        return defaultValue(method.getReturnType(), self);
+                }
+            });
+
+            return type.cast(proxy);
+        }
+
+        private Object defaultValue(Class<?> returnType, Object self) {
+            if (returnType.isInstance(self)) {
+                return self;
+            }
+            if (returnType == boolean.class) {
+                return false;
+            }
+            if (returnType == int.class) {
+                return 0;
+            }
+            if (returnType == long.class) {
+                return 0L;
+            }
+            return null;
+        }
+    }
+
+    private Stubs() {
+    }
+
+    public static <T> Builder<T> of(Class<T> type) {
+        return new Builder<>(type);
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak.benchmark;
+
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.models.KeycloakSession;
+import org.openjdk.jmh.annotations.*;
+import org.pia.keycloak.StudyAuthenticator;
+
+/**
+ * Entry of the registration flow, which checks that the study is open and its limit is not reached.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class StudyAuthenticatorBenchmark {
+
+    @Benchmark
+    public Object authenticate(RegistrationState state) {
+        KeycloakSession session = state.keycloak.newSession();
+        AuthenticationFlowContext context = state.keycloak.newAuthenticationFlowContext(session, InMemoryKeycloak.STUDY);
+
+        new StudyAuthenticator(state.newStudyHelper(session)).authenticate(context);
+
+        return context;
+    }
+}
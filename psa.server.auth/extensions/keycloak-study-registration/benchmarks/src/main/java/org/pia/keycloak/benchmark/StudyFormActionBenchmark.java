@@ -0,0 +1,39 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak.benchmark;
+
+import jakarta.ws.rs.core.MultivaluedMap;
+import org.keycloak.authentication.ValidationContext;
+import org.keycloak.models.KeycloakSession;
+import org.openjdk.jmh.annotations.*;
+import org.pia.keycloak.StudyFormAction;
+
+import java.util.Collections;
+
+/**
+ * Submission of the registration form, which reserves a registration slot and
+ * adds the new user to the study.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class StudyFormActionBenchmark {
+
+    @Benchmark
+    public Object validateAndSucceed(RegistrationState state) {
+        KeycloakSession session = state.keycloak.newSession();
+        MultivaluedMap<String, String> formData = state.keycloak.newRegistrationForm(Collections.emptyList());
+        ValidationContext context = state.keycloak.newValidationContext(session, formData);
+        StudyFormAction action = new StudyFormAction(state.newStudyHelper(session));
+
+        action.validate(context);
+        action.success(context);
+
+        return context;
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak.benchmark;
+
+import jakarta.ws.rs.core.MultivaluedMap;
+import org.keycloak.authentication.FormActionFactory;
+import org.keycloak.authentication.ValidationContext;
+import org.keycloak.models.KeycloakSession;
+import org.openjdk.jmh.annotations.*;
+import org.pia.keycloak.TermsOfServiceFormAction;
+import org.pia.keycloak.TermsOfServiceFormActionFactory;
+
+import java.util.List;
+
+/**
+ * Validation of the confirmed terms of service and privacy policy.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class TermsOfServiceFormActionBenchmark {
+    private static final List<String> CONFIRMED_FIELDS = List.of(
+            TermsOfServiceFormAction.FIELDNAME_TOS_CONFIRM,
+            TermsOfServiceFormAction.FIELDNAME_POLICY_CONFIRM);
+
+    private static final FormActionFactory FACTORY = new TermsOfServiceFormActionFactory();
+
+    @Benchmark
+    public Object validate(RegistrationState state) {
+        KeycloakSession session = state.keycloak.newSession();
+        MultivaluedMap<String, String> formData = state.keycloak.newRegistrationForm(CONFIRMED_FIELDS);
+        ValidationContext context = state.keycloak.newValidationContext(session, formData);
+
+        FACTORY.create(session).validate(context);
+
+        return context;
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak.benchmark;
+
+import org.keycloak.authentication.RequiredActionContext;
+import org.openjdk.jmh.annotations.*;
+import org.pia.keycloak.ClientTermsOfService;
+import org.pia.keycloak.ClientTermsOfServiceCache;
+import org.pia.keycloak.TermsOfServiceReconsent;
+
+/**
+ * Check of the accepted terms of service version on each login.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class TermsOfServiceReconsentBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class LoginState {
+
+        @Param({"current", "outdated"})
+        public String acceptedVersion;
+
+        InMemoryKeycloak keycloak;
+        TermsOfServiceReconsent reconsent;
+        String acceptedTermsDigest;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            keycloak = new InMemoryKeycloak(0);
+            reconsent = new TermsOfServiceReconsent(new ClientTermsOfServiceCache(
+                    ClientTermsOfServiceCache.DEFAULT_TIME_TO_LIVE_MILLIS, ClientTermsOfServiceCache.DEFAULT_MAX_SIZE));
+            acceptedTermsDigest = acceptedVersion.equals("current")
+                    ? ClientTermsOfService.of(keycloak.getClient()).getDigest()
+                    : new ClientTermsOfService("https://example.com/previous", null).getDigest();
+        }
+    }
+
+    @Benchmark
+    public Object evaluateTriggers(LoginState state) {
+        RequiredActionContext context = state.keycloak.newRequiredActionContext(state.acceptedTermsDigest);
+
+        state.reconsent.evaluateTriggers(context);
+
+        return context;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import jakarta.ws.rs.core.UriInfo;
+import org.keycloak.authentication.actiontoken.DefaultActionToken;
+import org.keycloak.common.util.KeycloakUriBuilder;
+import org.keycloak.crypto.SignatureProvider;
+import org.keycloak.crypto.SignatureSignerContext;
+import org.keycloak.jose.jws.JWSBuilder;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializes action tokens like {@link DefaultActionToken#serialize}, but reuses the signer of the realm's active key
+ * instead of looking up the key for every token. Signers hold no state besides the key, so they are shared by all requests.
+ * <p>
+ * A rotated key is used after at most the time to live. Tokens signed with the previous key stay valid
+ * as long as that key is enabled in the realm.
+ */
+public class ActionTokenSigner {
+    public static final long DEFAULT_TIME_TO_LIVE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    public static final int DEFAULT_MAX_SIZE = 100;
+    public static final ActionTokenSigner INSTANCE = new ActionTokenSigner(DEFAULT_TIME_TO_LIVE_MILLIS, DEFAULT_MAX_SIZE);
+
+    private static final String TOKEN_TYPE = "JWT";
+    private static final String REALM_ISSUER_PATH = "/realms/{realm}";
+
+    private final ExpiringCache<String, SignatureSignerContext> signers;
+
+    public ActionTokenSigner(long timeToLiveMillis, int maxSize) {
+        this.signers = new ExpiringCache<>(timeToLiveMillis, maxSize);
+    }
+
+    public String serialize(DefaultActionToken token, KeycloakSession session, RealmModel realm, UriInfo uriInfo) {
+        String issuer = KeycloakUriBuilder.fromUri(uriInfo.getBaseUri()).path(REALM_ISSUER_PATH).build(realm.getName()).toString();
+
+        token.issuedNow();
+        token.id(token.getActionVerificationNonce().toString());
+        token.issuer(issuer);
+        token.audience(issuer);
+
+        return new JWSBuilder().type(TOKEN_TYPE).jsonContent(token).sign(getSigner(session, realm, token));
+    }
+
+    SignatureSignerContext getSigner(KeycloakSession session, RealmModel realm, DefaultActionToken token) {
+        String algorithm = session.tokens().signatureAlgorithm(token.getCategory());
+
+        return signers.get(realm.getId() + ":" + algorithm,
+                key -> session.getProvider(SignatureProvider.class, algorithm).signer());
+    }
+
+    public void invalidateRealm(String realmId) {
+        String prefix = realmId + ":";
+        signers.invalidateIf(key -> key.startsWith(prefix));
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.BuiltinExchangeType;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import org.jboss.logging.Logger;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Publishes participant events to the durable fanout exchange of their topic, like the producers of psa.lib.messagequeue.
+ * A batch is confirmed by the broker as a whole, instead of waiting for every message.
+ */
+public class AmqpStudyEventSink implements StudyEventPublisher.Sink {
+    private static final String ROUTING_KEY = "authserver";
+    private static final long CONFIRM_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    private static final Logger logger = Logger.getLogger(AmqpStudyEventSink.class);
+
+    private final ConnectionFactory connectionFactory;
+    private final Set<String> declaredExchanges = new HashSet<>();
+    private Connection connection;
+    private Channel channel;
+
+    public AmqpStudyEventSink(String uri) throws URISyntaxException, GeneralSecurityException {
+        this.connectionFactory = new ConnectionFactory();
+        this.connectionFactory.setUri(uri);
+        // the publisher reconnects on the next batch
+        this.connectionFactory.setAutomaticRecoveryEnabled(false);
+    }
+
+    @Override
+    public void publish(List<StudyParticipantEvent> batch) throws IOException {
+        try {
+            Channel channel = getChannel();
+
+            for (StudyParticipantEvent event : batch) {
+                if (declaredExchanges.add(event.getTopic())) {
+                    channel.exchangeDeclare(event.getTopic(), BuiltinExchangeType.FANOUT, true);
+                }
+
+                channel.basicPublish(event.getTopic(), ROUTING_KEY, getProperties(), serialize(event));
+            }
+
+            channel.waitForConfirmsOrDie(CONFIRM_TIMEOUT_MILLIS);
+        } catch (IOException | TimeoutException | InterruptedException | RuntimeException e) {
+            close();
+
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (connection != null) {
+                connection.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.debug("Could not close message queue connection", e);
+        } finally {
+            connection = null;
+            channel = null;
+            declaredExchanges.clear();
+        }
+    }
+
+    static byte[] serialize(StudyParticipantEvent event) throws IOException {
+        return JsonSerialization.writeValueAsString(Map.of("message", event)).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private Channel getChannel() throws IOException, TimeoutException {
+        if (channel == null || !channel.isOpen()) {
+            close();
+            connection = connectionFactory.newConnection("pia-study-registration");
+            channel = connection.createChannel();
+            channel.confirmSelect();
+        }
+
+        return channel;
+    }
+
+    private static AMQP.BasicProperties getProperties() {
+        return new AMQP.BasicProperties.Builder()
+                .contentType("application/json")
+                .contentEncoding("utf-8")
+                .deliveryMode(2)
+                .timestamp(new Date())
+                .build();
+    }
+}
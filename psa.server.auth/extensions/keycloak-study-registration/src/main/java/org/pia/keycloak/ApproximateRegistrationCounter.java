@@ -0,0 +1,118 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.jboss.logging.Logger;
+import org.keycloak.common.util.Time;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+
+/**
+ * Node local number of members of each study group for the approximate limit mode.
+ * Only a missing count is loaded in the request, an outdated count is still returned
+ * while it is refreshed from the database in the background.
+ * <p>
+ * Registrations of this node are added immediately, registrations of other nodes
+ * only become visible with the next refresh.
+ */
+public class ApproximateRegistrationCounter {
+    public static final ApproximateRegistrationCounter INSTANCE = new ApproximateRegistrationCounter(
+            Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "pia-study-registration-count-refresh");
+                thread.setDaemon(true);
+                return thread;
+            }));
+
+    private static final Logger logger = Logger.getLogger(ApproximateRegistrationCounter.class);
+
+    private final ConcurrentHashMap<String, Entry> counts = new ConcurrentHashMap<>();
+    private final Executor executor;
+
+    public ApproximateRegistrationCounter(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @param countInRequest     counts the members within the current transaction, used if there is no count yet
+     * @param countInBackground  counts the members in its own transaction, used to refresh an outdated count
+     */
+    public int get(String realmId, String study, long refreshIntervalMillis,
+                   IntSupplier countInRequest, IntSupplier countInBackground) {
+        String key = getKey(realmId, study);
+        Entry entry = counts.get(key);
+
+        if (entry == null) {
+            entry = new Entry(countInRequest.getAsInt(), Time.currentTimeMillis());
+            Entry existing = counts.putIfAbsent(key, entry);
+            return existing != null ? existing.count.get() : entry.count.get();
+        }
+
+        if (Time.currentTimeMillis() - entry.refreshedAt >= refreshIntervalMillis && entry.refreshing.compareAndSet(false, true)) {
+            refresh(key, entry, countInBackground);
+        }
+
+        return entry.count.get();
+    }
+
+    public void increment(String realmId, String study) {
+        add(realmId, study, 1);
+    }
+
+    public void add(String realmId, String study, int delta) {
+        Entry entry = counts.get(getKey(realmId, study));
+
+        if (entry != null) {
+            entry.count.addAndGet(delta);
+        }
+    }
+
+    public void invalidate(String realmId, String study) {
+        counts.remove(getKey(realmId, study));
+    }
+
+    public void invalidateRealm(String realmId) {
+        String prefix = realmId + ":";
+        counts.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    private void refresh(String key, Entry entry, IntSupplier countInBackground) {
+        try {
+            executor.execute(() -> {
+                try {
+                    counts.replace(key, entry, new Entry(countInBackground.getAsInt(), Time.currentTimeMillis()));
+                } catch (RuntimeException e) {
+                    logger.warnf(e, "Could not refresh registration count %s", key);
+                } finally {
+                    entry.refreshing.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            entry.refreshing.set(false);
+        }
+    }
+
+    private static String getKey(String realmId, String study) {
+        return realmId + ":" + study;
+    }
+
+    private static class Entry {
+        private final AtomicInteger count;
+        private final long refreshedAt;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        private Entry(int count, long refreshedAt) {
+            this.count = new AtomicInteger(count);
+            this.refreshedAt = refreshedAt;
+        }
+    }
+}
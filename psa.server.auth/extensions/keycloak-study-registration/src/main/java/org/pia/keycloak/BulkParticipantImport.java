@@ -0,0 +1,229 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.util.JsonSerialization;
+import org.keycloak.utils.EmailValidationUtil;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Pre-registers participants of a study from NDJSON lines with the same rules as {@link StudyFormAction#success}.
+ * Lines are imported in chunks, each in its own transaction with a single update of the registration count,
+ * and the results of a chunk are written as soon as it is committed. Like a registration, every created participant
+ * is published as {@link StudyRegisteredEvent} once its chunk has been committed.
+ */
+public class BulkParticipantImport {
+    private static final Logger logger = Logger.getLogger(BulkParticipantImport.class);
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final String realmId;
+    private final String study;
+    private final int registrationLimit;
+    private final StudyRegistrationConfig config;
+    private final StudyRegistrationCounter registrationCounter;
+    private final ApproximateRegistrationCounter approximateCounter;
+    private final int chunkSize;
+
+    public BulkParticipantImport(KeycloakSessionFactory sessionFactory, String realmId, String study, int registrationLimit,
+                                 StudyRegistrationConfig config, StudyRegistrationCounter registrationCounter,
+                                 ApproximateRegistrationCounter approximateCounter, int chunkSize) {
+        this.sessionFactory = sessionFactory;
+        this.realmId = realmId;
+        this.study = study;
+        this.registrationLimit = registrationLimit;
+        this.config = config;
+        this.registrationCounter = registrationCounter;
+        this.approximateCounter = approximateCounter;
+        this.chunkSize = chunkSize;
+    }
+
+    public void run(BufferedReader reader, Writer writer) throws IOException {
+        List<Row> chunk = new ArrayList<>(chunkSize);
+        int lineNumber = 0;
+        String line;
+
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+
+            if (line.isBlank()) {
+                continue;
+            }
+
+            chunk.add(Row.parse(lineNumber, line));
+
+            if (chunk.size() >= chunkSize) {
+                write(importChunk(chunk), writer);
+                chunk.clear();
+            }
+        }
+
+        if (!chunk.isEmpty()) {
+            write(importChunk(chunk), writer);
+        }
+    }
+
+    List<BulkParticipantResult> importChunk(List<Row> rows) {
+        long start = StudyRegistrationMetrics.start();
+        Chunk chunk = new Chunk(rows);
+
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, chunk::run);
+            approximateCounter.add(realmId, study, chunk.claimed);
+            registrationCounter.getActivity().record(realmId, study, chunk.claimed);
+        } catch (RuntimeException e) {
+            logger.errorf(e, "Could not import participants of study %s", study);
+            registrationCounter.add(realmId, study, -chunk.claimed);
+
+            List<BulkParticipantResult> failed = new ArrayList<>(rows.size());
+            for (Row row : rows) {
+                failed.add(BulkParticipantResult.of(row.line, row.getUsername(), BulkParticipantResult.Status.FAILED));
+            }
+            return failed;
+        } finally {
+            StudyRegistrationMetrics.record(StudyRegistrationMetrics.PHASE_BULK_IMPORT, study, start);
+        }
+
+        return chunk.results;
+    }
+
+    private void write(List<BulkParticipantResult> results, Writer writer) throws IOException {
+        for (BulkParticipantResult result : results) {
+            writer.write(JsonSerialization.writeValueAsString(result));
+            writer.write('\n');
+        }
+
+        writer.flush();
+    }
+
+    private class Chunk {
+        private final List<Row> rows;
+        private final List<BulkParticipantResult> results = new ArrayList<>();
+        private final Set<String> usernames = new HashSet<>();
+        private final Set<String> emails = new HashSet<>();
+        private int claimed;
+
+        private Chunk(List<Row> rows) {
+            this.rows = rows;
+        }
+
+        private void run(KeycloakSession session) {
+            RealmModel realm = session.realms().getRealm(realmId);
+            session.getContext().setRealm(realm);
+
+            GroupModel studyGroup = session.groups().getGroupById(realm, study);
+            RoleModel probandRole = session.roles().getRealmRole(realm, config.getProbandRole());
+            List<Row> valid = new ArrayList<>(rows.size());
+
+            for (Row row : rows) {
+                BulkParticipantResult.Status status = validate(session, realm, row);
+
+                if (status == null) {
+                    valid.add(row);
+                } else {
+                    results.add(BulkParticipantResult.of(row.line, row.getUsername(), status));
+                }
+            }
+
+            StudyRegistrationCountStore countStore = StudyRegistrationCountStore.of(session);
+            claimed = registrationCounter.claim(realmId, study, valid.size(), registrationLimit,
+                    () -> countStore.count(realm, study));
+            int created = 0;
+
+            for (int i = 0; i < valid.size(); i++) {
+                Row row = valid.get(i);
+
+                if (i >= claimed) {
+                    results.add(BulkParticipantResult.of(row.line, row.getUsername(), BulkParticipantResult.Status.LIMIT_REACHED));
+                    continue;
+                }
+
+                UserModel user = session.users().addUser(realm, row.getUsername());
+                user.setEnabled(true);
+                user.setEmail(row.getEmail());
+                user.setSingleAttribute(StudyFormAction.USER_ATTR_STUDY, study);
+                user.joinGroup(studyGroup);
+                user.grantRole(probandRole);
+                user.addRequiredAction(VerifyEmailWithUsernameAcknowledgement.PROVIDER_ID);
+
+                String username = user.getUsername();
+                StudyRegistrationEventListenerProvider.publish(session,
+                        () -> new StudyRegisteredEvent(username, studyGroup.getName()));
+
+                results.add(new BulkParticipantResult(row.line, row.getUsername(), BulkParticipantResult.Status.CREATED, user.getId()));
+                created++;
+            }
+
+            countStore.add(study, created);
+
+            results.sort((a, b) -> Integer.compare(a.getLine(), b.getLine()));
+        }
+
+        private BulkParticipantResult.Status validate(KeycloakSession session, RealmModel realm, Row row) {
+            BulkParticipant participant = row.participant;
+
+            if (participant == null || participant.getUsername() == null || participant.getUsername().isBlank()
+                    || (participant.getEmail() != null && !EmailValidationUtil.isValidEmail(participant.getEmail()))) {
+                return BulkParticipantResult.Status.INVALID;
+            }
+
+            if (!usernames.add(participant.getUsername().toLowerCase(Locale.ROOT))
+                    || session.users().getUserByUsername(realm, participant.getUsername()) != null) {
+                return BulkParticipantResult.Status.USERNAME_EXISTS;
+            }
+
+            if (participant.getEmail() != null && !realm.isDuplicateEmailsAllowed()
+                    && (!emails.add(participant.getEmail().toLowerCase(Locale.ROOT))
+                    || session.users().getUserByEmail(realm, participant.getEmail()) != null)) {
+                return BulkParticipantResult.Status.EMAIL_EXISTS;
+            }
+
+            return null;
+        }
+    }
+
+    static class Row {
+        private final int line;
+        private final BulkParticipant participant;
+
+        Row(int line, BulkParticipant participant) {
+            this.line = line;
+            this.participant = participant;
+        }
+
+        static Row parse(int line, String json) {
+            try {
+                return new Row(line, JsonSerialization.readValue(json, BulkParticipant.class));
+            } catch (IOException e) {
+                return new Row(line, null);
+            }
+        }
+
+        private String getUsername() {
+            return participant != null ? participant.getUsername() : null;
+        }
+
+        private String getEmail() {
+            return participant != null ? participant.getEmail() : null;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * Result of one line of a bulk pre-registration.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class BulkParticipantResult {
+    public enum Status {
+        CREATED,
+        USERNAME_EXISTS,
+        EMAIL_EXISTS,
+        INVALID,
+        LIMIT_REACHED,
+        FAILED
+    }
+
+    private final int line;
+    private final String username;
+    private final Status status;
+    private final String userId;
+
+    public BulkParticipantResult(int line, String username, Status status, String userId) {
+        this.line = line;
+        this.username = username;
+        this.status = status;
+        this.userId = userId;
+    }
+
+    public static BulkParticipantResult of(int line, String username, Status status) {
+        return new BulkParticipantResult(line, username, status, null);
+    }
+
+    public int getLine() {
+        return line;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+}
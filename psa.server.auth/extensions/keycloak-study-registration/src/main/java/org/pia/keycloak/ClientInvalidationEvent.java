@@ -0,0 +1,32 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.keycloak.cluster.ClusterEvent;
+
+public class ClientInvalidationEvent implements ClusterEvent {
+    private static final long serialVersionUID = 1L;
+
+    private final String realmId;
+    private final String clientId;
+
+    public ClientInvalidationEvent(String realmId, String clientId) {
+        this.realmId = realmId;
+        this.clientId = clientId;
+    }
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    /**
+     * @return the internal id of the changed client or null if all clients of the realm should be invalidated
+     */
+    public String getClientId() {
+        return clientId;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.keycloak.models.ClientModel;
+
+/**
+ * Immutable snapshot of the terms of service and privacy policy URIs of a client and the hashes identifying their version.
+ */
+public final class ClientTermsOfService {
+    private final String tosUri;
+    private final String policyUri;
+    private final String tosHash;
+    private final String policyHash;
+    private final String digest;
+
+    public ClientTermsOfService(String tosUri, String policyUri) {
+        this.tosUri = tosUri;
+        this.policyUri = policyUri;
+        this.tosHash = TermsOfServiceAcceptance.hash(tosUri);
+        this.policyHash = TermsOfServiceAcceptance.hash(policyUri);
+        this.digest = tosHash == null && policyHash == null ? null : TermsOfServiceAcceptance.hash(tosHash + ":" + policyHash);
+    }
+
+    public static ClientTermsOfService of(ClientModel client) {
+        return new ClientTermsOfService(client.getAttribute(ClientModel.TOS_URI), client.getAttribute(ClientModel.POLICY_URI));
+    }
+
+    public String getTosUri() {
+        return tosUri;
+    }
+
+    public String getPolicyUri() {
+        return policyUri;
+    }
+
+    public String getTosHash() {
+        return tosHash;
+    }
+
+    public String getPolicyHash() {
+        return policyHash;
+    }
+
+    /**
+     * Identifies the combination of both documents, null if the client has none.
+     */
+    public String getDigest() {
+        return digest;
+    }
+
+    public boolean isTosUriSet() {
+        return tosUri != null && !tosUri.isEmpty();
+    }
+
+    public boolean isPolicyUriSet() {
+        return policyUri != null && !policyUri.isEmpty();
+    }
+}
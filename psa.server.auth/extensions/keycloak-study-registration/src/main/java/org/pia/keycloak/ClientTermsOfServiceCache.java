@@ -0,0 +1,45 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.RealmModel;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of the terms of service configuration of each client, shared by all form actions of a node.
+ * Entries are invalidated by {@link TermsOfServiceFormActionFactory} when a client is changed.
+ */
+public class ClientTermsOfServiceCache {
+    public static final long DEFAULT_TIME_TO_LIVE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    public static final int DEFAULT_MAX_SIZE = 1000;
+    public static final ClientTermsOfServiceCache INSTANCE = new ClientTermsOfServiceCache(DEFAULT_TIME_TO_LIVE_MILLIS, DEFAULT_MAX_SIZE);
+
+    private final ExpiringCache<String, ClientTermsOfService> cache;
+
+    public ClientTermsOfServiceCache(long timeToLiveMillis, int maxSize) {
+        this.cache = new ExpiringCache<>(timeToLiveMillis, maxSize);
+    }
+
+    public ClientTermsOfService get(RealmModel realm, ClientModel client) {
+        return cache.get(getKey(realm.getId(), client.getId()), key -> ClientTermsOfService.of(client));
+    }
+
+    public void invalidate(ClientInvalidationEvent invalidation) {
+        if (invalidation.getClientId() == null) {
+            String prefix = invalidation.getRealmId() + ":";
+            cache.invalidateIf(key -> key.startsWith(prefix));
+        } else {
+            cache.invalidate(getKey(invalidation.getRealmId(), invalidation.getClientId()));
+        }
+    }
+
+    private static String getKey(String realmId, String clientId) {
+        return realmId + ":" + clientId;
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+
+/**
+ * Minimal key value store shared between all Keycloak nodes.
+ * Values have to be serializable and must implement equals, as replace() compares by value.
+ */
+public interface ClusterCache {
+
+    Object get(String key);
+
+    /**
+     * @return the value already present for the key or null if the value has been stored
+     */
+    Object putIfAbsent(String key, Object value, long lifespanMillis);
+
+    boolean replace(String key, Object oldValue, Object newValue, long lifespanMillis);
+
+    void remove(String key);
+
+    static ClusterCache of(KeycloakSession session) {
+        InfinispanConnectionProvider provider = session.getProvider(InfinispanConnectionProvider.class);
+
+        if (provider == null) {
+            return LocalClusterCache.INSTANCE;
+        }
+
+        return new InfinispanClusterCache(provider.getCache(InfinispanConnectionProvider.WORK_CACHE_NAME));
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.keycloak.cluster.ClusterEvent;
+import org.keycloak.cluster.ClusterListener;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * Notifies the other Keycloak nodes about invalidated local caches. Without a cluster nothing is sent.
+ * <p>
+ * The ClusterProvider is deprecated in Keycloak 24 without a replacement for notifications between nodes,
+ * Keycloak's own caches still use it. Its usage is kept in this class, so it can be replaced in one place.
+ */
+@SuppressWarnings("deprecation")
+final class ClusterNotifications {
+
+    private ClusterNotifications() {
+    }
+
+    static void registerListener(KeycloakSessionFactory factory, String taskKey, ClusterListener listener) {
+        KeycloakModelUtils.runJobInTransaction(factory, session -> {
+            ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+
+            if (cluster != null) {
+                cluster.registerListener(taskKey, listener);
+            }
+        });
+    }
+
+    /**
+     * Notifies all other nodes, the sending node has to invalidate its cache itself.
+     */
+    static void notify(KeycloakSession session, String taskKey, ClusterEvent event) {
+        ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+
+        if (cluster != null) {
+            cluster.notify(taskKey, event, true, ClusterProvider.DCNotify.ALL_DCS);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.jboss.logging.Logger;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reads numbers from the configuration of an authentication execution. The admin console does not validate
+ * these values, so an invalid value is logged once and the default is used instead of failing every request.
+ */
+final class ConfigValues {
+    private static final Logger logger = Logger.getLogger(ConfigValues.class);
+    private static final int MAX_REPORTED = 1000;
+    private static final Set<String> reported = ConcurrentHashMap.newKeySet();
+
+    private ConfigValues() {
+    }
+
+    static double getDouble(Map<String, String> config, String key, double defaultValue) {
+        String value = get(config, key);
+
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            double parsed = Double.parseDouble(value);
+
+            if (Double.isFinite(parsed)) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+
+        return invalid(key, value, defaultValue);
+    }
+
+    static long getLong(Map<String, String> config, String key, long defaultValue) {
+        String value = get(config, key);
+
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return invalid(key, value, defaultValue);
+        }
+    }
+
+    /**
+     * Like {@link #getLong(Map, String, long)}, but values below the minimum are invalid as well.
+     */
+    static long getLong(Map<String, String> config, String key, long defaultValue, long min) {
+        long value = getLong(config, key, defaultValue);
+
+        return value < min ? invalid(key, Long.toString(value), defaultValue) : value;
+    }
+
+    static int getInt(Map<String, String> config, String key, int defaultValue, int min) {
+        int value = getInt(config, key, defaultValue);
+
+        return value < min ? invalid(key, Integer.toString(value), defaultValue) : value;
+    }
+
+    static int getInt(Map<String, String> config, String key, int defaultValue) {
+        String value = get(config, key);
+
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return invalid(key, value, defaultValue);
+        }
+    }
+
+    /**
+     * Logs a value which is out of the range of its key once and returns the default.
+     */
+    static <T> T invalid(String key, String value, T defaultValue) {
+        if (reported.size() < MAX_REPORTED && reported.add(key + "=" + value)) {
+            logger.warnf("Invalid value '%s' of configuration '%s', using '%s' instead", value, key, defaultValue);
+        }
+
+        return defaultValue;
+    }
+
+    private static String get(Map<String, String> config, String key) {
+        String value = config != null ? config.get(key) : null;
+
+        return value == null || value.trim().isEmpty() ? null : value.trim();
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import jakarta.mail.SendFailedException;
+import org.jboss.logging.Logger;
+import org.keycloak.email.EmailException;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Node local outbox, which delivers emails asynchronously with a bounded pool of workers.
+ * Every worker takes the queued emails in batches and delivers each batch within one Keycloak session,
+ * by default over one SMTP connection with the {@link SmtpEmailSender}. Failed deliveries are retried with
+ * exponential backoff.
+ * <p>
+ * The outbox is not persistent, emails which are still queued on shutdown are lost.
+ */
+public class EmailOutbox {
+    // sized for study campaigns, which send thousands of verification emails within minutes
+    public static final int DEFAULT_CAPACITY = 5000;
+    public static final int DEFAULT_WORKERS = 8;
+    public static final int DEFAULT_BATCH_SIZE = 50;
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+    public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(2);
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final Logger logger = Logger.getLogger(EmailOutbox.class);
+
+    public interface DeliveryListener {
+        void delivered(OutboxEmail email);
+
+        void failed(OutboxEmail email, Exception cause);
+    }
+
+    public interface Sender {
+        void send(KeycloakSession session, OutboxEmail email) throws EmailException;
+
+        /**
+         * Called after the emails of a batch have been sent within the session, e.g. to close its connection.
+         */
+        default void closeBatch(KeycloakSession session) {
+        }
+    }
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final Sender sender;
+    private final DeliveryListener listener;
+    private final BlockingQueue<OutboxEmail> queue;
+    private final int batchSize;
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService retries;
+
+    public EmailOutbox(KeycloakSessionFactory sessionFactory, DeliveryListener listener) {
+        this(sessionFactory, listener, DEFAULT_CAPACITY, DEFAULT_WORKERS, DEFAULT_BATCH_SIZE);
+    }
+
+    public EmailOutbox(KeycloakSessionFactory sessionFactory, DeliveryListener listener, int capacity, int workerCount,
+                       int batchSize) {
+        this(sessionFactory, new SmtpEmailSender(), listener, capacity, workerCount, batchSize, DEFAULT_MAX_ATTEMPTS,
+                DEFAULT_INITIAL_BACKOFF_MILLIS);
+    }
+
+    public EmailOutbox(KeycloakSessionFactory sessionFactory, Sender sender, DeliveryListener listener, int capacity,
+                       int workerCount, int batchSize, int maxAttempts, long initialBackoffMillis) {
+        this.sessionFactory = sessionFactory;
+        this.sender = sender;
+        this.listener = listener;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.workers = Executors.newFixedThreadPool(workerCount, threadFactory("pia-email-outbox-worker-"));
+        this.retries = Executors.newSingleThreadScheduledExecutor(threadFactory("pia-email-outbox-retry-"));
+
+        for (int i = 0; i < workerCount; i++) {
+            workers.execute(this::work);
+        }
+    }
+
+    /**
+     * @return false if the outbox is full and the email has to be sent synchronously
+     */
+    public boolean enqueue(OutboxEmail email) {
+        return queue.offer(email);
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    public void shutdown() {
+        retries.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    private void work() {
+        List<OutboxEmail> batch = new ArrayList<>(batchSize);
+
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                batch.add(queue.take());
+                queue.drainTo(batch, batchSize - 1);
+                deliver(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void deliver(List<OutboxEmail> batch) {
+        Queue<OutboxEmail> pending = new ArrayDeque<>(batch);
+
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> deliver(session, pending));
+        } catch (RuntimeException e) {
+            // the session could not be created or closed, the remaining emails are retried in a new one
+            for (OutboxEmail email : pending) {
+                retryOrFail(email, e);
+            }
+        }
+    }
+
+    private void deliver(KeycloakSession session, Queue<OutboxEmail> pending) {
+        try {
+            deliverPending(session, pending);
+        } finally {
+            sender.closeBatch(session);
+        }
+    }
+
+    private void deliverPending(KeycloakSession session, Queue<OutboxEmail> pending) {
+        OutboxEmail email;
+
+        while ((email = pending.poll()) != null) {
+            RealmModel realm = session.realms().getRealm(email.getRealmId());
+
+            if (realm == null) {
+                notifyFailed(email, new EmailException("Realm " + email.getRealmId() + " does not exist anymore"));
+                continue;
+            }
+
+            // the SMTP password may be a vault expression of the realm
+            session.getContext().setRealm(realm);
+
+            try {
+                sender.send(session, email);
+                notifyDelivered(email);
+            } catch (EmailException | RuntimeException e) {
+                if (isAddressRejected(e)) {
+                    // retrying will not help
+                    notifyFailed(email, e);
+                } else {
+                    retryOrFail(email, e);
+                }
+            }
+        }
+    }
+
+    private void retryOrFail(OutboxEmail email, Exception cause) {
+        if (email.getAttempt() >= maxAttempts) {
+            notifyFailed(email, cause);
+            return;
+        }
+
+        logger.debugf(cause, "Delivery of email failed in attempt %d, retrying", email.getAttempt());
+
+        try {
+            retries.schedule(() -> {
+                if (!queue.offer(email.nextAttempt())) {
+                    notifyFailed(email, cause);
+                }
+            }, getBackoffMillis(email.getAttempt()), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            notifyFailed(email, cause);
+        }
+    }
+
+    private static boolean isAddressRejected(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SendFailedException) {
+                return ((SendFailedException) cause).getInvalidAddresses() != null
+                        && ((SendFailedException) cause).getInvalidAddresses().length > 0;
+            }
+        }
+
+        return false;
+    }
+
+    private long getBackoffMillis(int attempt) {
+        return Math.min(MAX_BACKOFF_MILLIS, initialBackoffMillis << Math.min(attempt - 1, 20));
+    }
+
+    private void notifyDelivered(OutboxEmail email) {
+        try {
+            listener.delivered(email);
+        } catch (RuntimeException e) {
+            logger.error("Failed to handle delivered email", e);
+        }
+    }
+
+    private void notifyFailed(OutboxEmail email, Exception cause) {
+        try {
+            listener.failed(email, cause);
+        } catch (RuntimeException e) {
+            logger.error("Failed to handle failed email", e);
+        }
+    }
+
+    private static ThreadFactory threadFactory(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
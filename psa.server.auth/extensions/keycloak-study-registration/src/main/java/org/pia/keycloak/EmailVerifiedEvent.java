@@ -0,0 +1,35 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+/**
+ * A participant verified their email after the registration, published as `ProbandEmailVerifiedMessage`.
+ */
+public class EmailVerifiedEvent implements StudyParticipantEvent {
+    public static final String TOPIC = "proband.email_verified";
+
+    private final String pseudonym;
+    private final String studyName;
+
+    public EmailVerifiedEvent(String pseudonym, String studyName) {
+        this.pseudonym = pseudonym;
+        this.studyName = studyName;
+    }
+
+    @Override
+    public String getTopic() {
+        return TOPIC;
+    }
+
+    public String getPseudonym() {
+        return pseudonym;
+    }
+
+    public String getStudyName() {
+        return studyName;
+    }
+}
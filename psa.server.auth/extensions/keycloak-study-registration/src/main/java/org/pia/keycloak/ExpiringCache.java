@@ -0,0 +1,142 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.keycloak.common.util.Time;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Node local cache with a fixed time to live and an upper bound of entries.
+ * When the cache is full, the least recently used entry is evicted. Null values are not cached.
+ */
+public class ExpiringCache<K, V> {
+    private final LinkedHashMap<K, Entry<V>> entries;
+    private final long timeToLiveMillis;
+
+    public ExpiringCache(long timeToLiveMillis, int maxSize) {
+        this.timeToLiveMillis = timeToLiveMillis;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    public V get(K key) {
+        synchronized (entries) {
+            Entry<V> entry = entries.get(key);
+
+            if (entry == null) {
+                return null;
+            }
+
+            if (entry.isExpired()) {
+                entries.remove(key);
+                return null;
+            }
+
+            return entry.value;
+        }
+    }
+
+    /**
+     * Loads a missing value outside of the lock of the cache, so concurrent calls may load the same value.
+     * Use {@link #computeIfAbsent(Object, Function)} when only one value may be created.
+     */
+    public V get(K key, Function<K, V> loader) {
+        return get(key, loader, timeToLiveMillis);
+    }
+
+    public V get(K key, Function<K, V> loader, long timeToLiveMillis) {
+        V value = get(key);
+
+        if (value != null) {
+            return value;
+        }
+
+        value = loader.apply(key);
+
+        if (value != null) {
+            put(key, value, timeToLiveMillis);
+        }
+
+        return value;
+    }
+
+    /**
+     * Creates a missing value atomically, all concurrent callers get the same value.
+     * The function runs under the lock of the cache and has to be cheap.
+     */
+    public V computeIfAbsent(K key, Function<K, V> mappingFunction) {
+        synchronized (entries) {
+            V value = get(key);
+
+            if (value == null) {
+                value = mappingFunction.apply(key);
+
+                if (value != null) {
+                    put(key, value, timeToLiveMillis);
+                }
+            }
+
+            return value;
+        }
+    }
+
+    public void put(K key, V value) {
+        put(key, value, timeToLiveMillis);
+    }
+
+    public void put(K key, V value, long timeToLiveMillis) {
+        synchronized (entries) {
+            entries.put(key, new Entry<>(value, Time.currentTimeMillis() + timeToLiveMillis));
+        }
+    }
+
+    public void invalidate(K key) {
+        synchronized (entries) {
+            entries.remove(key);
+        }
+    }
+
+    public void invalidateIf(Predicate<K> predicate) {
+        synchronized (entries) {
+            entries.keySet().removeIf(predicate);
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final long expiresAt;
+
+        private Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired() {
+            return Time.currentTimeMillis() >= expiresAt;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.infinispan.Cache;
+
+import java.util.concurrent.TimeUnit;
+
+public class InfinispanClusterCache implements ClusterCache {
+
+    private final Cache<String, Object> cache;
+
+    public InfinispanClusterCache(Cache<String, Object> cache) {
+        this.cache = cache;
+    }
+
+    @Override
+    public Object get(String key) {
+        return cache.get(key);
+    }
+
+    @Override
+    public Object putIfAbsent(String key, Object value, long lifespanMillis) {
+        return cache.putIfAbsent(key, value, lifespanMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public boolean replace(String key, Object oldValue, Object newValue, long lifespanMillis) {
+        return cache.replace(key, oldValue, newValue, lifespanMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void remove(String key) {
+        cache.remove(key);
+    }
+}
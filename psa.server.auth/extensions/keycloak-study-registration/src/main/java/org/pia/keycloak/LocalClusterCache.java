@@ -0,0 +1,74 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.keycloak.common.util.Time;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Node local fallback, used when Keycloak runs without Infinispan (e.g. in tests).
+ */
+public class LocalClusterCache implements ClusterCache {
+    public static final LocalClusterCache INSTANCE = new LocalClusterCache();
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    @Override
+    public Object get(String key) {
+        Entry entry = entries.get(key);
+
+        if (entry == null) {
+            return null;
+        }
+
+        if (entry.isExpired()) {
+            entries.remove(key, entry);
+            return null;
+        }
+
+        return entry.value;
+    }
+
+    @Override
+    public Object putIfAbsent(String key, Object value, long lifespanMillis) {
+        Entry created = new Entry(value, lifespanMillis);
+        Entry existing = entries.compute(key, (k, current) -> current == null || current.isExpired() ? created : current);
+
+        return existing == created ? null : existing.value;
+    }
+
+    @Override
+    public boolean replace(String key, Object oldValue, Object newValue, long lifespanMillis) {
+        Entry replacement = new Entry(newValue, lifespanMillis);
+        Entry result = entries.computeIfPresent(key,
+                (k, current) -> !current.isExpired() && Objects.equals(current.value, oldValue) ? replacement : current);
+
+        return result == replacement;
+    }
+
+    @Override
+    public void remove(String key) {
+        entries.remove(key);
+    }
+
+    private static class Entry {
+        private final Object value;
+        private final long expiresAt;
+
+        private Entry(Object value, long lifespanMillis) {
+            this.value = value;
+            this.expiresAt = Time.currentTimeMillis() + lifespanMillis;
+        }
+
+        private boolean isExpired() {
+            return Time.currentTimeMillis() >= expiresAt;
+        }
+    }
+}
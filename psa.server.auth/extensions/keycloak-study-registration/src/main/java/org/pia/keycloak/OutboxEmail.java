@@ -0,0 +1,98 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.keycloak.events.Event;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Rendered email waiting in the outbox, including the event which is recorded after delivery.
+ */
+public final class OutboxEmail {
+    private final String realmId;
+    private final Map<String, String> smtpConfig;
+    private final String address;
+    private final String subject;
+    private final String textBody;
+    private final String htmlBody;
+    private final Event event;
+    private final String study;
+    private final long enqueuedAt;
+    private final int attempt;
+
+    public OutboxEmail(String realmId, Map<String, String> smtpConfig, String address, String subject, String textBody,
+                       String htmlBody, Event event, String study) {
+        this(realmId, Collections.unmodifiableMap(new HashMap<>(smtpConfig)), address, subject, textBody, htmlBody, event, study, System.nanoTime(), 1);
+    }
+
+    private OutboxEmail(String realmId, Map<String, String> smtpConfig, String address, String subject, String textBody,
+                        String htmlBody, Event event, String study, long enqueuedAt, int attempt) {
+        this.realmId = realmId;
+        this.smtpConfig = smtpConfig;
+        this.address = address;
+        this.subject = subject;
+        this.textBody = textBody;
+        this.htmlBody = htmlBody;
+        this.event = event;
+        this.study = study;
+        this.enqueuedAt = enqueuedAt;
+        this.attempt = attempt;
+    }
+
+    public OutboxEmail nextAttempt() {
+        return new OutboxEmail(realmId, smtpConfig, address, subject, textBody, htmlBody, event, study, enqueuedAt, attempt + 1);
+    }
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    /**
+     * SMTP configuration of the realm, as passed to the {@link org.keycloak.email.EmailSenderProvider}.
+     */
+    public Map<String, String> getSmtpConfig() {
+        return smtpConfig;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    public String getTextBody() {
+        return textBody;
+    }
+
+    public String getHtmlBody() {
+        return htmlBody;
+    }
+
+    public Event getEvent() {
+        return event;
+    }
+
+    public String getStudy() {
+        return study;
+    }
+
+    /**
+     * Value of {@link System#nanoTime()} when the email was enqueued the first time.
+     */
+    public long getEnqueuedAt() {
+        return enqueuedAt;
+    }
+
+    public int getAttempt() {
+        return attempt;
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.jboss.logging.Logger;
+import org.keycloak.email.EmailException;
+import org.keycloak.email.freemarker.FreeMarkerEmailTemplateProvider;
+import org.keycloak.events.Event;
+import org.keycloak.models.KeycloakSession;
+
+import java.util.Map;
+
+/**
+ * Renders emails like Keycloak does, but puts them into the outbox instead of sending them.
+ * When the outbox is full, the email is sent synchronously.
+ */
+public class OutboxEmailTemplateProvider extends FreeMarkerEmailTemplateProvider {
+    private static final Logger logger = Logger.getLogger(OutboxEmailTemplateProvider.class);
+
+    private final EmailOutbox outbox;
+    private final Event event;
+    private final String study;
+    private boolean queued;
+
+    public OutboxEmailTemplateProvider(KeycloakSession session, EmailOutbox outbox, Event event, String study) {
+        super(session);
+        this.outbox = outbox;
+        this.event = event;
+        this.study = study;
+    }
+
+    /**
+     * @return true if the last email was put into the outbox, false if it has been sent already
+     */
+    public boolean isQueued() {
+        return queued;
+    }
+
+    @Override
+    protected void send(Map<String, String> config, String subject, String textBody, String htmlBody, String addressOverride) throws EmailException {
+        String address = addressOverride != null ? addressOverride : user.getEmail();
+        OutboxEmail email = new OutboxEmail(realm.getId(), config, address, subject, textBody, htmlBody, event, study);
+
+        queued = outbox.enqueue(email);
+
+        if (!queued) {
+            logger.warn("Email outbox is full, sending email synchronously");
+            super.send(config, subject, textBody, htmlBody, addressOverride);
+        }
+    }
+}
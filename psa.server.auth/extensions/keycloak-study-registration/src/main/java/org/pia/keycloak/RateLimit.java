@@ -0,0 +1,66 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rate of a token bucket, with the number of requests per second and the size of a burst.
+ */
+public final class RateLimit {
+    private final double requestsPerSecond;
+    private final int burst;
+
+    public RateLimit(double requestsPerSecond, int burst) {
+        if (requestsPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Rate and burst of a rate limit have to be positive");
+        }
+        this.requestsPerSecond = requestsPerSecond;
+        this.burst = burst;
+    }
+
+    /**
+     * Reads a rate limit from an authenticator configuration. An invalid rate disables the limit, an invalid
+     * burst falls back to the burst of one second.
+     *
+     * @return null if the rate is not configured, i.e. requests are not limited
+     */
+    public static RateLimit of(Map<String, String> config, String rateKey, String burstKey) {
+        double requestsPerSecond = ConfigValues.getDouble(config, rateKey, 0);
+
+        if (requestsPerSecond <= 0) {
+            return null;
+        }
+
+        int defaultBurst = (int) Math.max(1, Math.min(Integer.MAX_VALUE, Math.ceil(requestsPerSecond)));
+        int burst = ConfigValues.getInt(config, burstKey, defaultBurst);
+
+        if (burst < 1) {
+            burst = ConfigValues.invalid(burstKey, Integer.toString(burst), defaultBurst);
+        }
+
+        return new RateLimit(requestsPerSecond, burst);
+    }
+
+    public double getRequestsPerSecond() {
+        return requestsPerSecond;
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    public long getNanosPerToken() {
+        return Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond));
+    }
+
+    @Override
+    public String toString() {
+        return requestsPerSecond + "/" + burst;
+    }
+}
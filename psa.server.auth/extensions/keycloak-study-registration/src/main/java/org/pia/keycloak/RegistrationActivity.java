@@ -0,0 +1,74 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.jboss.logging.Logger;
+import org.keycloak.common.util.Time;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Number of registrations of each study per minute, kept in the cluster cache for the statistics of the last hour.
+ */
+public class RegistrationActivity {
+    public static final int MAX_WINDOW_MINUTES = 60;
+    private static final String KEY_PREFIX = "pia-study-registration-activity:";
+    private static final long LIFESPAN_MILLIS = TimeUnit.MINUTES.toMillis(MAX_WINDOW_MINUTES + 1);
+    private static final int MAX_ATTEMPTS = 16;
+
+    private static final Logger logger = Logger.getLogger(RegistrationActivity.class);
+
+    private final ClusterCache cache;
+
+    public RegistrationActivity(ClusterCache cache) {
+        this.cache = cache;
+    }
+
+    public void record(String realmId, String study, int registrations) {
+        if (registrations <= 0) {
+            return;
+        }
+
+        String key = getKey(realmId, study, getCurrentMinute());
+
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            Object current = cache.putIfAbsent(key, registrations, LIFESPAN_MILLIS);
+
+            if (current == null || cache.replace(key, current, (Integer) current + registrations, LIFESPAN_MILLIS)) {
+                return;
+            }
+        }
+
+        logger.warnf("Could not record registrations of study %s", study);
+    }
+
+    /**
+     * Counts the registrations of the current and the previous minutes, at most {@link #MAX_WINDOW_MINUTES}.
+     */
+    public int count(String realmId, String study, int minutes) {
+        long currentMinute = getCurrentMinute();
+        int count = 0;
+
+        for (long minute = currentMinute - Math.min(minutes, MAX_WINDOW_MINUTES) + 1; minute <= currentMinute; minute++) {
+            Object registrations = cache.get(getKey(realmId, study, minute));
+
+            if (registrations instanceof Integer) {
+                count += (Integer) registrations;
+            }
+        }
+
+        return count;
+    }
+
+    private static long getCurrentMinute() {
+        return TimeUnit.MILLISECONDS.toMinutes(Time.currentTimeMillis());
+    }
+
+    private static String getKey(String realmId, String study, long minute) {
+        return KEY_PREFIX + realmId + ":" + study + ":" + minute;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import freemarker.template.TemplateModelException;
+import org.jboss.logging.Logger;
+import org.keycloak.forms.login.LoginFormsProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.theme.KeycloakSanitizerMethod;
+import org.keycloak.theme.Theme;
+
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Node local cache of page attributes, which are localized and formatted the same way for every participant,
+ * e.g. the subtitle with the study name. The templates use them instead of formatting and sanitizing
+ * the messages on every render.
+ * <p>
+ * Entries are keyed by everything they are built from, so a renamed study or changed terms of service never
+ * hit a stale entry. Changed localization texts of the realm take effect after the time to live.
+ */
+public class RegistrationPageModelCache {
+    public static final long DEFAULT_TIME_TO_LIVE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    public static final int DEFAULT_MAX_SIZE = 1000;
+    public static final RegistrationPageModelCache INSTANCE = new RegistrationPageModelCache(DEFAULT_TIME_TO_LIVE_MILLIS, DEFAULT_MAX_SIZE);
+
+    private static final Logger logger = Logger.getLogger(RegistrationPageModelCache.class);
+
+    private final ExpiringCache<String, Map<String, String>> cache;
+
+    public RegistrationPageModelCache(long timeToLiveMillis, int maxSize) {
+        this.cache = new ExpiringCache<>(timeToLiveMillis, maxSize);
+    }
+
+    /**
+     * Sets the cached attributes on the form. Nothing is set if the messages of the theme cannot be loaded,
+     * the templates format the messages themselves then.
+     *
+     * @param inputs the values the attributes are built from, e.g. the study name
+     */
+    public void apply(KeycloakSession session, LoginFormsProvider form, String page, List<String> inputs,
+                      Function<Messages, Map<String, String>> builder) {
+        get(session, page, inputs, builder).forEach(form::setAttribute);
+    }
+
+    Map<String, String> get(KeycloakSession session, String page, List<String> inputs, Function<Messages, Map<String, String>> builder) {
+        try {
+            RealmModel realm = session.getContext().getRealm();
+            Theme theme = session.theme().getTheme(Theme.Type.LOGIN);
+            Locale locale = session.getContext().resolveLocale(null);
+
+            if (!session.theme().isCacheEnabled()) {
+                // themes are being developed, so the messages may change at any time
+                return builder.apply(new Messages(theme.getEnhancedMessages(realm, locale), locale));
+            }
+
+            String key = String.join("\u0000", realm.getId(), theme.getName(), locale.toLanguageTag(), page, String.join("\u0000", inputs));
+            Map<String, String> attributes = cache.get(key);
+
+            if (attributes == null) {
+                attributes = Map.copyOf(builder.apply(new Messages(theme.getEnhancedMessages(realm, locale), locale)));
+                cache.put(key, attributes);
+            }
+
+            return attributes;
+        } catch (IOException | RuntimeException e) {
+            logger.debugf(e, "Could not build the attributes of page %s", page);
+            return Map.of();
+        }
+    }
+
+    /**
+     * Formats and sanitizes messages like the msg and kcSanitize methods of the templates.
+     */
+    public static final class Messages {
+        private static final KeycloakSanitizerMethod sanitizer = new KeycloakSanitizerMethod();
+
+        private final Properties messages;
+        private final Locale locale;
+
+        Messages(Properties messages, Locale locale) {
+            this.messages = messages;
+            this.locale = locale;
+        }
+
+        public String format(String key, Object... args) {
+            return new MessageFormat(messages.getProperty(key, key), locale).format(args);
+        }
+
+        public String sanitize(String html) {
+            try {
+                return (String) sanitizer.exec(List.of(html));
+            } catch (TemplateModelException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
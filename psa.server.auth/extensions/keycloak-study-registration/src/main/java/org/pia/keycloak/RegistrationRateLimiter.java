@@ -0,0 +1,37 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Node local token buckets for registration requests, shared by all authenticators of a node.
+ * Buckets are dropped after a while, a dropped bucket starts full again. Concurrent requests always share
+ * one bucket per key, also when the bucket is created or has expired.
+ */
+public class RegistrationRateLimiter {
+    public static final int DEFAULT_MAX_BUCKETS = 10_000;
+    public static final RegistrationRateLimiter INSTANCE = new RegistrationRateLimiter(DEFAULT_MAX_BUCKETS);
+    private static final long BUCKET_TIME_TO_LIVE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final ExpiringCache<String, TokenBucket> buckets;
+
+    public RegistrationRateLimiter(int maxBuckets) {
+        this.buckets = new ExpiringCache<>(BUCKET_TIME_TO_LIVE_MILLIS, maxBuckets);
+    }
+
+    public boolean tryAcquire(String key, RateLimit limit) {
+        return tryAcquire(key, limit, System.nanoTime());
+    }
+
+    boolean tryAcquire(String key, RateLimit limit, long nowNanos) {
+        // the limit is part of the key, so a changed configuration takes effect immediately
+        TokenBucket bucket = buckets.computeIfAbsent(key + "@" + limit, k -> new TokenBucket(limit, nowNanos));
+
+        return bucket.tryAcquire(nowNanos);
+    }
+}
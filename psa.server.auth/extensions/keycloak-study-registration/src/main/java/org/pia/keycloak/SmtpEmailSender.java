@@ -0,0 +1,236 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Multipart;
+import jakarta.mail.Session;
+import jakarta.mail.Transport;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+import jakarta.mail.internet.MimeUtility;
+import org.jboss.logging.Logger;
+import org.keycloak.common.enums.HostnameVerificationPolicy;
+import org.keycloak.email.EmailException;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.truststore.JSSETruststoreConfigurator;
+import org.keycloak.utils.StringUtil;
+import org.keycloak.vault.VaultStringSecret;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Sends the emails of an outbox batch over one SMTP connection, instead of a connection per email like the
+ * EmailSenderProvider of Keycloak. Messages and SMTP settings are the same as Keycloak's. The connection is kept
+ * in the Keycloak session of the batch and opened again for another SMTP configuration or after an error.
+ */
+public class SmtpEmailSender implements EmailOutbox.Sender {
+    private static final Logger logger = Logger.getLogger(SmtpEmailSender.class);
+    private static final String CONNECTION_ATTRIBUTE = SmtpEmailSender.class.getName() + ".connection";
+    private static final String SUPPORTED_SSL_PROTOCOLS = getSupportedSslProtocols();
+
+    @FunctionalInterface
+    interface TransportFactory {
+        Transport getTransport(Session mailSession) throws MessagingException;
+    }
+
+    private final TransportFactory transportFactory;
+
+    public SmtpEmailSender() {
+        this(mailSession -> mailSession.getTransport("smtp"));
+    }
+
+    SmtpEmailSender(TransportFactory transportFactory) {
+        this.transportFactory = transportFactory;
+    }
+
+    @Override
+    public void send(KeycloakSession session, OutboxEmail email) throws EmailException {
+        try {
+            Connection connection = getConnection(session, email.getSmtpConfig());
+            Message message = createMessage(connection.mailSession, email);
+
+            connection.transport.sendMessage(message, new InternetAddress[]{new InternetAddress(email.getAddress())});
+        } catch (MessagingException | UnsupportedEncodingException e) {
+            // the server may have closed the connection, the next email opens a new one
+            closeBatch(session);
+            throw new EmailException(e);
+        }
+    }
+
+    @Override
+    public void closeBatch(KeycloakSession session) {
+        Connection connection = (Connection) session.getAttribute(CONNECTION_ATTRIBUTE);
+
+        if (connection != null) {
+            session.removeAttribute(CONNECTION_ATTRIBUTE);
+            connection.close();
+        }
+    }
+
+    private Connection getConnection(KeycloakSession session, Map<String, String> config) throws MessagingException {
+        Connection connection = (Connection) session.getAttribute(CONNECTION_ATTRIBUTE);
+
+        if (connection != null && connection.config.equals(config) && connection.transport.isConnected()) {
+            return connection;
+        }
+
+        closeBatch(session);
+
+        Session mailSession = Session.getInstance(getProperties(session, config));
+        Transport transport = transportFactory.getTransport(mailSession);
+
+        if ("true".equals(config.get("auth"))) {
+            try (VaultStringSecret password = session.vault().getStringSecret(config.get("password"))) {
+                transport.connect(config.get("user"), password.get().orElse(config.get("password")));
+            }
+        } else {
+            transport.connect();
+        }
+
+        connection = new Connection(new HashMap<>(config), mailSession, transport);
+        session.setAttribute(CONNECTION_ATTRIBUTE, connection);
+
+        return connection;
+    }
+
+    private static Properties getProperties(KeycloakSession session, Map<String, String> config) {
+        Properties props = new Properties();
+        boolean ssl = "true".equals(config.get("ssl"));
+        boolean starttls = "true".equals(config.get("starttls"));
+
+        if (config.containsKey("host")) {
+            props.setProperty("mail.smtp.host", config.get("host"));
+        }
+        if (config.containsKey("port") && config.get("port") != null) {
+            props.setProperty("mail.smtp.port", config.get("port"));
+        }
+        if ("true".equals(config.get("auth"))) {
+            props.setProperty("mail.smtp.auth", "true");
+        }
+        if (ssl) {
+            props.setProperty("mail.smtp.ssl.enable", "true");
+        }
+        if (starttls) {
+            props.setProperty("mail.smtp.starttls.enable", "true");
+        }
+        if (ssl || starttls) {
+            if (SUPPORTED_SSL_PROTOCOLS != null) {
+                props.put("mail.smtp.ssl.protocols", SUPPORTED_SSL_PROTOCOLS);
+            }
+            setupTruststore(session, props);
+        }
+        if (StringUtil.isNotBlank(config.get("envelopeFrom"))) {
+            props.setProperty("mail.smtp.from", config.get("envelopeFrom"));
+        }
+
+        props.setProperty("mail.smtp.timeout", "10000");
+        props.setProperty("mail.smtp.connectiontimeout", "10000");
+
+        return props;
+    }
+
+    private static void setupTruststore(KeycloakSession session, Properties props) {
+        JSSETruststoreConfigurator configurator = new JSSETruststoreConfigurator(session);
+        SSLSocketFactory factory = configurator.getSSLSocketFactory();
+
+        if (factory != null) {
+            props.put("mail.smtp.ssl.socketFactory", factory);
+
+            if (configurator.getProvider().getPolicy() == HostnameVerificationPolicy.ANY) {
+                props.setProperty("mail.smtp.ssl.trust", "*");
+                props.put("mail.smtp.ssl.checkserveridentity", Boolean.FALSE.toString());
+            }
+        }
+    }
+
+    private static Message createMessage(Session mailSession, OutboxEmail email)
+            throws MessagingException, UnsupportedEncodingException {
+        Map<String, String> config = email.getSmtpConfig();
+        Multipart multipart = new MimeMultipart("alternative");
+
+        if (email.getTextBody() != null) {
+            MimeBodyPart textPart = new MimeBodyPart();
+            textPart.setText(email.getTextBody(), "UTF-8");
+            multipart.addBodyPart(textPart);
+        }
+
+        if (email.getHtmlBody() != null) {
+            MimeBodyPart htmlPart = new MimeBodyPart();
+            htmlPart.setContent(email.getHtmlBody(), "text/html; charset=UTF-8");
+            multipart.addBodyPart(htmlPart);
+        }
+
+        Message message = new MimeMessage(mailSession);
+        message.setFrom(toInternetAddress(config.get("from"), config.get("fromDisplayName")));
+
+        if (StringUtil.isNotBlank(config.get("replyTo"))) {
+            message.setReplyTo(new InternetAddress[]{toInternetAddress(config.get("replyTo"), config.get("replyToDisplayName"))});
+        }
+
+        message.setHeader("To", email.getAddress());
+        message.setSubject(MimeUtility.encodeText(email.getSubject(), StandardCharsets.UTF_8.name(), null));
+        message.setContent(multipart);
+        message.saveChanges();
+        message.setSentDate(new Date());
+
+        return message;
+    }
+
+    private static InternetAddress toInternetAddress(String email, String displayName)
+            throws UnsupportedEncodingException, MessagingException {
+        if (email == null || email.trim().isEmpty()) {
+            throw new MessagingException("Please provide a valid address");
+        }
+
+        if (displayName == null || displayName.trim().isEmpty()) {
+            return new InternetAddress(email);
+        }
+
+        return new InternetAddress(email, displayName, "utf-8");
+    }
+
+    private static String getSupportedSslProtocols() {
+        try {
+            String[] protocols = SSLContext.getDefault().getSupportedSSLParameters().getProtocols();
+            return protocols != null ? String.join(" ", protocols) : null;
+        } catch (Exception e) {
+            logger.warn("Failed to get list of supported SSL protocols", e);
+            return null;
+        }
+    }
+
+    private static class Connection {
+        private final Map<String, String> config;
+        private final Session mailSession;
+        private final Transport transport;
+
+        private Connection(Map<String, String> config, Session mailSession, Transport transport) {
+            this.config = config;
+            this.mailSession = mailSession;
+            this.transport = transport;
+        }
+
+        private void close() {
+            try {
+                transport.close();
+            } catch (MessagingException e) {
+                logger.warn("Failed to close transport", e);
+            }
+        }
+    }
+}
@@ -9,18 +9,46 @@ package org.pia.keycloak;
 import org.keycloak.authentication.AuthenticationFlowContext;
 import org.keycloak.authentication.AuthenticationFlowError;
 import org.keycloak.authentication.Authenticator;
+import org.keycloak.common.util.Time;
+import org.keycloak.models.AuthenticatorConfigModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
+import org.keycloak.sessions.AuthenticationSessionModel;
 
 import jakarta.ws.rs.core.Response;
+import java.util.concurrent.TimeUnit;
 
 public class StudyAuthenticator implements Authenticator {
+    public static final String WAITING_ROOM_TEMPLATE = "pia-waiting-room.ftl";
+    private static final String NOTE_WAITING_ROOM_STUDY = "piaWaitingRoomStudy";
+    private static final String NOTE_WAITING_ROOM_ADMIT_AT = "piaWaitingRoomAdmitAt";
+    private static final String UNKNOWN_STUDY_BUCKET = "unknown";
 
     private final StudyHelper studyHelper;
+    private final RegistrationRateLimiter rateLimiter;
+    private final StudyRegistrationConfigOverrides configOverrides;
+    private final StudyWaitingRoom waitingRoom;
 
     public StudyAuthenticator(StudyHelper studyHelper) {
+        this(studyHelper, RegistrationRateLimiter.INSTANCE, StudyRegistrationConfig.DEFAULT);
+    }
+
+    public StudyAuthenticator(StudyHelper studyHelper, RegistrationRateLimiter rateLimiter, StudyRegistrationConfig config) {
+        this(studyHelper, rateLimiter, config, new StudyWaitingRoom(LocalClusterCache.INSTANCE));
+    }
+
+    public StudyAuthenticator(StudyHelper studyHelper, RegistrationRateLimiter rateLimiter, StudyRegistrationConfig config,
+                              StudyWaitingRoom waitingRoom) {
+        this(studyHelper, rateLimiter, new StudyRegistrationConfigOverrides(config), waitingRoom);
+    }
+
+    public StudyAuthenticator(StudyHelper studyHelper, RegistrationRateLimiter rateLimiter,
+                              StudyRegistrationConfigOverrides configOverrides, StudyWaitingRoom waitingRoom) {
         this.studyHelper = studyHelper;
+        this.rateLimiter = rateLimiter;
+        this.configOverrides = configOverrides;
+        this.waitingRoom = waitingRoom;
     }
 
     private String getStudyKey(AuthenticationFlowContext context) {
@@ -29,10 +57,20 @@ public class StudyAuthenticator implements Authenticator {
 
     @Override
     public void authenticate(AuthenticationFlowContext context) {
+        long start = StudyRegistrationMetrics.start();
+        try {
+            authenticateStudy(context);
+        } finally {
+            StudyRegistrationMetrics.record(StudyRegistrationMetrics.PHASE_AUTHENTICATE, studyHelper.getStudyLabel(), start);
+        }
+    }
+
+    private void authenticateStudy(AuthenticationFlowContext context) {
         RealmModel realm = context.getRealm();
         String study = getStudyKey(context);
 
         if (study == null || study.equals("")) {
+            StudyRegistrationMetrics.reject(null, StudyRegistrationMessages.STUDY_MISSING);
             Response response = context.form()
                     .setError(StudyRegistrationMessages.STUDY_MISSING)
                     .createErrorPage(Response.Status.BAD_REQUEST);
@@ -41,35 +79,171 @@ public class StudyAuthenticator implements Authenticator {
             return;
         }
 
-        studyHelper.init(realm, study);
+        studyHelper.configure(configOverrides.get(context.getAuthenticatorConfig()));
 
-        if (!studyHelper.studyGroupIsOpen()) {
+        // shed bursts before the study is looked up
+        if (isRateLimited(context, realm, study)) {
             Response response = context.form()
-                    .setError(StudyRegistrationMessages.STUDY_NOT_OPEN)
-                    .createErrorPage(Response.Status.FORBIDDEN);
+                    .setError(StudyRegistrationMessages.TOO_MANY_REQUESTS)
+                    .createErrorPage(Response.Status.TOO_MANY_REQUESTS);
+            context.failure(AuthenticationFlowError.ACCESS_DENIED, response);
+            return;
+        }
+
+        register(context, study);
+    }
+
+    /**
+     * Polled by the waiting room page, until the participant is admitted.
+     */
+    private void waitForAdmission(AuthenticationFlowContext context) {
+        String study = context.getAuthenticationSession().getAuthNote(NOTE_WAITING_ROOM_STUDY);
+
+        if (study == null) {
+            StudyRegistrationMetrics.reject(null, StudyRegistrationMessages.STUDY_MISSING);
+            Response response = context.form()
+                    .setError(StudyRegistrationMessages.STUDY_MISSING)
+                    .createErrorPage(Response.Status.BAD_REQUEST);
 
             context.failure(AuthenticationFlowError.ACCESS_DENIED, response);
             return;
         }
 
-        if (studyHelper.reachedRegistrationLimit()) {
+        studyHelper.configure(configOverrides.get(context.getAuthenticatorConfig()));
+        register(context, study);
+    }
+
+    private void register(AuthenticationFlowContext context, String study) {
+        if (isOpenForRegistration(context, study) && isAdmitted(context, study)) {
+            // attach current study to user session
+            context.getAuthenticationSession().setUserSessionNote(StudyFormAction.PARAM_STUDY, study);
+
+            context.success();
+        }
+    }
+
+    private boolean isOpenForRegistration(AuthenticationFlowContext context, String study) {
+        studyHelper.init(context.getRealm(), study);
+
+        if (!studyHelper.studyGroupIsOpen()) {
+            StudyRegistrationMetrics.reject(studyHelper.getStudyLabel(), StudyRegistrationMessages.STUDY_NOT_OPEN);
             Response response = context.form()
-                    .setError(StudyRegistrationMessages.LIMIT_REACHED)
+                    .setError(StudyRegistrationMessages.STUDY_NOT_OPEN)
                     .createErrorPage(Response.Status.FORBIDDEN);
 
             context.failure(AuthenticationFlowError.ACCESS_DENIED, response);
-            return;
+            return false;
         }
 
-        // attach current study to user session
-        context.getAuthenticationSession().setUserSessionNote(StudyFormAction.PARAM_STUDY, study);
+        if (studyHelper.reachedRegistrationLimit()) {
+            rejectLimitReached(context);
+            return false;
+        }
 
-        context.success();
+        return true;
+    }
+
+    /**
+     * Queues the participant in the waiting room of the study, if it is enabled, and shows the waiting room page
+     * until the participant is admitted. Participants are only queued while there is capacity left for them.
+     */
+    private boolean isAdmitted(AuthenticationFlowContext context, String study) {
+        AuthenticatorConfigModel configModel = context.getAuthenticatorConfig();
+        RateLimit rate = configModel != null ? RateLimit.of(configModel.getConfig(),
+                StudyAuthenticatorFactory.CONFIG_WAITING_ROOM_RATE, StudyAuthenticatorFactory.CONFIG_WAITING_ROOM_BURST) : null;
+
+        if (rate == null) {
+            return true;
+        }
+
+        AuthenticationSessionModel authSession = context.getAuthenticationSession();
+        String ticket = study.equals(authSession.getAuthNote(NOTE_WAITING_ROOM_STUDY))
+                ? authSession.getAuthNote(NOTE_WAITING_ROOM_ADMIT_AT) : null;
+        long admitAt;
+
+        if (ticket == null) {
+            admitAt = waitingRoom.enqueue(context.getRealm().getId(), study, rate, studyHelper.getRemainingCapacity());
+
+            if (admitAt == StudyWaitingRoom.FULL) {
+                rejectLimitReached(context);
+                return false;
+            }
+
+            authSession.setAuthNote(NOTE_WAITING_ROOM_STUDY, study);
+            authSession.setAuthNote(NOTE_WAITING_ROOM_ADMIT_AT, Long.toString(admitAt));
+            StudyRegistrationMetrics.waitingRoom(studyHelper.getStudyLabel(),
+                    admitAt > Time.currentTimeMillis() ? "queued" : "admitted");
+        } else {
+            admitAt = Long.parseLong(ticket);
+        }
+
+        long remainingMillis = admitAt - Time.currentTimeMillis();
+
+        if (remainingMillis <= 0) {
+            return true;
+        }
+
+        long pollSeconds = getWaitingRoomPollSeconds(configModel);
+        Response challenge = context.form()
+                .setAttribute("waitingRoomPosition", StudyWaitingRoom.getPosition(admitAt, rate))
+                .setAttribute("waitingRoomRefreshSeconds",
+                        Math.max(1, Math.min(pollSeconds, TimeUnit.MILLISECONDS.toSeconds(remainingMillis + 999))))
+                .createForm(WAITING_ROOM_TEMPLATE);
+        context.challenge(challenge);
+
+        return false;
+    }
+
+    private void rejectLimitReached(AuthenticationFlowContext context) {
+        StudyRegistrationMetrics.reject(studyHelper.getStudyLabel(), StudyRegistrationMessages.LIMIT_REACHED);
+        Response response = context.form()
+                .setError(StudyRegistrationMessages.LIMIT_REACHED)
+                .createErrorPage(Response.Status.FORBIDDEN);
+
+        context.failure(AuthenticationFlowError.ACCESS_DENIED, response);
+    }
+
+    private static long getWaitingRoomPollSeconds(AuthenticatorConfigModel configModel) {
+        return Math.max(1, ConfigValues.getLong(configModel.getConfig(), StudyAuthenticatorFactory.CONFIG_WAITING_ROOM_POLL_SECONDS,
+                StudyAuthenticatorFactory.DEFAULT_WAITING_ROOM_POLL_SECONDS));
+    }
+
+    private boolean isRateLimited(AuthenticationFlowContext context, RealmModel realm, String study) {
+        AuthenticatorConfigModel config = context.getAuthenticatorConfig();
+
+        if (config == null) {
+            return false;
+        }
+
+        RateLimit ipLimit = RateLimit.of(config.getConfig(), StudyAuthenticatorFactory.CONFIG_IP_RATE, StudyAuthenticatorFactory.CONFIG_IP_BURST);
+        String ipAddress = context.getConnection() != null ? context.getConnection().getRemoteAddr() : null;
+
+        if (ipLimit != null && ipAddress != null && !rateLimiter.tryAcquire("ip:" + realm.getId() + ":" + ipAddress, ipLimit)) {
+            StudyRegistrationMetrics.shed("ip");
+            return true;
+        }
+
+        RateLimit studyLimit = RateLimit.of(config.getConfig(), StudyAuthenticatorFactory.CONFIG_STUDY_RATE, StudyAuthenticatorFactory.CONFIG_STUDY_BURST);
+
+        // study ids are not validated yet, only studies known to be open get a bucket of their own
+        String studyBucket = studyHelper.isKnownOpenStudy(realm, study) ? study : UNKNOWN_STUDY_BUCKET;
+
+        if (studyLimit != null && !rateLimiter.tryAcquire("study:" + realm.getId() + ":" + studyBucket, studyLimit)) {
+            StudyRegistrationMetrics.shed("study");
+            return true;
+        }
+
+        return false;
     }
 
     @Override
     public void action(AuthenticationFlowContext context) {
-
+        long start = StudyRegistrationMetrics.start();
+        try {
+            waitForAdmission(context);
+        } finally {
+            StudyRegistrationMetrics.record(StudyRegistrationMetrics.PHASE_WAITING_ROOM, studyHelper.getStudyLabel(), start);
+        }
     }
 
     @Override
@@ -13,15 +13,27 @@ import org.keycloak.models.AuthenticationExecutionModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.provider.ProviderConfigurationBuilder;
 
 import java.util.List;
 
 public class StudyAuthenticatorFactory implements AuthenticatorFactory {
     public static final String PROVIDER_ID = "study-authenticator";
+    public static final String CONFIG_IP_RATE = "ipRateLimit";
+    public static final String CONFIG_IP_BURST = "ipBurst";
+    public static final String CONFIG_STUDY_RATE = "studyRateLimit";
+    public static final String CONFIG_STUDY_BURST = "studyBurst";
+    public static final String CONFIG_WAITING_ROOM_RATE = "waitingRoomRate";
+    public static final String CONFIG_WAITING_ROOM_BURST = "waitingRoomBurst";
+    public static final String CONFIG_WAITING_ROOM_POLL_SECONDS = "waitingRoomPollSeconds";
+    public static final long DEFAULT_WAITING_ROOM_POLL_SECONDS = 5;
     protected static final AuthenticationExecutionModel.Requirement[] REQUIREMENT_CHOICES = {
             AuthenticationExecutionModel.Requirement.REQUIRED,
             AuthenticationExecutionModel.Requirement.DISABLED};
 
+    private StudyRegistrationConfig config = StudyRegistrationConfig.DEFAULT;
+    private StudyRegistrationConfigOverrides configOverrides = new StudyRegistrationConfigOverrides(config);
+
     @Override
     public String getDisplayType() {
         return "Study Authenticator";
@@ -34,7 +46,7 @@ public class StudyAuthenticatorFactory implements AuthenticatorFactory {
 
     @Override
     public boolean isConfigurable() {
-        return false;
+        return true;
     }
 
     @Override
@@ -54,18 +66,67 @@ public class StudyAuthenticatorFactory implements AuthenticatorFactory {
 
     @Override
     public List<ProviderConfigProperty> getConfigProperties() {
-        return null;
+        List<ProviderConfigProperty> properties = ProviderConfigurationBuilder.create()
+                .property()
+                .name(CONFIG_IP_RATE)
+                .label("Requests per second and IP address")
+                .helpText("Registration requests per second allowed from a single IP address on this node. Leave empty to disable the limit.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .add()
+                .property()
+                .name(CONFIG_IP_BURST)
+                .label("Burst per IP address")
+                .helpText("Number of requests an IP address may send at once. Defaults to the requests per second.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .add()
+                .property()
+                .name(CONFIG_STUDY_RATE)
+                .label("Requests per second and study")
+                .helpText("Registration requests per second allowed for a single study on this node. Leave empty to disable the limit.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .add()
+                .property()
+                .name(CONFIG_STUDY_BURST)
+                .label("Burst per study")
+                .helpText("Number of requests a study may receive at once. Defaults to the requests per second.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .add()
+                .property()
+                .name(CONFIG_WAITING_ROOM_RATE)
+                .label("Waiting room admissions per second")
+                .helpText("Participants per second admitted into the registration form of a study by the whole cluster. Further participants wait in the order of their arrival. Leave empty to disable the waiting room.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .add()
+                .property()
+                .name(CONFIG_WAITING_ROOM_BURST)
+                .label("Waiting room burst")
+                .helpText("Number of participants admitted at once without waiting. Defaults to the admissions per second.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .add()
+                .property()
+                .name(CONFIG_WAITING_ROOM_POLL_SECONDS)
+                .label("Waiting room refresh interval")
+                .helpText("Seconds after which the waiting room page checks again, whether the participant has been admitted.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(String.valueOf(DEFAULT_WAITING_ROOM_POLL_SECONDS))
+                .add()
+                .build();
+        properties.addAll(StudyRegistrationConfig.getConfigProperties());
+
+        return properties;
     }
 
     @Override
     public Authenticator create(KeycloakSession keycloakSession) {
-        StudyHelper studyHelper = new StudyHelper(keycloakSession);
-        return new StudyAuthenticator(studyHelper);
+        StudyHelper studyHelper = new StudyHelper(keycloakSession, config);
+        return new StudyAuthenticator(studyHelper, RegistrationRateLimiter.INSTANCE, configOverrides,
+                new StudyWaitingRoom(ClusterCache.of(keycloakSession)));
     }
 
     @Override
     public void init(Config.Scope scope) {
-
+        config = StudyRegistrationConfig.of(scope);
+        configOverrides = new StudyRegistrationConfigOverrides(config);
     }
 
     @Override
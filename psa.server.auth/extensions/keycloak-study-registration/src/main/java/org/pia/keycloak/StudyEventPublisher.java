@@ -0,0 +1,182 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Node local buffer, which publishes participant events in batches with a single worker.
+ * A batch is published as soon as it is full or the flush interval has passed since its first event.
+ * Failed batches are retried with backoff, events which do not fit into the buffer are dropped.
+ * <p>
+ * The buffer is not persistent, events which are still buffered when publishing fails on shutdown are lost.
+ */
+public class StudyEventPublisher {
+    public static final int DEFAULT_CAPACITY = 10000;
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    private static final long INITIAL_BACKOFF_MILLIS = 500;
+
+    private static final Logger logger = Logger.getLogger(StudyEventPublisher.class);
+
+    public interface Sink {
+        void publish(List<StudyParticipantEvent> batch) throws IOException;
+
+        void close();
+    }
+
+    private final Sink sink;
+    private final BlockingQueue<StudyParticipantEvent> queue;
+    private final int batchSize;
+    private final long flushIntervalMillis;
+    private final int maxAttempts;
+    private final Thread worker;
+
+    public StudyEventPublisher(Sink sink) {
+        this(sink, DEFAULT_CAPACITY, DEFAULT_BATCH_SIZE, DEFAULT_FLUSH_INTERVAL_MILLIS, DEFAULT_MAX_ATTEMPTS);
+    }
+
+    public StudyEventPublisher(Sink sink, int capacity, int batchSize, long flushIntervalMillis, int maxAttempts) {
+        this.sink = sink;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.maxAttempts = maxAttempts;
+        this.worker = new Thread(this::work, "pia-study-event-publisher");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * @return false if the buffer is full and the event has been dropped
+     */
+    public boolean enqueue(StudyParticipantEvent event) {
+        if (queue.offer(event)) {
+            return true;
+        }
+
+        logger.warnf("Event buffer is full, dropping event of topic %s", event.getTopic());
+        StudyRegistrationMetrics.participantEvents(event.getTopic(), "dropped", 1);
+        return false;
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    /**
+     * Stops the worker and publishes the buffered events once more.
+     */
+    public void shutdown() {
+        worker.interrupt();
+
+        try {
+            worker.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        List<StudyParticipantEvent> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+
+        for (int from = 0; from < remaining.size(); from += batchSize) {
+            publish(remaining.subList(from, Math.min(remaining.size(), from + batchSize)), 1);
+        }
+
+        sink.close();
+    }
+
+    private void work() {
+        List<StudyParticipantEvent> batch = new ArrayList<>(batchSize);
+
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                batch.add(queue.take());
+                long flushAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+
+                while (batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long remaining = flushAt - System.nanoTime();
+
+                    if (batch.size() >= batchSize || remaining <= 0) {
+                        break;
+                    }
+
+                    StudyParticipantEvent next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+
+                    if (next == null) {
+                        break;
+                    }
+
+                    batch.add(next);
+                }
+
+                if (!publish(batch, maxAttempts)) {
+                    break;
+                }
+
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // events taken from the queue are published with the remaining ones on shutdown
+            batch.forEach(this::enqueue);
+        }
+    }
+
+    /**
+     * @return false if the worker has been interrupted before the batch could be published
+     */
+    private boolean publish(List<StudyParticipantEvent> batch, int attempts) {
+        for (int attempt = 1; attempt <= attempts; attempt++) {
+            try {
+                sink.publish(batch);
+                count(batch, "published");
+                return true;
+            } catch (IOException | RuntimeException e) {
+                if (attempt == attempts) {
+                    logger.errorf(e, "Could not publish %d participant events", batch.size());
+                    break;
+                }
+
+                logger.debugf(e, "Publishing participant events failed in attempt %d, retrying", attempt);
+
+                if (!sleep(INITIAL_BACKOFF_MILLIS << (attempt - 1))) {
+                    return false;
+                }
+            }
+        }
+
+        count(batch, "failed");
+        return true;
+    }
+
+    private static boolean sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static void count(List<StudyParticipantEvent> batch, String outcome) {
+        for (StudyParticipantEvent event : batch) {
+            StudyRegistrationMetrics.participantEvents(event.getTopic(), outcome, 1);
+        }
+    }
+}
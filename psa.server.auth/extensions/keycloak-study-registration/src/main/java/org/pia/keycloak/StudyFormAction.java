@@ -12,22 +12,34 @@ import org.keycloak.authentication.ValidationContext;
 import org.keycloak.forms.login.LoginFormsProvider;
 import org.keycloak.models.*;
 import org.keycloak.models.utils.FormMessage;
-import org.keycloak.sessions.AuthenticationSessionModel;
 
 import jakarta.ws.rs.core.MultivaluedHashMap;
 import jakarta.ws.rs.core.MultivaluedMap;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 public class StudyFormAction implements FormAction {
     public static final String PARAM_STUDY = "study";
     public static final String ATTR_STUDY_NAME = "studyName";
+    public static final String ATTR_STUDY_SUBTITLE = "studySubtitle";
     public static final String FIELD_USER_ATTR_STUDY = "user.attributes.study";
     public static final String FIELD_EMAIL = "email";
+    public static final String USER_ATTR_STUDY = "study";
     private final StudyHelper studyHelper;
+    private final StudyRegistrationConfigOverrides configOverrides;
 
     public StudyFormAction(StudyHelper studyHelper) {
+        this(studyHelper, StudyRegistrationConfig.DEFAULT);
+    }
+
+    public StudyFormAction(StudyHelper studyHelper, StudyRegistrationConfig config) {
+        this(studyHelper, new StudyRegistrationConfigOverrides(config));
+    }
+
+    public StudyFormAction(StudyHelper studyHelper, StudyRegistrationConfigOverrides configOverrides) {
         this.studyHelper = studyHelper;
+        this.configOverrides = configOverrides;
     }
 
     @Override
@@ -36,8 +48,20 @@ public class StudyFormAction implements FormAction {
 
         if (study != null && !study.equals("")) {
             MultivaluedMap<String, String> formData = new MultivaluedHashMap<>();
-            GroupModel group = context.getSession().groups().getGroupById(context.getRealm(), study);
-            loginFormsProvider.setAttribute(ATTR_STUDY_NAME, group.getName());
+            StudyRegistrationContext registration = initRegistration(context, study);
+
+            // the form is rendered again after a failed validation, so a reserved slot is not needed anymore
+            if (isPostRequest(context)) {
+                studyHelper.releaseRegistrationSlot(registration.getReservationId());
+            }
+
+            String studyName = studyHelper.getStudyName();
+            loginFormsProvider.setAttribute(ATTR_STUDY_NAME, studyName);
+
+            if (studyName != null) {
+                RegistrationPageModelCache.INSTANCE.apply(context.getSession(), loginFormsProvider, "register-study", List.of(studyName),
+                        messages -> Map.of(ATTR_STUDY_SUBTITLE, messages.sanitize(messages.format("piaRegistrationSubtitle", studyName))));
+            }
             formData.putSingle(FIELD_USER_ATTR_STUDY, study);
 
             populateFields(context, formData);
@@ -47,25 +71,34 @@ public class StudyFormAction implements FormAction {
 
     @Override
     public void validate(ValidationContext context) {
+        long start = StudyRegistrationMetrics.start();
+        try {
+            validateStudy(context);
+        } finally {
+            StudyRegistrationMetrics.record(StudyRegistrationMetrics.PHASE_VALIDATE, studyHelper.getStudyLabel(), start);
+        }
+    }
+
+    private void validateStudy(ValidationContext context) {
         MultivaluedMap<String, String> formData = context.getHttpRequest().getDecodedFormParameters();
-        RealmModel realm = context.getRealm();
         String study = context.getHttpRequest().getDecodedFormParameters().getFirst(FIELD_USER_ATTR_STUDY);
 
         if (study == null || study.equals("")) {
+            StudyRegistrationMetrics.reject(null, StudyRegistrationMessages.STUDY_MISSING);
             context.error(StudyRegistrationMessages.STUDY_MISSING);
             return;
         }
 
-        studyHelper.init(realm, study);
+        StudyRegistrationContext registration = initRegistration(context, study);
 
         List<FormMessage> errors = new ArrayList<>();
 
         if (!studyHelper.studyGroupIsOpen()) {
+            StudyRegistrationMetrics.reject(studyHelper.getStudyLabel(), StudyRegistrationMessages.STUDY_NOT_OPEN);
             context.error(StudyRegistrationMessages.STUDY_NOT_OPEN);
             errors.add(new FormMessage(StudyRegistrationMessages.STUDY_NOT_OPEN));
-        }
-
-        if (studyHelper.reachedRegistrationLimit()) {
+        } else if (!studyHelper.reserveRegistrationSlot(registration.getReservationId())) {
+            StudyRegistrationMetrics.reject(studyHelper.getStudyLabel(), StudyRegistrationMessages.LIMIT_REACHED);
             context.error(StudyRegistrationMessages.LIMIT_REACHED);
             errors.add(new FormMessage(StudyRegistrationMessages.LIMIT_REACHED));
         }
@@ -80,14 +113,22 @@ public class StudyFormAction implements FormAction {
 
     @Override
     public void success(FormContext formContext) {
+        long start = StudyRegistrationMetrics.start();
         String study = formContext.getHttpRequest().getDecodedFormParameters().getFirst(FIELD_USER_ATTR_STUDY);
 
-        GroupModel group = formContext.getSession().groups().getGroupById(formContext.getRealm(), study);
-        formContext.getUser().joinGroup(group);
+        StudyRegistrationContext registration = initRegistration(formContext, study);
+
+        formContext.getUser().joinGroup(registration.getStudyGroup());
+        studyHelper.commitRegistrationSlot(registration.getReservationId());
 
-        RoleModel role = formContext.getSession().roles().getRealmRole(formContext.getRealm(), "Proband");
-        formContext.getUser().grantRole(role);
+        formContext.getUser().grantRole(registration.getProbandRole());
         formContext.getUser().addRequiredAction(VerifyEmailWithUsernameAcknowledgement.PROVIDER_ID);
+
+        String username = formContext.getUser().getUsername();
+        StudyRegistrationEventListenerProvider.publish(formContext.getSession(),
+                () -> new StudyRegisteredEvent(username, registration.getStudyGroup().getName()));
+
+        StudyRegistrationMetrics.record(StudyRegistrationMetrics.PHASE_SUCCESS, studyHelper.getStudyLabel(), start);
     }
 
     @Override
@@ -110,12 +151,26 @@ public class StudyFormAction implements FormAction {
 
     }
 
+    private StudyRegistrationContext initRegistration(FormContext context, String study) {
+        StudyRegistrationConfig executionConfig = configOverrides.get(context.getAuthenticatorConfig());
+        StudyRegistrationContext registration = StudyRegistrationContext.of(context, study, executionConfig.getProbandRole());
+
+        studyHelper.configure(executionConfig);
+        studyHelper.init(registration);
+
+        return registration;
+    }
+
     private String getStudyKey(FormContext context) {
         return context.getAuthenticationSession().getUserSessionNotes().get(PARAM_STUDY);
     }
 
+    private boolean isPostRequest(FormContext context) {
+        return context.getHttpRequest().getHttpMethod().equalsIgnoreCase("post");
+    }
+
     private void populateFields(FormContext context, MultivaluedMap<String, String> formData) {
-        if(context.getHttpRequest().getHttpMethod().equalsIgnoreCase("post")) {
+        if(isPostRequest(context)) {
             MultivaluedMap<String, String> currentFormData = context.getHttpRequest().getDecodedFormParameters();
             if (currentFormData.containsKey(FIELD_EMAIL)) {
                 formData.putSingle(FIELD_EMAIL, currentFormData.getFirst(FIELD_EMAIL));
@@ -12,16 +12,28 @@ import org.keycloak.authentication.FormActionFactory;
 import org.keycloak.models.AuthenticationExecutionModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.services.scheduled.ClusterAwareScheduledTaskRunner;
+import org.keycloak.timer.TimerProvider;
 
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class StudyFormActionFactory implements FormActionFactory {
+    public static final String CONFIG_RESERVATION_SWEEP_INTERVAL_SECONDS = "reservationSweepIntervalSeconds";
+    public static final String CONFIG_RESERVATION_SWEEP_BATCH_SIZE = "reservationSweepBatchSize";
+
     private static final AuthenticationExecutionModel.Requirement[] REQUIREMENT_CHOICES = {
             AuthenticationExecutionModel.Requirement.REQUIRED,
             AuthenticationExecutionModel.Requirement.DISABLED
     };
 
+    private StudyRegistrationConfig config = StudyRegistrationConfig.DEFAULT;
+    private StudyRegistrationConfigOverrides configOverrides = new StudyRegistrationConfigOverrides(config);
+    private long reservationSweepIntervalMillis = StudyRegistrationReservationSweeper.DEFAULT_INTERVAL_MILLIS;
+    private int reservationSweepBatchSize = StudyRegistrationReservationSweeper.DEFAULT_BATCH_SIZE;
+
     @Override
     public String getDisplayType() {
         return "Study Registration Validator";
@@ -39,7 +51,7 @@ public class StudyFormActionFactory implements FormActionFactory {
 
     @Override
     public boolean isConfigurable() {
-        return false;
+        return true;
     }
 
     @Override
@@ -54,22 +66,39 @@ public class StudyFormActionFactory implements FormActionFactory {
 
     @Override
     public List<ProviderConfigProperty> getConfigProperties() {
-        return null;
+        return StudyRegistrationConfig.getConfigProperties();
     }
 
     @Override
     public FormAction create(KeycloakSession keycloakSession) {
-        StudyHelper studyHelper = new StudyHelper(keycloakSession);
+        StudyHelper studyHelper = new StudyHelper(keycloakSession, config);
 
-        return new StudyFormAction(studyHelper);
+        return new StudyFormAction(studyHelper, configOverrides);
     }
 
     @Override
     public void init(Config.Scope scope) {
+        config = StudyRegistrationConfig.of(scope);
+        configOverrides = new StudyRegistrationConfigOverrides(config);
+        reservationSweepIntervalMillis = TimeUnit.SECONDS.toMillis(Math.max(1, scope.getLong(CONFIG_RESERVATION_SWEEP_INTERVAL_SECONDS,
+                TimeUnit.MILLISECONDS.toSeconds(StudyRegistrationReservationSweeper.DEFAULT_INTERVAL_MILLIS))));
+        reservationSweepBatchSize = Math.max(1, scope.getInt(CONFIG_RESERVATION_SWEEP_BATCH_SIZE,
+                StudyRegistrationReservationSweeper.DEFAULT_BATCH_SIZE));
     }
 
     @Override
     public void postInit(KeycloakSessionFactory keycloakSessionFactory) {
+        KeycloakModelUtils.runJobInTransaction(keycloakSessionFactory, session -> {
+            TimerProvider timer = session.getProvider(TimerProvider.class);
+
+            if (timer != null) {
+                StudyRegistrationReservationSweeper task = new StudyRegistrationReservationSweeper(
+                        config.getReconciliationIntervalMillis(), reservationSweepBatchSize);
+                // the reservations are shared by the cluster, so one node sweeps them per interval
+                timer.schedule(new ClusterAwareScheduledTaskRunner(keycloakSessionFactory, task, reservationSweepIntervalMillis),
+                        reservationSweepIntervalMillis, StudyRegistrationReservationSweeper.TASK_NAME);
+            }
+        });
     }
 
     @Override
@@ -0,0 +1,32 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.keycloak.cluster.ClusterEvent;
+
+public class StudyGroupInvalidationEvent implements ClusterEvent {
+    private static final long serialVersionUID = 1L;
+
+    private final String realmId;
+    private final String groupId;
+
+    public StudyGroupInvalidationEvent(String realmId, String groupId) {
+        this.realmId = realmId;
+        this.groupId = groupId;
+    }
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    /**
+     * @return the changed group or null if all groups of the realm should be invalidated
+     */
+    public String getGroupId() {
+        return groupId;
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.keycloak.models.GroupModel;
+
+/**
+ * Immutable snapshot of the registration relevant attributes of a study group.
+ */
+public final class StudyGroupMetadata {
+    private final String id;
+    private final String name;
+    private final boolean open;
+    private final int registrationLimit;
+
+    public StudyGroupMetadata(String id, String name, boolean open, int registrationLimit) {
+        this.id = id;
+        this.name = name;
+        this.open = open;
+        this.registrationLimit = registrationLimit;
+    }
+
+    public static StudyGroupMetadata of(GroupModel group, String registrationLimitKey) {
+        String registrationLimitAttr = group.getFirstAttribute(registrationLimitKey);
+        int registrationLimit = -1;
+
+        if (registrationLimitAttr != null && !registrationLimitAttr.equals("")) {
+            registrationLimit = Integer.parseInt(registrationLimitAttr);
+        }
+
+        return new StudyGroupMetadata(group.getId(), group.getName(), registrationLimitAttr != null, registrationLimit);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public int getRegistrationLimit() {
+        return registrationLimit;
+    }
+}
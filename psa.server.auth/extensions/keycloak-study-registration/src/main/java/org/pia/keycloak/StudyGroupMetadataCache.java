@@ -0,0 +1,104 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.RealmModel;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Short-lived cache of study group metadata, shared by all registration providers of a node.
+ * Entries are invalidated by {@link StudyRegistrationEventListenerProvider} when a group is changed.
+ * <p>
+ * Unknown and closed studies, e.g. of crawlers or stale links, are cached apart with a shorter time to live,
+ * so they cannot evict the open studies. A flood of unknown study ids evicts the least recently used of them
+ * in constant time.
+ */
+public class StudyGroupMetadataCache {
+    public static final long DEFAULT_TIME_TO_LIVE_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    public static final int DEFAULT_MAX_SIZE = 1000;
+    public static final long DEFAULT_NEGATIVE_TIME_TO_LIVE_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    public static final int DEFAULT_NEGATIVE_MAX_SIZE = 10_000;
+    public static final StudyGroupMetadataCache INSTANCE = new StudyGroupMetadataCache(DEFAULT_TIME_TO_LIVE_MILLIS, DEFAULT_MAX_SIZE);
+    private static final StudyGroupMetadata UNKNOWN = new StudyGroupMetadata(null, null, false, -1);
+
+    private final ExpiringCache<String, StudyGroupMetadata> cache;
+    private final ExpiringCache<String, StudyGroupMetadata> negativeCache;
+    private final long timeToLiveMillis;
+    private final long negativeTimeToLiveMillis;
+
+    public StudyGroupMetadataCache(long timeToLiveMillis, int maxSize) {
+        this(timeToLiveMillis, maxSize, DEFAULT_NEGATIVE_TIME_TO_LIVE_MILLIS, DEFAULT_NEGATIVE_MAX_SIZE);
+    }
+
+    public StudyGroupMetadataCache(long timeToLiveMillis, int maxSize, long negativeTimeToLiveMillis, int negativeMaxSize) {
+        this.timeToLiveMillis = timeToLiveMillis;
+        this.negativeTimeToLiveMillis = negativeTimeToLiveMillis;
+        this.cache = new ExpiringCache<>(timeToLiveMillis, maxSize);
+        this.negativeCache = new ExpiringCache<>(negativeTimeToLiveMillis, negativeMaxSize);
+    }
+
+    public StudyGroupMetadata get(RealmModel realm, String groupId, String registrationLimitKey, Supplier<GroupModel> loader) {
+        return get(realm, groupId, registrationLimitKey, timeToLiveMillis, loader);
+    }
+
+    /**
+     * @return null if the study group does not exist
+     */
+    public StudyGroupMetadata get(RealmModel realm, String groupId, String registrationLimitKey, long timeToLiveMillis,
+                                  Supplier<GroupModel> loader) {
+        String key = getKey(realm.getId(), groupId) + registrationLimitKey;
+        StudyGroupMetadata metadata = negativeCache.get(key);
+
+        if (metadata != null) {
+            StudyRegistrationMetrics.negativeCacheHit(metadata == UNKNOWN ? "unknown" : "closed");
+            return metadata == UNKNOWN ? null : metadata;
+        }
+
+        metadata = cache.get(key);
+
+        if (metadata != null) {
+            return metadata;
+        }
+
+        GroupModel group = loader.get();
+        metadata = group != null ? StudyGroupMetadata.of(group, registrationLimitKey) : null;
+
+        if (metadata != null && metadata.isOpen()) {
+            cache.put(key, metadata, timeToLiveMillis);
+        } else {
+            negativeCache.put(key, metadata != null ? metadata : UNKNOWN, Math.min(negativeTimeToLiveMillis, timeToLiveMillis));
+        }
+
+        return metadata;
+    }
+
+    /**
+     * @return the cached metadata of an open study group without loading it, null if it is not cached
+     */
+    public StudyGroupMetadata peek(RealmModel realm, String groupId, String registrationLimitKey) {
+        return cache.get(getKey(realm.getId(), groupId) + registrationLimitKey);
+    }
+
+    public void invalidate(String realmId, String groupId) {
+        String prefix = getKey(realmId, groupId);
+        cache.invalidateIf(key -> key.startsWith(prefix));
+        negativeCache.invalidateIf(key -> key.startsWith(prefix));
+    }
+
+    public void invalidateRealm(String realmId) {
+        String prefix = realmId + ":";
+        cache.invalidateIf(key -> key.startsWith(prefix));
+        negativeCache.invalidateIf(key -> key.startsWith(prefix));
+    }
+
+    private static String getKey(String realmId, String groupId) {
+        return realmId + ":" + groupId + ":";
+    }
+}
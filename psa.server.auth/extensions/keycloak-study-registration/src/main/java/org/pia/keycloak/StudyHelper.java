@@ -7,30 +7,88 @@
 package org.pia.keycloak;
 
 import org.keycloak.models.*;
-
-import java.util.HashSet;
+import org.keycloak.models.utils.KeycloakModelUtils;
 
 public class StudyHelper {
     public static String REGISTRATION_LIMIT_KEY = "maxAccountsCount";
     private final KeycloakSession session;
+    private final StudyGroupMetadataCache metadataCache;
+    private final ApproximateRegistrationCounter approximateCounter;
+    private StudyRegistrationCounter registrationCounter;
+    private StudyRegistrationConfig config;
     private String study;
     private RealmModel realm;
 
+    private StudyGroupMetadata studyGroupMetadata;
     private GroupModel studyGroup;
 
     public StudyHelper(KeycloakSession session) {
+        this(session, StudyRegistrationConfig.DEFAULT);
+    }
+
+    public StudyHelper(KeycloakSession session, StudyRegistrationConfig config) {
+        this(session, config,
+                new StudyRegistrationCounter(ClusterCache.of(session), config.getReconciliationIntervalMillis()),
+                StudyGroupMetadataCache.INSTANCE);
+    }
+
+    public StudyHelper(KeycloakSession session, StudyRegistrationCounter registrationCounter, StudyGroupMetadataCache metadataCache) {
+        this(session, StudyRegistrationConfig.DEFAULT, registrationCounter, metadataCache);
+    }
+
+    public StudyHelper(KeycloakSession session, StudyRegistrationConfig config, StudyRegistrationCounter registrationCounter,
+                       StudyGroupMetadataCache metadataCache) {
+        this(session, config, registrationCounter, metadataCache, ApproximateRegistrationCounter.INSTANCE);
+    }
+
+    public StudyHelper(KeycloakSession session, StudyRegistrationConfig config, StudyRegistrationCounter registrationCounter,
+                       StudyGroupMetadataCache metadataCache, ApproximateRegistrationCounter approximateCounter) {
         this.session = session;
+        this.config = config;
+        this.registrationCounter = registrationCounter;
+        this.metadataCache = metadataCache;
+        this.approximateCounter = approximateCounter;
+    }
+
+    /**
+     * Uses the configuration of the current authentication execution, has to be called before init.
+     */
+    public void configure(StudyRegistrationConfig config) {
+        this.config = config;
+        this.registrationCounter = registrationCounter.withReconciliationInterval(config.getReconciliationIntervalMillis());
+    }
+
+    public StudyRegistrationConfig getConfig() {
+        return config;
     }
 
     public void init(RealmModel realm, String study) {
         this.realm = realm;
         this.study = study;
+        this.studyGroup = null;
+
+        this.studyGroupMetadata = metadataCache.get(realm, study, config.getRegistrationLimitKey(),
+                config.getCacheTimeToLiveMillis(), this::getStudyGroup);
+    }
+
+    public void init(StudyRegistrationContext registration) {
+        this.realm = registration.getRealm();
+        this.study = registration.getStudy();
+        this.studyGroup = null;
 
-        this.studyGroup = this.session.groups().getGroupById(realm, study);
+        this.studyGroupMetadata = metadataCache.get(realm, study, config.getRegistrationLimitKey(),
+                config.getCacheTimeToLiveMillis(), registration::getStudyGroup);
+    }
+
+    /**
+     * Whether the study is cached as open, without looking it up.
+     */
+    public boolean isKnownOpenStudy(RealmModel realm, String study) {
+        return metadataCache.peek(realm, study, config.getRegistrationLimitKey()) != null;
     }
 
     public boolean studyGroupIsOpen() {
-        return studyGroup != null && studyGroup.getFirstAttribute(REGISTRATION_LIMIT_KEY) != null;
+        return studyGroupMetadata != null && studyGroupMetadata.isOpen();
     }
 
     public boolean reachedRegistrationLimit() {
@@ -40,23 +98,154 @@ public class StudyHelper {
             return false;
         }
 
+        if (isFarFromLimit(limit)) {
+            return false;
+        }
+
         return getUsersCount() >= limit;
     }
 
-    public int getUsersCount() {
-        HashSet<String> studies = new HashSet<>();
-        studies.add(study);
+    /**
+     * Loads the group itself only when it is needed, e.g. to join it.
+     */
+    public GroupModel getStudyGroup() {
+        if (studyGroup == null) {
+            studyGroup = session.groups().getGroupById(realm, study);
+        }
 
-        return session.users().getUsersCount(realm, studies);
+        return studyGroup;
     }
 
-    public int getRegistrationLimit() {
-        String registrationLimitAttr = studyGroup.getFirstAttribute(REGISTRATION_LIMIT_KEY);
+    /**
+     * The study as metrics label, null if the study group does not exist.
+     */
+    public String getStudyLabel() {
+        return studyGroupMetadata != null ? study : null;
+    }
+
+    public String getStudyName() {
+        return studyGroupMetadata != null ? studyGroupMetadata.getName() : null;
+    }
+
+    public int getUsersCount() {
+        return registrationCounter.get(realm.getId(), study, this::countUsersInDatabase);
+    }
+
+    /**
+     * Registration slots which are neither taken by registered users nor reserved by running registrations.
+     *
+     * @return -1 if the study has no registration limit
+     */
+    public int getRemainingCapacity() {
+        int limit = getRegistrationLimit();
 
-        if(registrationLimitAttr == null || registrationLimitAttr.equals("")) {
+        if (limit == -1) {
             return -1;
         }
 
-       return Integer.parseInt(registrationLimitAttr);
+        if (isFarFromLimit(limit)) {
+            return limit - getApproximateUsersCount();
+        }
+
+        return Math.max(0, limit - registrationCounter.getReserved(realm.getId(), study, this::countUsersInDatabase));
+    }
+
+    public boolean reserveRegistrationSlot(String reservationId) {
+        int limit = getRegistrationLimit();
+
+        if(limit == -1) {
+            return true;
+        }
+
+        if (isFarFromLimit(limit)) {
+            return true;
+        }
+
+        return registrationCounter.reserve(realm.getId(), study, reservationId, limit, this::countUsersInDatabase);
+    }
+
+    public void commitRegistrationSlot(String reservationId) {
+        // runs in the transaction of the join, so the stored count is changed along with the membership
+        StudyRegistrationCountStore.of(session).add(study, 1);
+
+        String realmId = realm.getId();
+        String study = this.study;
+        String studyLabel = getStudyLabel();
+        boolean approximate = config.getLimitMode() == StudyRegistrationConfig.LimitMode.APPROXIMATE;
+        StudyRegistrationCounter registrationCounter = this.registrationCounter;
+        KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
+
+        // the cached counts only change once the membership has been committed, a rollback gives back the slot
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                if (approximate) {
+                    approximateCounter.increment(realmId, study);
+                }
+
+                // commits the reservation if there is one, otherwise only increments the count
+                registrationCounter.commit(realmId, study, reservationId,
+                        () -> countUsersInOwnTransaction(sessionFactory, realmId, study, studyLabel));
+            }
+
+            @Override
+            protected void rollbackImpl() {
+                registrationCounter.release(realmId, study, reservationId);
+            }
+        });
+    }
+
+    public void releaseRegistrationSlot(String reservationId) {
+        registrationCounter.release(realm.getId(), study, reservationId);
+    }
+
+    /**
+     * In APPROXIMATE mode the node local count is used, as long as it is not within the exact count margin of the limit.
+     */
+    private boolean isFarFromLimit(int limit) {
+        if (config.getLimitMode() != StudyRegistrationConfig.LimitMode.APPROXIMATE) {
+            return false;
+        }
+
+        return limit - getApproximateUsersCount() > config.getExactCountMargin();
+    }
+
+    public int getApproximateUsersCount() {
+        String realmId = realm.getId();
+        String study = this.study;
+        String studyLabel = getStudyLabel();
+        KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
+
+        return approximateCounter.get(realmId, study, config.getApproximateRefreshIntervalMillis(), this::countUsersInDatabase,
+                () -> countUsersInOwnTransaction(sessionFactory, realmId, study, studyLabel));
+    }
+
+    /**
+     * Counts the users outside of the current request, e.g. in the background or after its transaction has ended.
+     */
+    private static int countUsersInOwnTransaction(KeycloakSessionFactory sessionFactory, String realmId, String study,
+                                                  String studyLabel) {
+        return KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, jobSession -> {
+            long start = StudyRegistrationMetrics.start();
+            try {
+                RealmModel jobRealm = jobSession.realms().getRealm(realmId);
+                return jobRealm != null ? StudyRegistrationCountStore.of(jobSession).count(jobRealm, study) : 0;
+            } finally {
+                StudyRegistrationMetrics.record(StudyRegistrationMetrics.PHASE_COUNT_USERS, studyLabel, start);
+            }
+        });
+    }
+
+    public int countUsersInDatabase() {
+        long start = StudyRegistrationMetrics.start();
+        try {
+            return StudyRegistrationCountStore.of(session).count(realm, study);
+        } finally {
+            StudyRegistrationMetrics.record(StudyRegistrationMetrics.PHASE_COUNT_USERS, getStudyLabel(), start);
+        }
+    }
+
+    public int getRegistrationLimit() {
+        return studyGroupMetadata != null ? studyGroupMetadata.getRegistrationLimit() : -1;
     }
 }
@@ -0,0 +1,18 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+/**
+ * Event of a study participant, which is published as message of its topic in the format of psa.lib.messagequeue.
+ */
+public interface StudyParticipantEvent {
+
+    @JsonIgnore
+    String getTopic();
+}
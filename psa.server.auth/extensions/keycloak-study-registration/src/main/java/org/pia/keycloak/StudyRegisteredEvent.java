@@ -0,0 +1,35 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+/**
+ * A participant registered for a study, published as `ProbandRegisteredMessage`.
+ */
+public class StudyRegisteredEvent implements StudyParticipantEvent {
+    public static final String TOPIC = "proband.registered";
+
+    private final String username;
+    private final String studyName;
+
+    public StudyRegisteredEvent(String username, String studyName) {
+        this.username = username;
+        this.studyName = studyName;
+    }
+
+    @Override
+    public String getTopic() {
+        return TOPIC;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getStudyName() {
+        return studyName;
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.keycloak.Config;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.provider.ProviderConfigurationBuilder;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Immutable configuration of the study registration. The provider factories read it once from the
+ * server configuration, the configuration of an authentication execution may override it per realm.
+ */
+public final class StudyRegistrationConfig {
+    public static final String CACHE_TTL = "studyCacheTtlSeconds";
+    public static final String RECONCILIATION_INTERVAL = "countReconciliationIntervalSeconds";
+    public static final String LIMIT_MODE = "limitMode";
+    public static final String PROBAND_ROLE = "probandRole";
+    public static final String REGISTRATION_LIMIT_ATTRIBUTE = "registrationLimitAttribute";
+    public static final String APPROXIMATE_REFRESH_INTERVAL = "approximateCountRefreshSeconds";
+    public static final String EXACT_COUNT_MARGIN = "exactCountMargin";
+
+    public enum LimitMode {
+        /**
+         * Reserves a registration slot for every submitted registration, the limit is never exceeded.
+         */
+        STRICT,
+        /**
+         * Compares a node local count, which is refreshed in the background, with the limit. Only within the
+         * exact count margin of the limit, slots are reserved like in STRICT mode. Registrations on other
+         * nodes are only seen after a refresh, so the limit may be exceeded slightly, if the margin is too small.
+         */
+        APPROXIMATE
+    }
+
+    public static final StudyRegistrationConfig DEFAULT = new StudyRegistrationConfig(
+            StudyGroupMetadataCache.DEFAULT_TIME_TO_LIVE_MILLIS,
+            StudyRegistrationCounter.DEFAULT_RECONCILIATION_INTERVAL_MILLIS,
+            LimitMode.STRICT,
+            StudyRegistrationContext.PROBAND_ROLE,
+            StudyHelper.REGISTRATION_LIMIT_KEY,
+            TimeUnit.SECONDS.toMillis(30),
+            100);
+
+    private final long cacheTimeToLiveMillis;
+    private final long reconciliationIntervalMillis;
+    private final LimitMode limitMode;
+    private final String probandRole;
+    private final String registrationLimitKey;
+    private final long approximateRefreshIntervalMillis;
+    private final int exactCountMargin;
+
+    public StudyRegistrationConfig(long cacheTimeToLiveMillis, long reconciliationIntervalMillis, LimitMode limitMode,
+                                   String probandRole, String registrationLimitKey) {
+        this(cacheTimeToLiveMillis, reconciliationIntervalMillis, limitMode, probandRole, registrationLimitKey,
+                DEFAULT.approximateRefreshIntervalMillis, DEFAULT.exactCountMargin);
+    }
+
+    public StudyRegistrationConfig(long cacheTimeToLiveMillis, long reconciliationIntervalMillis, LimitMode limitMode,
+                                   String probandRole, String registrationLimitKey,
+                                   long approximateRefreshIntervalMillis, int exactCountMargin) {
+        this.cacheTimeToLiveMillis = cacheTimeToLiveMillis;
+        this.reconciliationIntervalMillis = reconciliationIntervalMillis;
+        this.limitMode = limitMode;
+        this.probandRole = probandRole;
+        this.registrationLimitKey = registrationLimitKey;
+        this.approximateRefreshIntervalMillis = approximateRefreshIntervalMillis;
+        this.exactCountMargin = exactCountMargin;
+    }
+
+    public static StudyRegistrationConfig of(Config.Scope scope) {
+        return new StudyRegistrationConfig(
+                TimeUnit.SECONDS.toMillis(scope.getLong(CACHE_TTL, TimeUnit.MILLISECONDS.toSeconds(DEFAULT.cacheTimeToLiveMillis))),
+                TimeUnit.SECONDS.toMillis(scope.getLong(RECONCILIATION_INTERVAL, TimeUnit.MILLISECONDS.toSeconds(DEFAULT.reconciliationIntervalMillis))),
+                parseLimitMode(scope.get(LIMIT_MODE, DEFAULT.limitMode.name())),
+                scope.get(PROBAND_ROLE, DEFAULT.probandRole),
+                scope.get(REGISTRATION_LIMIT_ATTRIBUTE, DEFAULT.registrationLimitKey),
+                TimeUnit.SECONDS.toMillis(scope.getLong(APPROXIMATE_REFRESH_INTERVAL, TimeUnit.MILLISECONDS.toSeconds(DEFAULT.approximateRefreshIntervalMillis))),
+                scope.getInt(EXACT_COUNT_MARGIN, DEFAULT.exactCountMargin));
+    }
+
+    /**
+     * Applies the configuration of an authentication execution, empty values keep the current configuration.
+     * Invalid values are logged once and keep the current configuration as well.
+     * {@link StudyRegistrationConfigOverrides} caches the result.
+     */
+    public StudyRegistrationConfig withOverrides(AuthenticatorConfigModel configModel) {
+        if (configModel == null || configModel.getConfig() == null) {
+            return this;
+        }
+
+        return parseOverrides(configModel.getConfig());
+    }
+
+    private StudyRegistrationConfig parseOverrides(Map<String, String> config) {
+        if (isEmpty(config.get(CACHE_TTL)) && isEmpty(config.get(RECONCILIATION_INTERVAL)) && isEmpty(config.get(LIMIT_MODE))
+                && isEmpty(config.get(PROBAND_ROLE)) && isEmpty(config.get(REGISTRATION_LIMIT_ATTRIBUTE))
+                && isEmpty(config.get(APPROXIMATE_REFRESH_INTERVAL)) && isEmpty(config.get(EXACT_COUNT_MARGIN))) {
+            return this;
+        }
+
+        String limitMode = config.get(LIMIT_MODE);
+        String probandRole = config.get(PROBAND_ROLE);
+        String registrationLimitKey = config.get(REGISTRATION_LIMIT_ATTRIBUTE);
+
+        return new StudyRegistrationConfig(
+                getMillis(config, CACHE_TTL, cacheTimeToLiveMillis, 0),
+                getMillis(config, RECONCILIATION_INTERVAL, reconciliationIntervalMillis, 1),
+                isEmpty(limitMode) ? this.limitMode : parseLimitMode(limitMode, this.limitMode),
+                isEmpty(probandRole) ? this.probandRole : probandRole.trim(),
+                isEmpty(registrationLimitKey) ? this.registrationLimitKey : registrationLimitKey.trim(),
+                getMillis(config, APPROXIMATE_REFRESH_INTERVAL, approximateRefreshIntervalMillis, 1),
+                ConfigValues.getInt(config, EXACT_COUNT_MARGIN, this.exactCountMargin, 0));
+    }
+
+    public static List<ProviderConfigProperty> getConfigProperties() {
+        return ProviderConfigurationBuilder.create()
+                .property()
+                .name(CACHE_TTL)
+                .label("Study cache time to live")
+                .helpText("Seconds the name, state and registration limit of a study are cached on each node. Leave empty to use the server configuration.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .add()
+                .property()
+                .name(RECONCILIATION_INTERVAL)
+                .label("Count reconciliation interval")
+                .helpText("Seconds after which the cached number of study participants is counted in the database again. Leave empty to use the server configuration.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .add()
+                .property()
+                .name(LIMIT_MODE)
+                .label("Limit mode")
+                .helpText("STRICT never exceeds the registration limit, APPROXIMATE uses a node local count far from the limit and may exceed it slightly.")
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .options(Arrays.stream(LimitMode.values()).map(Enum::name).collect(Collectors.toList()))
+                .add()
+                .property()
+                .name(PROBAND_ROLE)
+                .label("Proband role")
+                .helpText("Realm role granted to registered participants. Leave empty to use the server configuration.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .add()
+                .property()
+                .name(REGISTRATION_LIMIT_ATTRIBUTE)
+                .label("Registration limit attribute")
+                .helpText("Group attribute with the maximum number of participants of a study. Leave empty to use the server configuration.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .add()
+                .property()
+                .name(APPROXIMATE_REFRESH_INTERVAL)
+                .label("Approximate count refresh interval")
+                .helpText("Seconds after which the node local count of the APPROXIMATE mode is refreshed in the background. Leave empty to use the server configuration.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .add()
+                .property()
+                .name(EXACT_COUNT_MARGIN)
+                .label("Exact count margin")
+                .helpText("Number of participants below the registration limit from which the APPROXIMATE mode counts exactly. Leave empty to use the server configuration.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .add()
+                .build();
+    }
+
+    public long getCacheTimeToLiveMillis() {
+        return cacheTimeToLiveMillis;
+    }
+
+    public long getReconciliationIntervalMillis() {
+        return reconciliationIntervalMillis;
+    }
+
+    public LimitMode getLimitMode() {
+        return limitMode;
+    }
+
+    public String getProbandRole() {
+        return probandRole;
+    }
+
+    public String getRegistrationLimitKey() {
+        return registrationLimitKey;
+    }
+
+    public long getApproximateRefreshIntervalMillis() {
+        return approximateRefreshIntervalMillis;
+    }
+
+    public int getExactCountMargin() {
+        return exactCountMargin;
+    }
+
+    private static LimitMode parseLimitMode(String value) {
+        return LimitMode.valueOf(value.trim().toUpperCase(Locale.ROOT));
+    }
+
+    private static LimitMode parseLimitMode(String value, LimitMode current) {
+        try {
+            return parseLimitMode(value);
+        } catch (IllegalArgumentException e) {
+            return ConfigValues.invalid(LIMIT_MODE, value, current);
+        }
+    }
+
+    private static long getMillis(Map<String, String> config, String secondsKey, long currentMillis, long minSeconds) {
+        if (isEmpty(config.get(secondsKey))) {
+            return currentMillis;
+        }
+
+        return TimeUnit.SECONDS.toMillis(ConfigValues.getLong(config, secondsKey,
+                TimeUnit.MILLISECONDS.toSeconds(currentMillis), minSeconds));
+    }
+
+    private static boolean isEmpty(String value) {
+        return value == null || value.trim().isEmpty();
+    }
+}
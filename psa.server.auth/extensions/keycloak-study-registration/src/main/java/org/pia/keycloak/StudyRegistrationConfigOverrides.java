@@ -0,0 +1,68 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.keycloak.models.AuthenticatorConfigModel;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches the configurations of authentication executions applied to the server configuration by their id, so an
+ * execution configuration is only parsed again after it changed. Held by the provider factories, which share one
+ * instance with all providers they create.
+ */
+public class StudyRegistrationConfigOverrides {
+    public static final long DEFAULT_TIME_TO_LIVE_MILLIS = TimeUnit.HOURS.toMillis(1);
+    public static final int DEFAULT_MAX_SIZE = 1000;
+
+    private final StudyRegistrationConfig config;
+    private final ExpiringCache<String, Overrides> cache;
+
+    public StudyRegistrationConfigOverrides(StudyRegistrationConfig config) {
+        this(config, DEFAULT_TIME_TO_LIVE_MILLIS, DEFAULT_MAX_SIZE);
+    }
+
+    public StudyRegistrationConfigOverrides(StudyRegistrationConfig config, long timeToLiveMillis, int maxSize) {
+        this.config = config;
+        this.cache = new ExpiringCache<>(timeToLiveMillis, maxSize);
+    }
+
+    public StudyRegistrationConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * @see StudyRegistrationConfig#withOverrides(AuthenticatorConfigModel)
+     */
+    public StudyRegistrationConfig get(AuthenticatorConfigModel configModel) {
+        if (configModel == null || configModel.getConfig() == null || configModel.getId() == null) {
+            return config.withOverrides(configModel);
+        }
+
+        Map<String, String> values = configModel.getConfig();
+        Overrides overrides = cache.get(configModel.getId());
+
+        if (overrides == null || !overrides.source.equals(values)) {
+            overrides = new Overrides(new HashMap<>(values), config.withOverrides(configModel));
+            cache.put(configModel.getId(), overrides);
+        }
+
+        return overrides.config;
+    }
+
+    private static final class Overrides {
+        private final Map<String, String> source;
+        private final StudyRegistrationConfig config;
+
+        private Overrides(Map<String, String> source, StudyRegistrationConfig config) {
+            this.source = source;
+            this.config = config;
+        }
+    }
+}
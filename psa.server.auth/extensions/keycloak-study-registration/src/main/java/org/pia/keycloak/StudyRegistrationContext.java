@@ -0,0 +1,91 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.keycloak.authentication.FormContext;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.sessions.AuthenticationSessionModel;
+
+/**
+ * Models resolved for one request of the registration form. The context is attached to the current Keycloak
+ * session, so it lives as long as the request, not as long as the authentication session. The phases of the form
+ * within a request, e.g. validate and success of the submitted form, share it and every model is looked up at most
+ * once per request. Models are bound to the Keycloak session of their request, so a later request of the same
+ * registration looks them up again. Only the study group metadata is shared across requests, by the
+ * {@link StudyGroupMetadataCache}.
+ */
+public class StudyRegistrationContext {
+    public static final String PROBAND_ROLE = "Proband";
+    private static final String SESSION_ATTRIBUTE_PREFIX = "pia-study-registration-context:";
+
+    private final KeycloakSession session;
+    private final RealmModel realm;
+    private final String study;
+    private final String reservationId;
+    private final String probandRoleName;
+
+    private GroupModel studyGroup;
+    private RoleModel probandRole;
+
+    private StudyRegistrationContext(KeycloakSession session, RealmModel realm, String study, String reservationId, String probandRoleName) {
+        this.session = session;
+        this.realm = realm;
+        this.study = study;
+        this.reservationId = reservationId;
+        this.probandRoleName = probandRoleName;
+    }
+
+    public static StudyRegistrationContext of(FormContext context, String study) {
+        return of(context, study, PROBAND_ROLE);
+    }
+
+    public static StudyRegistrationContext of(FormContext context, String study, String probandRoleName) {
+        AuthenticationSessionModel authSession = context.getAuthenticationSession();
+        String reservationId = authSession.getParentSession().getId() + "." + authSession.getTabId();
+        String attribute = SESSION_ATTRIBUTE_PREFIX + reservationId;
+
+        StudyRegistrationContext registration = context.getSession().getAttribute(attribute, StudyRegistrationContext.class);
+
+        if (registration == null || !registration.study.equals(study) || !registration.probandRoleName.equals(probandRoleName)) {
+            registration = new StudyRegistrationContext(context.getSession(), context.getRealm(), study, reservationId, probandRoleName);
+            context.getSession().setAttribute(attribute, registration);
+        }
+
+        return registration;
+    }
+
+    public RealmModel getRealm() {
+        return realm;
+    }
+
+    public String getStudy() {
+        return study;
+    }
+
+    public String getReservationId() {
+        return reservationId;
+    }
+
+    public GroupModel getStudyGroup() {
+        if (studyGroup == null) {
+            studyGroup = session.groups().getGroupById(realm, study);
+        }
+
+        return studyGroup;
+    }
+
+    public RoleModel getProbandRole() {
+        if (probandRole == null) {
+            probandRole = session.roles().getRealmRole(realm, probandRoleName);
+        }
+
+        return probandRole;
+    }
+}
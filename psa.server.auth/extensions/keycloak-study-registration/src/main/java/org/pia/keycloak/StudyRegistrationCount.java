@@ -0,0 +1,76 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Immutable base of the count of registered users of a study. The members counted in the database are split into
+ * this base and the changes of the {@link StudyRegistrationStripe}s, whose counts at the time of the reconciliation
+ * are kept as snapshot: the database count equals the base plus the sum of the snapshot.
+ */
+public final class StudyRegistrationCount implements Serializable {
+    private static final long serialVersionUID = 3L;
+
+    private final int base;
+    private final long reconciledAt;
+    private final int[] stripeCounts;
+
+    public StudyRegistrationCount(int countInDatabase, long reconciledAt, int[] stripeCounts) {
+        this.base = countInDatabase - Arrays.stream(stripeCounts).sum();
+        this.reconciledAt = reconciledAt;
+        this.stripeCounts = stripeCounts.clone();
+    }
+
+    public int getBase() {
+        return base;
+    }
+
+    public long getReconciledAt() {
+        return reconciledAt;
+    }
+
+    public int getStripes() {
+        return stripeCounts.length;
+    }
+
+    /**
+     * Count of the stripe when the base was reconciled. It is used for a stripe, which expired since then.
+     */
+    public int getStripeCount(int stripe) {
+        return stripeCounts[stripe];
+    }
+
+    /**
+     * The slots a stripe may use: its count at the reconciliation plus its share of the remaining capacity.
+     * The capacities of all stripes add up to the limit, so a stripe has to be full before another one is used.
+     */
+    public int getCapacity(int stripe, int limit) {
+        int remaining = Math.max(0, limit - base - Arrays.stream(stripeCounts).sum());
+
+        return stripeCounts[stripe] + remaining / stripeCounts.length + (stripe < remaining % stripeCounts.length ? 1 : 0);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof StudyRegistrationCount)) {
+            return false;
+        }
+        StudyRegistrationCount that = (StudyRegistrationCount) o;
+        return base == that.base && reconciledAt == that.reconciledAt && Arrays.equals(stripeCounts, that.stripeCounts);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(base, reconciledAt, Arrays.hashCode(stripeCounts));
+    }
+}
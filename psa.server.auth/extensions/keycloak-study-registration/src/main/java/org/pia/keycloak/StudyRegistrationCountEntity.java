@@ -0,0 +1,75 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import jakarta.persistence.*;
+
+/**
+ * Number of members of a study group, maintained along with the group memberships,
+ * so that counting them is a primary key lookup.
+ */
+@Entity
+@Table(name = "PIA_STUDY_REGISTRATION_COUNT")
+@NamedQueries({
+        @NamedQuery(name = "piaGetStudyMemberCount",
+                query = "select c.memberCount from StudyRegistrationCountEntity c where c.groupId = :groupId"),
+        @NamedQuery(name = "piaAddStudyMemberCount",
+                query = "update StudyRegistrationCountEntity c set c.memberCount = c.memberCount + :delta where c.groupId = :groupId"),
+        @NamedQuery(name = "piaGetStaleStudyMemberCounts",
+                query = "select c from StudyRegistrationCountEntity c where c.reconciledAt < :reconciledBefore"),
+        @NamedQuery(name = "piaGetStudyMemberCountsAfter",
+                query = "select c from StudyRegistrationCountEntity c where c.groupId > :afterGroupId order by c.groupId"),
+        @NamedQuery(name = "piaGetRealmStudyMemberCountsAfter",
+                query = "select c from StudyRegistrationCountEntity c where c.realmId = :realmId and c.groupId > :afterGroupId order by c.groupId"),
+})
+public class StudyRegistrationCountEntity {
+
+    @Id
+    @Column(name = "GROUP_ID", length = 36)
+    private String groupId;
+
+    @Column(name = "REALM_ID", length = 36, nullable = false)
+    private String realmId;
+
+    @Column(name = "MEMBER_COUNT", nullable = false)
+    private int memberCount;
+
+    @Column(name = "RECONCILED_AT", nullable = false)
+    private long reconciledAt;
+
+    public String getGroupId() {
+        return groupId;
+    }
+
+    public void setGroupId(String groupId) {
+        this.groupId = groupId;
+    }
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    public void setRealmId(String realmId) {
+        this.realmId = realmId;
+    }
+
+    public int getMemberCount() {
+        return memberCount;
+    }
+
+    public void setMemberCount(int memberCount) {
+        this.memberCount = memberCount;
+    }
+
+    public long getReconciledAt() {
+        return reconciledAt;
+    }
+
+    public void setReconciledAt(long reconciledAt) {
+        this.reconciledAt = reconciledAt;
+    }
+}
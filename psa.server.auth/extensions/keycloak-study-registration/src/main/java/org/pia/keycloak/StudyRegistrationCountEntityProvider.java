@@ -0,0 +1,35 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProvider;
+
+import java.util.List;
+
+public class StudyRegistrationCountEntityProvider implements JpaEntityProvider {
+    private static final String CHANGELOG_LOCATION = "META-INF/pia-study-registration-changelog.xml";
+
+    @Override
+    public List<Class<?>> getEntities() {
+        return List.of(StudyRegistrationCountEntity.class);
+    }
+
+    @Override
+    public String getChangelogLocation() {
+        return CHANGELOG_LOCATION;
+    }
+
+    @Override
+    public String getFactoryId() {
+        return StudyRegistrationCountEntityProviderFactory.PROVIDER_ID;
+    }
+
+    @Override
+    public void close() {
+
+    }
+}
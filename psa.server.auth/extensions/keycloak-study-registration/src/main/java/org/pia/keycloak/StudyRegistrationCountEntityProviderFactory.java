@@ -0,0 +1,60 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.keycloak.Config;
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProvider;
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.services.scheduled.ClusterAwareScheduledTaskRunner;
+import org.keycloak.timer.TimerProvider;
+
+import java.util.concurrent.TimeUnit;
+
+public class StudyRegistrationCountEntityProviderFactory implements JpaEntityProviderFactory {
+    public static final String PROVIDER_ID = "pia-study-registration-count";
+    public static final String CONFIG_RECONCILIATION_INTERVAL_SECONDS = "reconciliationIntervalSeconds";
+
+    private long reconciliationIntervalMillis = StudyRegistrationCountReconciliation.DEFAULT_INTERVAL_MILLIS;
+
+    @Override
+    public JpaEntityProvider create(KeycloakSession session) {
+        return new StudyRegistrationCountEntityProvider();
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        reconciliationIntervalMillis = TimeUnit.SECONDS.toMillis(Math.max(1, config.getLong(CONFIG_RECONCILIATION_INTERVAL_SECONDS,
+                TimeUnit.MILLISECONDS.toSeconds(StudyRegistrationCountReconciliation.DEFAULT_INTERVAL_MILLIS))));
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        KeycloakModelUtils.runJobInTransaction(factory, session -> {
+            TimerProvider timer = session.getProvider(TimerProvider.class);
+
+            if (timer != null) {
+                StudyRegistrationCountReconciliation task = new StudyRegistrationCountReconciliation(reconciliationIntervalMillis);
+                // runs on one node of the cluster per interval
+                timer.schedule(new ClusterAwareScheduledTaskRunner(factory, task, reconciliationIntervalMillis),
+                        reconciliationIntervalMillis, StudyRegistrationCountReconciliation.TASK_NAME);
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+}
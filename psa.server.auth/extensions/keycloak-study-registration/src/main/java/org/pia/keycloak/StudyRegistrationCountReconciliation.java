@@ -0,0 +1,63 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.jboss.logging.Logger;
+import org.keycloak.common.util.Time;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.timer.ScheduledTask;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Repairs drift of the stored member counts, e.g. of deleted users, whose memberships are removed without an event.
+ * Every count is reconciled in its own transaction, so its row is locked only briefly.
+ */
+public class StudyRegistrationCountReconciliation implements ScheduledTask {
+    public static final String TASK_NAME = "pia-study-registration-count-reconciliation";
+    public static final long DEFAULT_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(15);
+
+    private static final Logger logger = Logger.getLogger(StudyRegistrationCountReconciliation.class);
+
+    private final long intervalMillis;
+
+    public StudyRegistrationCountReconciliation(long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+    }
+
+    @Override
+    public void run(KeycloakSession session) {
+        KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
+        // counts which have been seeded shortly before are fresh enough
+        long reconciledBefore = Time.currentTimeMillis() - intervalMillis / 2;
+
+        for (StudyRegistrationCountEntity count : StudyRegistrationCountStore.of(session).getStale(reconciledBefore)) {
+            String realmId = count.getRealmId();
+            String groupId = count.getGroupId();
+
+            try {
+                KeycloakModelUtils.runJobInTransaction(sessionFactory, reconcileSession -> {
+                    RealmModel realm = reconcileSession.realms().getRealm(realmId);
+
+                    if (realm != null) {
+                        StudyRegistrationCountStore.of(reconcileSession).reconcile(realm, groupId);
+                    }
+                });
+            } catch (RuntimeException e) {
+                logger.warnf(e, "Could not reconcile member count of study %s", groupId);
+            }
+        }
+    }
+
+    @Override
+    public String getTaskName() {
+        return TASK_NAME;
+    }
+}
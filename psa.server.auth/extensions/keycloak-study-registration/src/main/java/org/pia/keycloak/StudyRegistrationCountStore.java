@@ -0,0 +1,185 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.LockModeType;
+import org.jboss.logging.Logger;
+import org.keycloak.common.util.Time;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Member counts of study groups in the PIA_STUDY_REGISTRATION_COUNT table.
+ * A count is seeded from the group memberships when it is read for the first time, is changed in the
+ * transaction which changes a membership and is reconciled with the memberships by
+ * {@link StudyRegistrationCountReconciliation}, e.g. to account for deleted users.
+ * <p>
+ * Without a JPA connection, e.g. with another user storage, the memberships are counted directly.
+ */
+public class StudyRegistrationCountStore {
+    private static final Logger logger = Logger.getLogger(StudyRegistrationCountStore.class);
+
+    private final KeycloakSession session;
+    private final EntityManager em;
+
+    StudyRegistrationCountStore(KeycloakSession session, EntityManager em) {
+        this.session = session;
+        this.em = em;
+    }
+
+    public static StudyRegistrationCountStore of(KeycloakSession session) {
+        JpaConnectionProvider connection = session.getProvider(JpaConnectionProvider.class);
+        return new StudyRegistrationCountStore(session, connection != null ? connection.getEntityManager() : null);
+    }
+
+    /**
+     * Whether the counts are stored, false if the memberships are counted directly.
+     */
+    public boolean isStored() {
+        return em != null;
+    }
+
+    public int count(RealmModel realm, String groupId) {
+        if (em == null) {
+            return countMembers(realm, groupId);
+        }
+
+        List<Integer> stored = em.createNamedQuery("piaGetStudyMemberCount", Integer.class)
+                .setParameter("groupId", groupId)
+                .getResultList();
+
+        if (!stored.isEmpty()) {
+            return stored.get(0);
+        }
+
+        int count = countMembers(realm, groupId);
+        seed(realm.getId(), groupId);
+
+        return count;
+    }
+
+    /**
+     * Has to be called in the transaction which changes the memberships of the group.
+     * The row stays locked until the transaction ends, so concurrent changes of the group's count are serialized.
+     */
+    public void add(String groupId, int delta) {
+        if (em == null || delta == 0) {
+            return;
+        }
+
+        em.createNamedQuery("piaAddStudyMemberCount")
+                .setParameter("delta", delta)
+                .setParameter("groupId", groupId)
+                .executeUpdate();
+    }
+
+    /**
+     * Counts the members again while holding the lock of the row, so no concurrent change gets lost.
+     *
+     * @return the change of the stored count
+     */
+    public int reconcile(RealmModel realm, String groupId) {
+        if (em == null) {
+            return 0;
+        }
+
+        StudyRegistrationCountEntity entity = em.find(StudyRegistrationCountEntity.class, groupId,
+                LockModeType.PESSIMISTIC_WRITE);
+
+        if (entity == null) {
+            return 0;
+        }
+
+        int count = countMembers(realm, groupId);
+        int delta = count - entity.getMemberCount();
+
+        if (delta != 0) {
+            logger.infof("Reconciled member count of study %s from %d to %d", groupId, entity.getMemberCount(), count);
+        }
+
+        entity.setMemberCount(count);
+        entity.setReconciledAt(Time.currentTimeMillis());
+
+        return delta;
+    }
+
+    public List<StudyRegistrationCountEntity> getStale(long reconciledBefore) {
+        if (em == null) {
+            return List.of();
+        }
+
+        return em.createNamedQuery("piaGetStaleStudyMemberCounts", StudyRegistrationCountEntity.class)
+                .setParameter("reconciledBefore", reconciledBefore)
+                .getResultList();
+    }
+
+    /**
+     * Pages through the counts ordered by group id, starting after the given one.
+     */
+    public List<StudyRegistrationCountEntity> getPage(String afterGroupId, int max) {
+        if (em == null) {
+            return List.of();
+        }
+
+        return em.createNamedQuery("piaGetStudyMemberCountsAfter", StudyRegistrationCountEntity.class)
+                .setParameter("afterGroupId", afterGroupId)
+                .setMaxResults(max)
+                .getResultList();
+    }
+
+    /**
+     * Pages through the counts of a realm ordered by group id, starting after the given one.
+     */
+    public List<StudyRegistrationCountEntity> getPage(String realmId, String afterGroupId, int max) {
+        if (em == null) {
+            return List.of();
+        }
+
+        return em.createNamedQuery("piaGetRealmStudyMemberCountsAfter", StudyRegistrationCountEntity.class)
+                .setParameter("realmId", realmId)
+                .setParameter("afterGroupId", afterGroupId)
+                .setMaxResults(max)
+                .getResultList();
+    }
+
+    /**
+     * Inserts the count in its own transaction, so that a concurrent insert of the same count
+     * does not roll back the transaction of the caller.
+     */
+    private void seed(String realmId, String groupId) {
+        try {
+            KeycloakModelUtils.runJobInTransaction(session.getKeycloakSessionFactory(), seedSession -> {
+                RealmModel realm = seedSession.realms().getRealm(realmId);
+                EntityManager seedEm = seedSession.getProvider(JpaConnectionProvider.class).getEntityManager();
+
+                if (realm == null || seedEm.find(StudyRegistrationCountEntity.class, groupId) != null) {
+                    return;
+                }
+
+                StudyRegistrationCountEntity entity = new StudyRegistrationCountEntity();
+                entity.setGroupId(groupId);
+                entity.setRealmId(realmId);
+                entity.setMemberCount(new StudyRegistrationCountStore(seedSession, seedEm).countMembers(realm, groupId));
+                entity.setReconciledAt(Time.currentTimeMillis());
+                seedEm.persist(entity);
+            });
+        } catch (RuntimeException e) {
+            // another node seeded the count concurrently or the group has been removed
+            logger.debugf(e, "Could not seed member count of study %s", groupId);
+        }
+    }
+
+    private int countMembers(RealmModel realm, String groupId) {
+        return session.users().getUsersCount(realm, Set.of(groupId));
+    }
+}
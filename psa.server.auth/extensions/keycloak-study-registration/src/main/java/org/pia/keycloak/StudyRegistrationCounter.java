@@ -0,0 +1,489 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.jboss.logging.Logger;
+import org.keycloak.common.util.Time;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * Keeps the number of members of each study group in the cluster cache.
+ * A count is seeded once from the database and is reconciled with it again,
+ * as soon as it is older than the reconciliation interval.
+ * <p>
+ * The count is split into a base, which is only written when seeding, and stripes, which hold the changes and
+ * the reservations of running registrations. Each stripe may use its share of the registration limit, so slots
+ * can be reserved exactly with compare-and-swap updates of a single stripe, without holding a lock across the
+ * registration request and without serializing all registrations of a study on one key. Reading all stripes is
+ * cheap, as the work cache is replicated to every node.
+ * <p>
+ * Updates which fail under contention are given up: a reservation is rejected and the count is corrected by the
+ * next reconciliation.
+ */
+public class StudyRegistrationCounter {
+    public static final long DEFAULT_RECONCILIATION_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    public static final long DEFAULT_RESERVATION_LIFESPAN_MILLIS = TimeUnit.MINUTES.toMillis(2);
+    public static final int DEFAULT_STRIPES = 16;
+    private static final String KEY_PREFIX = "pia-study-registration-count:";
+    private static final int MAX_ATTEMPTS = 16;
+
+    private static final Logger logger = Logger.getLogger(StudyRegistrationCounter.class);
+
+    private final ClusterCache cache;
+    private final RegistrationActivity activity;
+    private final long reconciliationIntervalMillis;
+    private final long reservationLifespanMillis;
+    private final int stripes;
+
+    public StudyRegistrationCounter(ClusterCache cache) {
+        this(cache, DEFAULT_RECONCILIATION_INTERVAL_MILLIS);
+    }
+
+    public StudyRegistrationCounter(ClusterCache cache, long reconciliationIntervalMillis) {
+        this(cache, reconciliationIntervalMillis, DEFAULT_RESERVATION_LIFESPAN_MILLIS);
+    }
+
+    public StudyRegistrationCounter(ClusterCache cache, long reconciliationIntervalMillis, long reservationLifespanMillis) {
+        this(cache, reconciliationIntervalMillis, reservationLifespanMillis, DEFAULT_STRIPES);
+    }
+
+    public StudyRegistrationCounter(ClusterCache cache, long reconciliationIntervalMillis, long reservationLifespanMillis,
+                                    int stripes) {
+        this.cache = cache;
+        this.activity = new RegistrationActivity(cache);
+        this.reconciliationIntervalMillis = reconciliationIntervalMillis;
+        this.reservationLifespanMillis = reservationLifespanMillis;
+        this.stripes = stripes;
+    }
+
+    public StudyRegistrationCounter withReconciliationInterval(long reconciliationIntervalMillis) {
+        if (reconciliationIntervalMillis == this.reconciliationIntervalMillis) {
+            return this;
+        }
+
+        return new StudyRegistrationCounter(cache, reconciliationIntervalMillis, reservationLifespanMillis, stripes);
+    }
+
+    public RegistrationActivity getActivity() {
+        return activity;
+    }
+
+    public int get(String realmId, String study, IntSupplier countInDatabase) {
+        String key = getKey(realmId, study);
+        Seeded seeded = getOrSeed(key, countInDatabase);
+
+        if (seeded == null) {
+            return countInDatabase.getAsInt();
+        }
+
+        return getCount(seeded.count, readStripes(key, seeded.count));
+    }
+
+    /**
+     * Registered users and running reservations.
+     */
+    public int getReserved(String realmId, String study, IntSupplier countInDatabase) {
+        String key = getKey(realmId, study);
+        Seeded seeded = getOrSeed(key, countInDatabase);
+
+        if (seeded == null) {
+            return countInDatabase.getAsInt();
+        }
+
+        return getReservedCount(seeded.count, readStripes(key, seeded.count), Time.currentTimeMillis());
+    }
+
+    /**
+     * Has to be called after the user joined the group. When the count has to be seeded,
+     * the database count already contains the new member, as it runs in the same transaction.
+     */
+    public void increment(String realmId, String study, IntSupplier countInDatabase) {
+        update(getKey(realmId, study), countInDatabase, null, (stripe, counted) -> counted ? stripe : stripe.add(1));
+        activity.record(realmId, study, 1);
+    }
+
+    /**
+     * Reserves a registration slot, if registered users and reserved slots have not reached the limit yet.
+     * Reserving the same slot again will only succeed, if the reservation is still valid.
+     */
+    public boolean reserve(String realmId, String study, String reservationId, int limit, IntSupplier countInDatabase) {
+        String key = getKey(realmId, study);
+        Seeded seeded = getOrSeed(key, countInDatabase);
+
+        if (seeded == null) {
+            return false;
+        }
+
+        StudyRegistrationCount base = seeded.count;
+        StudyRegistrationStripe[] current = readStripes(key, base);
+        long now = Time.currentTimeMillis();
+
+        for (StudyRegistrationStripe stripe : current) {
+            if (stripe.hasReservation(reservationId, now)) {
+                return true;
+            }
+        }
+
+        if (getReservedCount(base, current, now) >= limit) {
+            return false;
+        }
+
+        long expiresAt = now + reservationLifespanMillis;
+        int home = getHomeStripe(reservationId, base.getStripes());
+
+        for (int i = 0; i < base.getStripes(); i++) {
+            int stripe = (home + i) % base.getStripes();
+            int capacity = base.getCapacity(stripe, limit);
+            StudyRegistrationStripe result = updateStripe(key, base, stripe,
+                    candidate -> candidate.getUsed() < capacity ? candidate.reserve(reservationId, expiresAt) : candidate);
+
+            if (result != null && result.hasReservation(reservationId)) {
+                return isWithinCapacity(key, base, stripe, result, limit, reservationId);
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Turns a reservation into a registered user. Has to be called after the membership has been committed,
+     * so the database count of a seeding already contains the new member.
+     */
+    public void commit(String realmId, String study, String reservationId, IntSupplier countInDatabase) {
+        update(getKey(realmId, study), countInDatabase, reservationId,
+                (stripe, counted) -> counted ? stripe.release(reservationId) : stripe.commit(reservationId));
+        activity.record(realmId, study, 1);
+    }
+
+    /**
+     * Claims up to the requested number of slots, e.g. for a chunk of a bulk registration.
+     * The claimed slots are counted as registered users right away and have to be given back with
+     * {@link #add(String, String, int)}, if the users are not created.
+     *
+     * @return the number of claimed slots
+     */
+    public int claim(String realmId, String study, int requested, int limit, IntSupplier countInDatabase) {
+        String key = getKey(realmId, study);
+        Seeded seeded = getOrSeed(key, countInDatabase);
+
+        if (seeded == null) {
+            return 0;
+        }
+
+        StudyRegistrationCount base = seeded.count;
+        int start = ThreadLocalRandom.current().nextInt(base.getStripes());
+
+        if (limit < 0) {
+            return updateStripe(key, base, start, stripe -> stripe.add(requested)) != null ? requested : 0;
+        }
+
+        int wanted = Math.min(requested, limit - getReservedCount(base, readStripes(key, base), Time.currentTimeMillis()));
+        int claimed = 0;
+
+        for (int i = 0; i < base.getStripes() && claimed < wanted; i++) {
+            int stripe = (start + i) % base.getStripes();
+            int capacity = base.getCapacity(stripe, limit);
+            int left = wanted - claimed;
+            int[] taken = new int[1];
+            StudyRegistrationStripe result = updateStripe(key, base, stripe, candidate -> {
+                taken[0] = Math.max(0, Math.min(left, capacity - candidate.getUsed()));
+                return candidate.add(taken[0]);
+            });
+
+            if (result != null) {
+                claimed += taken[0];
+            }
+        }
+
+        return claimed;
+    }
+
+    /**
+     * Changes a cached count by delta. Nothing is changed if there is no count, as the next read seeds it from the database.
+     */
+    public void add(String realmId, String study, int delta) {
+        String key = getKey(realmId, study);
+        Object cached = cache.get(key);
+
+        if (!(cached instanceof StudyRegistrationCount)) {
+            return;
+        }
+
+        StudyRegistrationCount base = (StudyRegistrationCount) cached;
+        int start = ThreadLocalRandom.current().nextInt(base.getStripes());
+
+        for (int i = 0; i < base.getStripes(); i++) {
+            if (updateStripe(key, base, (start + i) % base.getStripes(), stripe -> stripe.add(delta)) != null) {
+                return;
+            }
+        }
+
+        logger.warnf("Could not update registration count of study %s, it is corrected by the next reconciliation", study);
+    }
+
+    public void release(String realmId, String study, String reservationId) {
+        String key = getKey(realmId, study);
+        Object cached = cache.get(key);
+        StudyRegistrationCount base = cached instanceof StudyRegistrationCount ? (StudyRegistrationCount) cached : null;
+        int stripe = findReservation(key, base != null ? base.getStripes() : stripes, reservationId);
+
+        if (stripe >= 0 && updateStripe(key, base, stripe, current -> current.release(reservationId)) == null) {
+            logger.warnf("Could not release registration slot of study %s", study);
+        }
+    }
+
+    /**
+     * Releases the expired reservations of a cached count, e.g. of abandoned registrations.
+     * Nothing is seeded, as there are no reservations without a cached count.
+     *
+     * @return the number of released reservations
+     */
+    public int releaseExpired(String realmId, String study) {
+        String key = getKey(realmId, study);
+        long now = Time.currentTimeMillis();
+        int released = 0;
+
+        for (int stripe = 0; stripe < stripes; stripe++) {
+            String stripeKey = getStripeKey(key, stripe);
+
+            for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+                Object cached = cache.get(stripeKey);
+
+                if (!(cached instanceof StudyRegistrationStripe)) {
+                    break;
+                }
+
+                StudyRegistrationStripe current = (StudyRegistrationStripe) cached;
+                StudyRegistrationStripe next = current.releaseExpired(now);
+
+                if (next == current) {
+                    break;
+                }
+
+                if (cache.replace(stripeKey, current, next, getStripeLifespan())) {
+                    released += current.getReservations().size() - next.getReservations().size();
+                    break;
+                }
+            }
+        }
+
+        // reservations which could not be released under contention are released by the next update of their stripe
+        return released;
+    }
+
+    /**
+     * Applies a change to the stripe holding the reservation or a random one. The change is told whether the count
+     * has been seeded by this call, as the database count of a seed already contains the new member then.
+     */
+    private void update(String key, IntSupplier countInDatabase, String reservationId,
+                        StripeChange change) {
+        Seeded seeded = getOrSeed(key, countInDatabase);
+
+        if (seeded != null) {
+            StudyRegistrationCount base = seeded.count;
+            int stripe = reservationId != null ? findReservation(key, base.getStripes(), reservationId) : -1;
+
+            if (stripe < 0) {
+                stripe = reservationId != null ? getHomeStripe(reservationId, base.getStripes())
+                        : ThreadLocalRandom.current().nextInt(base.getStripes());
+            }
+
+            if (updateStripe(key, base, stripe, current -> change.apply(current, seeded.installed)) != null) {
+                return;
+            }
+        }
+
+        // the reservation expires on its own, the count is corrected by the next reconciliation
+        logger.warnf("Could not update registration count %s", key);
+    }
+
+    /**
+     * A stripe which does not exist (anymore) starts with its count at the reconciliation of the base.
+     *
+     * @return the updated stripe or null if the update failed under contention
+     */
+    private StudyRegistrationStripe updateStripe(String key, StudyRegistrationCount base, int stripe,
+                                                 UnaryOperator<StudyRegistrationStripe> change) {
+        String stripeKey = getStripeKey(key, stripe);
+
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            Object cached = cache.get(stripeKey);
+            StudyRegistrationStripe current = cached instanceof StudyRegistrationStripe
+                    ? (StudyRegistrationStripe) cached
+                    : new StudyRegistrationStripe(base != null ? base.getStripeCount(stripe) : 0);
+            StudyRegistrationStripe next = change.apply(current.releaseExpired(Time.currentTimeMillis()));
+
+            if (next.equals(current)) {
+                return next;
+            }
+
+            boolean updated = cached instanceof StudyRegistrationStripe
+                    ? cache.replace(stripeKey, cached, next, getStripeLifespan())
+                    : cache.putIfAbsent(stripeKey, next, getStripeLifespan()) == null;
+
+            if (updated) {
+                return next;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * A reservation is checked against the base it was made with. If the base has been reconciled meanwhile,
+     * the reservation is given back when it exceeds the capacity of the stripe according to the new base.
+     */
+    private boolean isWithinCapacity(String key, StudyRegistrationCount base, int stripe,
+                                     StudyRegistrationStripe reserved, int limit, String reservationId) {
+        Object latest = cache.get(key);
+
+        if (!(latest instanceof StudyRegistrationCount) || latest.equals(base)
+                || ((StudyRegistrationCount) latest).getStripes() != base.getStripes()
+                || reserved.getUsed() <= ((StudyRegistrationCount) latest).getCapacity(stripe, limit)) {
+            return true;
+        }
+
+        updateStripe(key, (StudyRegistrationCount) latest, stripe, current -> current.release(reservationId));
+        return false;
+    }
+
+    /**
+     * The stripes are read before the database, so a member who joins in between is rather counted twice
+     * until the next reconciliation than not at all.
+     *
+     * @return the cached count or null if it could neither be read nor seeded
+     */
+    private Seeded getOrSeed(String key, IntSupplier countInDatabase) {
+        Object cached = cache.get(key);
+
+        if (cached instanceof StudyRegistrationCount && !isStale((StudyRegistrationCount) cached)) {
+            return new Seeded((StudyRegistrationCount) cached, false);
+        }
+
+        StudyRegistrationCount previous = cached instanceof StudyRegistrationCount
+                && ((StudyRegistrationCount) cached).getStripes() == stripes ? (StudyRegistrationCount) cached : null;
+        int[] stripeCounts = new int[stripes];
+
+        for (int stripe = 0; stripe < stripes; stripe++) {
+            Object current = cache.get(getStripeKey(key, stripe));
+
+            if (current instanceof StudyRegistrationStripe) {
+                stripeCounts[stripe] = ((StudyRegistrationStripe) current).getCount();
+            } else if (previous != null) {
+                stripeCounts[stripe] = previous.getStripeCount(stripe);
+            }
+        }
+
+        StudyRegistrationCount seeded = new StudyRegistrationCount(countInDatabase.getAsInt(), Time.currentTimeMillis(),
+                stripeCounts);
+        boolean installed = cached instanceof StudyRegistrationCount
+                ? cache.replace(key, cached, seeded, getRemainingLifespan(seeded))
+                : cache.putIfAbsent(key, seeded, getRemainingLifespan(seeded)) == null;
+
+        if (installed) {
+            return new Seeded(seeded, true);
+        }
+
+        // another request seeded the count meanwhile, its database count may not contain the changes of this one
+        Object current = cache.get(key);
+        return current instanceof StudyRegistrationCount ? new Seeded((StudyRegistrationCount) current, false) : null;
+    }
+
+    private StudyRegistrationStripe[] readStripes(String key, StudyRegistrationCount base) {
+        StudyRegistrationStripe[] result = new StudyRegistrationStripe[base.getStripes()];
+
+        for (int stripe = 0; stripe < result.length; stripe++) {
+            Object cached = cache.get(getStripeKey(key, stripe));
+            result[stripe] = cached instanceof StudyRegistrationStripe
+                    ? (StudyRegistrationStripe) cached
+                    : new StudyRegistrationStripe(base.getStripeCount(stripe));
+        }
+
+        return result;
+    }
+
+    private int findReservation(String key, int stripeCount, String reservationId) {
+        int home = getHomeStripe(reservationId, stripeCount);
+
+        for (int i = 0; i < stripeCount; i++) {
+            int stripe = (home + i) % stripeCount;
+            Object cached = cache.get(getStripeKey(key, stripe));
+
+            if (cached instanceof StudyRegistrationStripe && ((StudyRegistrationStripe) cached).hasReservation(reservationId)) {
+                return stripe;
+            }
+        }
+
+        return -1;
+    }
+
+    private static int getCount(StudyRegistrationCount base, StudyRegistrationStripe[] stripes) {
+        int count = base.getBase();
+
+        for (StudyRegistrationStripe stripe : stripes) {
+            count += stripe.getCount();
+        }
+
+        return Math.max(0, count);
+    }
+
+    private static int getReservedCount(StudyRegistrationCount base, StudyRegistrationStripe[] stripes, long now) {
+        int reserved = getCount(base, stripes);
+
+        for (StudyRegistrationStripe stripe : stripes) {
+            reserved += stripe.getReservedCount(now);
+        }
+
+        return reserved;
+    }
+
+    private boolean isStale(StudyRegistrationCount count) {
+        return Time.currentTimeMillis() - count.getReconciledAt() >= reconciliationIntervalMillis
+                || count.getStripes() != stripes;
+    }
+
+    private long getRemainingLifespan(StudyRegistrationCount count) {
+        // stale counts are kept a while longer, so reservations survive the reconciliation
+        return Math.max(1, count.getReconciledAt() + 2 * reconciliationIntervalMillis - Time.currentTimeMillis());
+    }
+
+    private long getStripeLifespan() {
+        // outlives the base it has been updated with, so its count is not lost while the base is used
+        return 2 * reconciliationIntervalMillis + reservationLifespanMillis;
+    }
+
+    private static int getHomeStripe(String reservationId, int stripeCount) {
+        return Math.floorMod(reservationId.hashCode(), stripeCount);
+    }
+
+    private static String getKey(String realmId, String study) {
+        return KEY_PREFIX + realmId + ":" + study;
+    }
+
+    private static String getStripeKey(String key, int stripe) {
+        return key + ":stripe:" + stripe;
+    }
+
+    @FunctionalInterface
+    private interface StripeChange {
+        StudyRegistrationStripe apply(StudyRegistrationStripe stripe, boolean counted);
+    }
+
+    private static final class Seeded {
+        private final StudyRegistrationCount count;
+        private final boolean installed;
+
+        private Seeded(StudyRegistrationCount count, boolean installed) {
+            this.count = count;
+            this.installed = installed;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.keycloak.events.Event;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+public class StudyRegistrationEventListenerProvider implements EventListenerProvider {
+    public static final String GROUP_INVALIDATION_TASK_KEY = "pia-study-group-invalidation";
+    private static final String GROUPS_PATH = "groups";
+    private static final String USERS_PATH = "users";
+
+    private final KeycloakSession session;
+    private final StudyEventPublisher publisher;
+
+    public StudyRegistrationEventListenerProvider(KeycloakSession session) {
+        this(session, null);
+    }
+
+    public StudyRegistrationEventListenerProvider(KeycloakSession session, StudyEventPublisher publisher) {
+        this.session = session;
+        this.publisher = publisher;
+    }
+
+    /**
+     * Publishes the participant event after the transaction has been committed, if a message queue is configured.
+     * The event is only created in that case.
+     */
+    public static void publish(KeycloakSession session, Supplier<StudyParticipantEvent> event) {
+        EventListenerProvider provider = session.getProvider(EventListenerProvider.class,
+                StudyRegistrationEventListenerProviderFactory.PROVIDER_ID);
+
+        if (provider instanceof StudyRegistrationEventListenerProvider) {
+            ((StudyRegistrationEventListenerProvider) provider).publish(event);
+        }
+    }
+
+    public void publish(Supplier<StudyParticipantEvent> event) {
+        if (publisher == null) {
+            return;
+        }
+
+        StudyParticipantEvent participantEvent = event.get();
+
+        if (participantEvent == null) {
+            return;
+        }
+
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                publisher.enqueue(participantEvent);
+            }
+
+            @Override
+            protected void rollbackImpl() {
+
+            }
+        });
+    }
+
+    @Override
+    public void onEvent(Event event) {
+
+    }
+
+    @Override
+    public void onEvent(AdminEvent event, boolean includeRepresentation) {
+        if (event.getResourceType() == ResourceType.GROUP_MEMBERSHIP && event.getResourcePath() != null) {
+            updateMemberCount(event);
+            return;
+        }
+
+        if (event.getResourceType() != ResourceType.GROUP || event.getResourcePath() == null) {
+            return;
+        }
+
+        // resource paths look like "groups/{id}" or "groups/{id}/children"
+        String[] path = event.getResourcePath().split("/");
+
+        if (path.length < 2 || !path[0].equals(GROUPS_PATH)) {
+            return;
+        }
+
+        StudyGroupInvalidationEvent invalidation = new StudyGroupInvalidationEvent(event.getRealmId(), path[1]);
+
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                invalidate(invalidation);
+                ClusterNotifications.notify(session, GROUP_INVALIDATION_TASK_KEY, invalidation);
+            }
+
+            @Override
+            protected void rollbackImpl() {
+
+            }
+        });
+    }
+
+    /**
+     * Runs in the transaction of the admin request, so the stored count is changed along with the membership.
+     */
+    private void updateMemberCount(AdminEvent event) {
+        // resource paths look like "users/{id}/groups/{groupId}"
+        String[] path = event.getResourcePath().split("/");
+
+        if (path.length != 4 || !path[0].equals(USERS_PATH) || !path[2].equals(GROUPS_PATH)) {
+            return;
+        }
+
+        if (event.getOperationType() == OperationType.CREATE) {
+            StudyRegistrationCountStore.of(session).add(path[3], 1);
+        } else if (event.getOperationType() == OperationType.DELETE) {
+            StudyRegistrationCountStore.of(session).add(path[3], -1);
+        }
+    }
+
+    /**
+     * Runs in the transaction removing the user, which removed its memberships without an admin event.
+     * The stored counts of the user's studies are counted again, the cached counts are changed by the same
+     * amount after the transaction has been committed. Counting again instead of decrementing does not
+     * count a study twice, which the user already left before.
+     */
+    public static void removeMember(UserModel.UserRemovedEvent event) {
+        KeycloakSession session = event.getKeycloakSession();
+        RealmModel realm = event.getRealm();
+        Set<String> studies = new HashSet<>();
+
+        // the memberships may already be gone, the study of the registration is kept as attribute
+        event.getUser().getGroupsStream().map(GroupModel::getId).forEach(studies::add);
+        String registeredStudy = event.getUser().getFirstAttribute(StudyFormAction.USER_ATTR_STUDY);
+
+        if (registeredStudy != null) {
+            studies.add(registeredStudy);
+        }
+
+        StudyRegistrationCountStore store = StudyRegistrationCountStore.of(session);
+        Map<String, Integer> changes = new HashMap<>();
+
+        for (String study : studies) {
+            int delta = store.reconcile(realm, study);
+
+            if (delta != 0) {
+                changes.put(study, delta);
+            }
+        }
+
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        String realmId = realm.getId();
+        StudyRegistrationCounter counter = new StudyRegistrationCounter(ClusterCache.of(session));
+
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                changes.forEach((study, delta) -> {
+                    counter.add(realmId, study, delta);
+                    ApproximateRegistrationCounter.INSTANCE.invalidate(realmId, study);
+                });
+            }
+
+            @Override
+            protected void rollbackImpl() {
+
+            }
+        });
+    }
+
+    public static void invalidate(StudyGroupInvalidationEvent invalidation) {
+        if (invalidation.getGroupId() == null) {
+            StudyGroupMetadataCache.INSTANCE.invalidateRealm(invalidation.getRealmId());
+            ApproximateRegistrationCounter.INSTANCE.invalidateRealm(invalidation.getRealmId());
+        } else {
+            StudyGroupMetadataCache.INSTANCE.invalidate(invalidation.getRealmId(), invalidation.getGroupId());
+            ApproximateRegistrationCounter.INSTANCE.invalidate(invalidation.getRealmId(), invalidation.getGroupId());
+        }
+    }
+
+    @Override
+    public void close() {
+
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.EventListenerProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import java.net.URISyntaxException;
+import java.security.GeneralSecurityException;
+
+public class StudyRegistrationEventListenerProviderFactory implements EventListenerProviderFactory {
+    public static final String PROVIDER_ID = "pia-study-registration";
+    public static final String CONFIG_AMQP_URI = "amqpUri";
+    public static final String CONFIG_EVENT_BUFFER_CAPACITY = "eventBufferCapacity";
+    public static final String CONFIG_EVENT_BATCH_SIZE = "eventBatchSize";
+    public static final String CONFIG_EVENT_FLUSH_INTERVAL_MILLIS = "eventFlushIntervalMillis";
+
+    private static final Logger logger = Logger.getLogger(StudyRegistrationEventListenerProviderFactory.class);
+
+    private StudyEventPublisher publisher;
+
+    @Override
+    public EventListenerProvider create(KeycloakSession session) {
+        return new StudyRegistrationEventListenerProvider(session, publisher);
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        String amqpUri = config.get(CONFIG_AMQP_URI);
+
+        if (amqpUri == null || amqpUri.isBlank()) {
+            return;
+        }
+
+        try {
+            publisher = new StudyEventPublisher(new AmqpStudyEventSink(amqpUri),
+                    Math.max(1, config.getInt(CONFIG_EVENT_BUFFER_CAPACITY, StudyEventPublisher.DEFAULT_CAPACITY)),
+                    Math.max(1, config.getInt(CONFIG_EVENT_BATCH_SIZE, StudyEventPublisher.DEFAULT_BATCH_SIZE)),
+                    Math.max(0, config.getLong(CONFIG_EVENT_FLUSH_INTERVAL_MILLIS, StudyEventPublisher.DEFAULT_FLUSH_INTERVAL_MILLIS)),
+                    StudyEventPublisher.DEFAULT_MAX_ATTEMPTS);
+        } catch (URISyntaxException | GeneralSecurityException e) {
+            logger.errorf(e, "Invalid %s, participant events are not published", CONFIG_AMQP_URI);
+        }
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        ClusterNotifications.registerListener(factory, StudyRegistrationEventListenerProvider.GROUP_INVALIDATION_TASK_KEY,
+                event -> StudyRegistrationEventListenerProvider.invalidate((StudyGroupInvalidationEvent) event));
+
+        factory.register(event -> {
+            if (event instanceof RealmModel.RealmRemovedEvent) {
+                String realmId = ((RealmModel.RealmRemovedEvent) event).getRealm().getId();
+                StudyRegistrationEventListenerProvider.invalidate(new StudyGroupInvalidationEvent(realmId, null));
+                ActionTokenSigner.INSTANCE.invalidateRealm(realmId);
+            } else if (event instanceof UserModel.UserRemovedEvent) {
+                StudyRegistrationEventListenerProvider.removeMember((UserModel.UserRemovedEvent) event);
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        if (publisher != null) {
+            publisher.shutdown();
+        }
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+}
@@ -10,9 +10,12 @@ public class StudyRegistrationMessages {
     public static final String STUDY_MISSING = "piaRegistrationStudyMissing";
     public static final String STUDY_NOT_OPEN = "piaRegistrationStudyNotOpen";
     public static final String LIMIT_REACHED = "piaRegistrationUserLimitReached";
+    public static final String TOO_MANY_REQUESTS = "piaRegistrationTooManyRequests";
 
     public static final String CONFIRM_TOS = "piaRegistrationConfirmTos";
     public static final String CONFIRM_POLICY = "piaRegistrationConfirmPolicy";
 
     public static final String EMAIL_VERIFIED_WITH_USERNAME_ACKNOWLEDGEMENT = "piaEmailVerifiedWithUsernameAcknowledgementMessage";
+    public static final String EMAIL_ALREADY_VERIFIED = "piaEmailAlreadyVerifiedMessage";
+    public static final String VERIFY_EMAIL_RECENTLY_SENT = "piaVerifyEmailRecentlySentMessage";
 }
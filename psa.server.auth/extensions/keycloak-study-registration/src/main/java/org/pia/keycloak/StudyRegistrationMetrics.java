@@ -0,0 +1,138 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+
+/**
+ * Prometheus metrics of the study registration. They are registered in the default registry,
+ * which is exported by keycloak-metrics-spi on the realm's metrics endpoint.
+ * <p>
+ * Only studies with an existing study group are used as label, all other values are
+ * reported as unknown to keep the number of time series bounded.
+ */
+public final class StudyRegistrationMetrics {
+    public static final String PHASE_AUTHENTICATE = "authenticate";
+    public static final String PHASE_VALIDATE = "validate";
+    public static final String PHASE_SUCCESS = "success";
+    public static final String PHASE_COUNT_USERS = "count_users";
+    public static final String PHASE_SEND_VERIFY_EMAIL = "send_verify_email";
+    public static final String PHASE_DELIVER_VERIFY_EMAIL = "deliver_verify_email";
+    public static final String PHASE_VERIFY_EMAIL = "verify_email";
+    public static final String PHASE_BULK_IMPORT = "bulk_import";
+    public static final String PHASE_WAITING_ROOM = "waiting_room";
+
+    public static final String UNKNOWN_STUDY = "unknown";
+
+    private static final double NANOSECONDS_PER_SECOND = 1_000_000_000.0;
+
+    private static final Histogram duration = Histogram.build()
+            .name("pia_study_registration_duration_seconds")
+            .help("Duration of the phases of the study registration")
+            .labelNames("phase", "study")
+            .register();
+
+    private static final Counter rejections = Counter.build()
+            .name("pia_study_registration_rejections_total")
+            .help("Rejected study registrations by reason")
+            .labelNames("study", "reason")
+            .register();
+
+    private static final Counter shedRequests = Counter.build()
+            .name("pia_study_registration_shed_requests_total")
+            .help("Registration requests rejected by the rate limit")
+            .labelNames("limit")
+            .register();
+
+    private static final Counter verifyEmails = Counter.build()
+            .name("pia_study_registration_verify_emails_total")
+            .help("Sent verification emails of the study registration")
+            .labelNames("study", "outcome")
+            .register();
+
+    private static final Counter participantEvents = Counter.build()
+            .name("pia_study_registration_participant_events_total")
+            .help("Participant events published to the message queue")
+            .labelNames("topic", "outcome")
+            .register();
+
+    private static final Counter negativeCacheHits = Counter.build()
+            .name("pia_study_registration_negative_cache_hits_total")
+            .help("Requests for unknown or closed studies answered from the negative cache")
+            .labelNames("reason")
+            .register();
+
+    private static final Counter waitingRoom = Counter.build()
+            .name("pia_study_registration_waiting_room_total")
+            .help("Participants entering the waiting room of a study")
+            .labelNames("study", "outcome")
+            .register();
+
+    private static final Counter expiredReservations = Counter.build()
+            .name("pia_study_registration_expired_reservations_total")
+            .help("Registration slots released by the reservation sweeper after their registration has been abandoned")
+            .labelNames("study")
+            .register();
+
+    private static final Counter verifyEmailLinkRequests = Counter.build()
+            .name("pia_study_registration_verify_email_link_requests_total")
+            .help("Requests of verification links, by whether the link has been used before")
+            .labelNames("study", "request")
+            .register();
+
+    private StudyRegistrationMetrics() {
+    }
+
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    public static void record(String phase, String study, long start) {
+        duration.labels(phase, label(study)).observe((System.nanoTime() - start) / NANOSECONDS_PER_SECOND);
+    }
+
+    public static void reject(String study, String reason) {
+        rejections.labels(label(study), reason).inc();
+    }
+
+    public static void shed(String limit) {
+        shedRequests.labels(limit).inc();
+    }
+
+    public static void sentVerifyEmail(String study, boolean success) {
+        verifyEmails.labels(label(study), success ? "success" : "error").inc();
+    }
+
+    public static void suppressedVerifyEmail(String study) {
+        verifyEmails.labels(label(study), "suppressed").inc();
+    }
+
+    public static void participantEvents(String topic, String outcome, int count) {
+        participantEvents.labels(topic, outcome).inc(count);
+    }
+
+    public static void negativeCacheHit(String reason) {
+        negativeCacheHits.labels(reason).inc();
+    }
+
+    public static void waitingRoom(String study, String outcome) {
+        waitingRoom.labels(label(study), outcome).inc();
+    }
+
+    public static void expiredReservations(String study, int count) {
+        expiredReservations.labels(label(study)).inc(count);
+    }
+
+    public static void verifyEmailLinkRequest(String study, String request) {
+        verifyEmailLinkRequests.labels(label(study), request).inc();
+    }
+
+    private static String label(String study) {
+        return study != null ? study : UNKNOWN_STUDY;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.timer.ScheduledTask;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Releases the registration slots of abandoned registrations, so they do not count against the limit of a study
+ * until its next registration. Each run only sweeps one page of studies and continues with the next page in the
+ * following run, so its cost does not grow with the number of studies.
+ */
+public class StudyRegistrationReservationSweeper implements ScheduledTask {
+    public static final String TASK_NAME = "pia-study-registration-reservation-sweeper";
+    public static final long DEFAULT_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    public static final int DEFAULT_BATCH_SIZE = 200;
+    private static final String CURSOR_KEY = "pia-study-registration-reservation-sweeper-cursor";
+    private static final String FIRST_PAGE = "";
+    private static final long CURSOR_LIFESPAN_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private static final Logger logger = Logger.getLogger(StudyRegistrationReservationSweeper.class);
+
+    private final long reconciliationIntervalMillis;
+    private final int batchSize;
+
+    public StudyRegistrationReservationSweeper(long reconciliationIntervalMillis, int batchSize) {
+        this.reconciliationIntervalMillis = reconciliationIntervalMillis;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public void run(KeycloakSession session) {
+        sweep(ClusterCache.of(session), StudyRegistrationCountStore.of(session));
+    }
+
+    /**
+     * @return the number of released reservations
+     */
+    int sweep(ClusterCache cache, StudyRegistrationCountStore store) {
+        StudyRegistrationCounter counter = new StudyRegistrationCounter(cache, reconciliationIntervalMillis);
+        // the cursor is shared, as the next run may be executed by another node
+        Object cursor = cache.get(CURSOR_KEY);
+        List<StudyRegistrationCountEntity> page = store.getPage(cursor instanceof String ? (String) cursor : FIRST_PAGE, batchSize);
+        int released = 0;
+
+        for (StudyRegistrationCountEntity study : page) {
+            int expired = counter.releaseExpired(study.getRealmId(), study.getGroupId());
+
+            if (expired > 0) {
+                StudyRegistrationMetrics.expiredReservations(study.getGroupId(), expired);
+                released += expired;
+            }
+        }
+
+        // after the last page the next run starts from the beginning again
+        String next = page.size() < batchSize ? FIRST_PAGE : page.get(page.size() - 1).getGroupId();
+
+        if (cursor == null) {
+            cache.putIfAbsent(CURSOR_KEY, next, CURSOR_LIFESPAN_MILLIS);
+        } else {
+            cache.replace(CURSOR_KEY, cursor, next, CURSOR_LIFESPAN_MILLIS);
+        }
+
+        if (released > 0) {
+            logger.debugf("Released %d registration slots of abandoned registrations", released);
+        }
+
+        return released;
+    }
+
+    @Override
+    public String getTaskName() {
+        return TASK_NAME;
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.DefaultValue;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.NotAuthorizedException;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.services.ErrorResponse;
+import org.keycloak.services.managers.AppAuthManager;
+import org.keycloak.services.managers.AuthenticationManager;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resources.admin.AdminAuth;
+import org.keycloak.services.resources.admin.permissions.AdminPermissionEvaluator;
+import org.keycloak.services.resources.admin.permissions.AdminPermissions;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Realm resource of the study registration:
+ * <ul>
+ *     <li>{@code POST /realms/<realm>/study-registration/studies/<study>/participants} pre-registers participants.
+ *     It expects one participant as JSON object per line, responds with one result per line and requires
+ *     the permission to manage users of the realm.</li>
+ *     <li>{@code GET /realms/<realm>/study-registration/studies/statistics} streams the registration statistics
+ *     of the study groups with a stored count from the cached counts. It requires the permission to view users
+ *     of the realm.</li>
+ * </ul>
+ * The bearer token is verified with the keys of the realm of the request, so only tokens issued by that realm are
+ * accepted. Tokens of the master realm are rejected, even if their user may manage the realm in the admin API.
+ */
+public class StudyRegistrationResourceProvider implements RealmResourceProvider {
+    public static final String NDJSON = "application/x-ndjson";
+    private static final int STATISTICS_PAGE_SIZE = 100;
+
+    private final KeycloakSession session;
+    private final StudyRegistrationConfig config;
+    private final int chunkSize;
+
+    public StudyRegistrationResourceProvider(KeycloakSession session, StudyRegistrationConfig config, int chunkSize) {
+        this.session = session;
+        this.config = config;
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public Object getResource() {
+        return this;
+    }
+
+    @GET
+    @Path("studies/statistics")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getStatistics(@QueryParam("minutes") @DefaultValue("60") int minutes) {
+        RealmModel realm = session.getContext().getRealm();
+        requirePermissions(realm).users().requireView();
+
+        KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
+        String realmId = realm.getId();
+        StreamingOutput output = stream -> writeStatistics(stream, sessionFactory, realmId, minutes);
+
+        return Response.ok(output, MediaType.APPLICATION_JSON).build();
+    }
+
+    void writeStatistics(OutputStream stream, KeycloakSessionFactory sessionFactory, String realmId, int minutes) throws IOException {
+        try (JsonGenerator generator = JsonSerialization.mapper.getFactory().createGenerator(stream)) {
+            generator.writeStartArray();
+
+            // the counts are read in an own transaction, as the response is streamed after this request's transaction
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, jobSession -> {
+                RealmModel realm = jobSession.realms().getRealm(realmId);
+
+                if (realm == null) {
+                    return;
+                }
+
+                try {
+                    new StatisticsWriter(jobSession, realm, generator, minutes).write();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+
+            generator.writeEndArray();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    @POST
+    @Path("studies/{study}/participants")
+    @Consumes(NDJSON)
+    @Produces(NDJSON)
+    public Response importParticipants(@PathParam("study") String study, InputStream body) {
+        RealmModel realm = session.getContext().getRealm();
+        requirePermissions(realm).users().requireManage();
+
+        StudyHelper studyHelper = new StudyHelper(session, config);
+        studyHelper.init(realm, study);
+
+        if (!studyHelper.studyGroupIsOpen()) {
+            throw ErrorResponse.error(StudyRegistrationMessages.STUDY_NOT_OPEN, Response.Status.CONFLICT);
+        }
+
+        if (studyHelper.reachedRegistrationLimit()) {
+            throw ErrorResponse.error(StudyRegistrationMessages.LIMIT_REACHED, Response.Status.CONFLICT);
+        }
+
+        if (session.roles().getRealmRole(realm, config.getProbandRole()) == null) {
+            throw ErrorResponse.error("Role " + config.getProbandRole() + " does not exist", Response.Status.CONFLICT);
+        }
+
+        // the import runs in its own transactions, as the response is streamed after this request's transaction
+        KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
+        BulkParticipantImport participantImport = new BulkParticipantImport(sessionFactory, realm.getId(), study,
+                studyHelper.getRegistrationLimit(), config,
+                new StudyRegistrationCounter(ClusterCache.of(session), config.getReconciliationIntervalMillis()),
+                ApproximateRegistrationCounter.INSTANCE, chunkSize);
+
+        StreamingOutput output = stream -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+                 Writer writer = new OutputStreamWriter(stream, StandardCharsets.UTF_8)) {
+                participantImport.run(reader, writer);
+            }
+        };
+
+        return Response.ok(output, NDJSON).build();
+    }
+
+    private AdminPermissionEvaluator requirePermissions(RealmModel realm) {
+        AuthenticationManager.AuthResult auth = new AppAuthManager.BearerTokenAuthenticator(session).authenticate();
+
+        if (auth == null) {
+            throw new NotAuthorizedException("Bearer");
+        }
+
+        AdminAuth adminAuth = new AdminAuth(realm, auth.getToken(), auth.getUser(), auth.getClient());
+        return AdminPermissions.evaluator(session, realm, adminAuth);
+    }
+
+    /**
+     * Writes the statistics of the studies with a stored count, paging through the PIA_STUDY_REGISTRATION_COUNT
+     * rows of the realm. Name, limit and open state are read from the {@link StudyGroupMetadataCache}, so only
+     * groups which are not cached are loaded.
+     */
+    private class StatisticsWriter {
+        private final KeycloakSession session;
+        private final RealmModel realm;
+        private final JsonGenerator generator;
+        private final int minutes;
+        private final StudyRegistrationCounter registrationCounter;
+        private final StudyRegistrationCountStore countStore;
+
+        private StatisticsWriter(KeycloakSession session, RealmModel realm, JsonGenerator generator, int minutes) {
+            this.session = session;
+            this.realm = realm;
+            this.generator = generator;
+            this.minutes = minutes;
+            this.registrationCounter = new StudyRegistrationCounter(ClusterCache.of(session),
+                    config.getReconciliationIntervalMillis());
+            this.countStore = StudyRegistrationCountStore.of(session);
+        }
+
+        private void write() throws IOException {
+            if (!countStore.isStored()) {
+                writeAllGroups();
+                return;
+            }
+
+            String afterGroupId = "";
+            List<StudyRegistrationCountEntity> page;
+
+            do {
+                page = countStore.getPage(realm.getId(), afterGroupId, STATISTICS_PAGE_SIZE);
+
+                for (StudyRegistrationCountEntity stored : page) {
+                    afterGroupId = stored.getGroupId();
+                    writeStudy(stored.getGroupId(), () -> session.groups().getGroupById(realm, stored.getGroupId()),
+                            stored::getMemberCount);
+                }
+            } while (page.size() == STATISTICS_PAGE_SIZE);
+        }
+
+        /**
+         * Without stored counts, e.g. with another user storage, the groups have to be read to find the studies.
+         */
+        private void writeAllGroups() throws IOException {
+            try (Stream<GroupModel> groups = session.groups().getGroupsStream(realm)) {
+                for (GroupModel group : (Iterable<GroupModel>) groups::iterator) {
+                    writeStudy(group.getId(), () -> group, () -> countStore.count(realm, group.getId()));
+                }
+            }
+        }
+
+        private void writeStudy(String groupId, Supplier<GroupModel> loader, IntSupplier storedCount) throws IOException {
+            StudyGroupMetadata metadata = StudyGroupMetadataCache.INSTANCE.get(realm, groupId,
+                    config.getRegistrationLimitKey(), config.getCacheTimeToLiveMillis(), loader);
+
+            if (metadata == null || !metadata.isOpen()) {
+                return;
+            }
+
+            int count = registrationCounter.get(realm.getId(), groupId, storedCount);
+
+            generator.writeObject(new StudyRegistrationStatistics(groupId, metadata.getName(), count,
+                    metadata.getRegistrationLimit(), metadata.isOpen(),
+                    registrationCounter.getActivity().count(realm.getId(), groupId, minutes)));
+        }
+    }
+
+    @Override
+    public void close() {
+
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resource.RealmResourceProviderFactory;
+
+public class StudyRegistrationResourceProviderFactory implements RealmResourceProviderFactory {
+    public static final String PROVIDER_ID = "study-registration";
+    public static final String CONFIG_CHUNK_SIZE = "bulkChunkSize";
+    public static final int DEFAULT_CHUNK_SIZE = 500;
+
+    private StudyRegistrationConfig config = StudyRegistrationConfig.DEFAULT;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+    @Override
+    public RealmResourceProvider create(KeycloakSession session) {
+        return new StudyRegistrationResourceProvider(session, config, chunkSize);
+    }
+
+    @Override
+    public void init(Config.Scope scope) {
+        config = StudyRegistrationConfig.of(scope);
+        chunkSize = Math.max(1, scope.getInt(CONFIG_CHUNK_SIZE, DEFAULT_CHUNK_SIZE));
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+
+    }
+
+    @Override
+    public void close() {
+
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+/**
+ * Registration statistics of a study group.
+ */
+public class StudyRegistrationStatistics {
+    private final String study;
+    private final String name;
+    private final int count;
+    private final int limit;
+    private final boolean open;
+    private final int recentRegistrations;
+
+    public StudyRegistrationStatistics(String study, String name, int count, int limit, boolean open, int recentRegistrations) {
+        this.study = study;
+        this.name = name;
+        this.count = count;
+        this.limit = limit;
+        this.open = open;
+        this.recentRegistrations = recentRegistrations;
+    }
+
+    public String getStudy() {
+        return study;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public int getRecentRegistrations() {
+        return recentRegistrations;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Immutable part of the count of registered users of a study: the users counted by this stripe and the registration
+ * slots reserved in it by running registrations (reservation id to expiration time).
+ */
+public final class StudyRegistrationStripe implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int count;
+    private final HashMap<String, Long> reservations;
+
+    public StudyRegistrationStripe(int count) {
+        this(count, new HashMap<>());
+    }
+
+    private StudyRegistrationStripe(int count, HashMap<String, Long> reservations) {
+        this.count = count;
+        this.reservations = reservations;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public Map<String, Long> getReservations() {
+        return Collections.unmodifiableMap(reservations);
+    }
+
+    /**
+     * Registered users and running reservations of this stripe.
+     */
+    public int getUsed() {
+        return count + reservations.size();
+    }
+
+    public boolean hasReservation(String reservationId) {
+        return reservations.containsKey(reservationId);
+    }
+
+    public boolean hasReservation(String reservationId, long now) {
+        Long expiresAt = reservations.get(reservationId);
+
+        return expiresAt != null && expiresAt > now;
+    }
+
+    public int getReservedCount(long now) {
+        return (int) reservations.values().stream().filter(expiresAt -> expiresAt > now).count();
+    }
+
+    public StudyRegistrationStripe add(int delta) {
+        return new StudyRegistrationStripe(count + delta, reservations);
+    }
+
+    public StudyRegistrationStripe reserve(String reservationId, long expiresAt) {
+        HashMap<String, Long> updated = new HashMap<>(reservations);
+        updated.put(reservationId, expiresAt);
+
+        return new StudyRegistrationStripe(count, updated);
+    }
+
+    public StudyRegistrationStripe commit(String reservationId) {
+        return new StudyRegistrationStripe(count + 1, without(reservationId));
+    }
+
+    public StudyRegistrationStripe release(String reservationId) {
+        return new StudyRegistrationStripe(count, without(reservationId));
+    }
+
+    public StudyRegistrationStripe releaseExpired(long now) {
+        if (reservations.values().stream().noneMatch(expiresAt -> expiresAt <= now)) {
+            return this;
+        }
+
+        HashMap<String, Long> updated = new HashMap<>(reservations);
+        updated.values().removeIf(expiresAt -> expiresAt <= now);
+
+        return new StudyRegistrationStripe(count, updated);
+    }
+
+    private HashMap<String, Long> without(String reservationId) {
+        HashMap<String, Long> updated = new HashMap<>(reservations);
+        updated.remove(reservationId);
+
+        return updated;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof StudyRegistrationStripe)) {
+            return false;
+        }
+        StudyRegistrationStripe that = (StudyRegistrationStripe) o;
+        return count == that.count && reservations.equals(that.reservations);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(count, reservations);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.jboss.logging.Logger;
+import org.keycloak.common.util.Time;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cluster wide queue, which admits the participants of a study into the registration form at a fixed rate.
+ * <p>
+ * Only the time at which the next participant can be admitted is shared. Every participant gets its admission
+ * time once, when entering the queue, in the order of arrival. Waiting for it does not touch shared state anymore.
+ */
+public class StudyWaitingRoom {
+    /**
+     * Admission time of a participant, which has not been admitted, as the study has no capacity left.
+     */
+    public static final long FULL = -1;
+    private static final String KEY_PREFIX = "pia-study-waiting-room:";
+    private static final long LIFESPAN_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final int MAX_ATTEMPTS = 16;
+
+    private static final Logger logger = Logger.getLogger(StudyWaitingRoom.class);
+
+    private final ClusterCache cache;
+
+    public StudyWaitingRoom(ClusterCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Queues a participant. Participants within the burst of the rate are admitted right away.
+     *
+     * @param capacity registration slots left in the study, participants which are still waiting take one each,
+     *                 a negative capacity is unlimited
+     * @return the time at which the participant is admitted or {@link #FULL}
+     */
+    public long enqueue(String realmId, String study, RateLimit rate, int capacity) {
+        String key = KEY_PREFIX + realmId + ":" + study;
+        long interval = getIntervalMillis(rate);
+        long now = Time.currentTimeMillis();
+        long next = now;
+
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            Object cached = cache.get(key);
+            // the theoretical admission time of the next participant, when participants are admitted at the rate
+            long tat = cached instanceof Long ? Math.max(now, (Long) cached) : now;
+
+            if (capacity >= 0 && getWaiting(tat, now, rate) >= capacity) {
+                return FULL;
+            }
+
+            next = Math.max(now, tat - (rate.getBurst() - 1) * interval);
+            Long updated = tat + interval;
+            long lifespan = updated - now + LIFESPAN_MILLIS;
+
+            boolean stored = cached instanceof Long
+                    ? cache.replace(key, cached, updated, lifespan)
+                    : cache.putIfAbsent(key, updated, lifespan) == null;
+
+            if (stored) {
+                return next;
+            }
+        }
+
+        // keeps the participant waiting for its share of the rate, without a place in the queue
+        logger.debugf("Could not queue participant of study %s", study);
+        return next;
+    }
+
+    /**
+     * Estimated number of participants, which are admitted before the given admission time.
+     */
+    public static int getPosition(long admitAt, RateLimit rate) {
+        long remaining = admitAt - Time.currentTimeMillis();
+
+        return remaining > 0 ? (int) Math.ceil((double) remaining / getIntervalMillis(rate)) : 0;
+    }
+
+    private static int getWaiting(long tat, long now, RateLimit rate) {
+        long queued = (long) Math.ceil((double) (tat - now) / getIntervalMillis(rate));
+
+        return (int) Math.max(0, queued - rate.getBurst());
+    }
+
+    private static long getIntervalMillis(RateLimit rate) {
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(rate.getNanosPerToken()));
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.keycloak.models.UserModel;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.HexFormat;
+
+/**
+ * Records which version of the terms of service and privacy policy a participant accepted as user attributes.
+ * A version is identified by the SHA-256 hash of its URI. As user attributes are indexed by name and value,
+ * the participants who accepted a version can be found without joins, e.g. with the admin API query
+ * {@code GET /admin/realms/<realm>/users?q=piaTosHash:<hash>} or {@code q=piaPolicyHash:<hash>}.
+ * <p>
+ * The digest of both versions is stored as a single attribute as well, so checking on login whether a participant
+ * accepted the current versions is a comparison with the cached {@link ClientTermsOfService}.
+ */
+public final class TermsOfServiceAcceptance {
+    public static final String TOS_HASH = "piaTosHash";
+    public static final String TOS_URI = "piaTosUri";
+    public static final String TOS_ACCEPTED_AT = "piaTosAcceptedAt";
+    public static final String POLICY_HASH = "piaPolicyHash";
+    public static final String POLICY_URI = "piaPolicyUri";
+    public static final String POLICY_ACCEPTED_AT = "piaPolicyAcceptedAt";
+    public static final String TERMS_DIGEST = "piaTermsDigest";
+
+    private TermsOfServiceAcceptance() {
+    }
+
+    /**
+     * Has to be called in the transaction creating the user, so the attributes are written with the user.
+     */
+    public static void record(UserModel user, ClientTermsOfService termsOfService, long acceptedAtMillis) {
+        String acceptedAt = Instant.ofEpochMilli(acceptedAtMillis).toString();
+
+        if (termsOfService.isTosUriSet()) {
+            user.setSingleAttribute(TOS_HASH, termsOfService.getTosHash());
+            user.setSingleAttribute(TOS_URI, termsOfService.getTosUri());
+            user.setSingleAttribute(TOS_ACCEPTED_AT, acceptedAt);
+        }
+
+        if (termsOfService.isPolicyUriSet()) {
+            user.setSingleAttribute(POLICY_HASH, termsOfService.getPolicyHash());
+            user.setSingleAttribute(POLICY_URI, termsOfService.getPolicyUri());
+            user.setSingleAttribute(POLICY_ACCEPTED_AT, acceptedAt);
+        }
+
+        if (termsOfService.getDigest() != null) {
+            user.setSingleAttribute(TERMS_DIGEST, termsOfService.getDigest());
+        }
+    }
+
+    public static boolean hasAcceptedCurrentVersion(UserModel user, ClientTermsOfService termsOfService) {
+        return termsOfService.getDigest() == null || termsOfService.getDigest().equals(user.getFirstAttribute(TERMS_DIGEST));
+    }
+
+    /**
+     * Participants registered before the accepted versions were recorded have no digest, although they accepted
+     * the terms at registration. Their digest is seeded with the current version on their first login after the
+     * rollout, so only later changes of the terms require a re-consent. Users created at or after the rollout,
+     * e.g. by an import, are not seeded, as they have not accepted any version.
+     *
+     * @param rolloutMillis time the versions have been recorded since, users created before it are seeded
+     * @return true if the digest has been seeded
+     */
+    public static boolean seedLegacyAcceptance(UserModel user, ClientTermsOfService termsOfService, long rolloutMillis) {
+        if (termsOfService.getDigest() == null || user.getFirstAttribute(TERMS_DIGEST) != null) {
+            return false;
+        }
+
+        Long createdTimestamp = user.getCreatedTimestamp();
+
+        if (createdTimestamp == null || createdTimestamp >= rolloutMillis) {
+            return false;
+        }
+
+        user.setSingleAttribute(TERMS_DIGEST, termsOfService.getDigest());
+        return true;
+    }
+
+    public static String hash(String uri) {
+        if (uri == null || uri.isEmpty()) {
+            return null;
+        }
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(uri.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
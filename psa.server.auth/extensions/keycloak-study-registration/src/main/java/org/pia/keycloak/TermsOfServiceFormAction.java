@@ -9,8 +9,9 @@ package org.pia.keycloak;
 import org.keycloak.authentication.FormAction;
 import org.keycloak.authentication.FormContext;
 import org.keycloak.authentication.ValidationContext;
+import org.keycloak.common.util.Time;
 import org.keycloak.forms.login.LoginFormsProvider;
-import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakContext;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
@@ -18,43 +19,62 @@ import org.keycloak.models.utils.FormMessage;
 
 import jakarta.ws.rs.core.MultivaluedMap;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class TermsOfServiceFormAction implements FormAction {
     public static final String TOS_URI = "tosUri";
     public static final String POLICY_URI = "policyUri";
+    public static final String TOS_CONFIRM_LABEL = "tosConfirmLabel";
+    public static final String POLICY_CONFIRM_LABEL = "policyConfirmLabel";
     public static final String FIELDNAME_TOS_CONFIRM = "piaTosConfirm";
     public static final String FIELDNAME_POLICY_CONFIRM = "piaPolicyConfirm";
-    private String tosUri;
-    private String policyUri;
+    private final ClientTermsOfServiceCache termsOfServiceCache;
 
-    TermsOfServiceFormAction(KeycloakSession session) {
-        ClientModel currentClient = session.getContext().getClient();
-        tosUri = currentClient.getAttribute(ClientModel.TOS_URI);
-        policyUri = currentClient.getAttribute(ClientModel.POLICY_URI);
+    /**
+     * The form action is stateless, the URIs of the current client are looked up in the cache per request.
+     */
+    TermsOfServiceFormAction(ClientTermsOfServiceCache termsOfServiceCache) {
+        this.termsOfServiceCache = termsOfServiceCache;
     }
 
     @Override
     public void buildPage(FormContext context, LoginFormsProvider form) {
+        setAttributes(context.getSession(), form, getTermsOfService(context));
+    }
+
+    /**
+     * Sets the URIs and the confirmation labels, which are formatted once per locale and not on every render.
+     */
+    static LoginFormsProvider setAttributes(KeycloakSession session, LoginFormsProvider form, ClientTermsOfService termsOfService) {
+        String tosUri = termsOfService.getTosUri();
+        String policyUri = termsOfService.getPolicyUri();
         form.setAttribute(TOS_URI, tosUri);
         form.setAttribute(POLICY_URI, policyUri);
+
+        RegistrationPageModelCache.INSTANCE.apply(session, form, "terms-of-service", Arrays.asList(tosUri, policyUri), messages -> {
+            Map<String, String> attributes = new HashMap<>();
+            if (tosUri != null && !tosUri.isEmpty()) {
+                attributes.put(TOS_CONFIRM_LABEL, messages.format("piaRegistrationTosConfirmLabel", tosUri));
+            }
+            if (policyUri != null && !policyUri.isEmpty()) {
+                attributes.put(POLICY_CONFIRM_LABEL, messages.format("piaRegistrationPolicyConfirmLabel", policyUri));
+            }
+            return attributes;
+        });
+
+        return form;
     }
 
     @Override
     public void validate(ValidationContext context) {
         MultivaluedMap<String, String> formData = context.getHttpRequest().getDecodedFormParameters();
-        List<FormMessage> errors = new ArrayList<>();
+        List<FormMessage> errors = validateConfirmations(formData, getTermsOfService(context));
 
-        String tosConfirmValue = formData.getFirst(FIELDNAME_TOS_CONFIRM);
-        if(isTosUriSet() && (tosConfirmValue == null || tosConfirmValue.isEmpty())) {
-            context.error(StudyRegistrationMessages.CONFIRM_TOS);
-            errors.add(new FormMessage(FIELDNAME_TOS_CONFIRM, StudyRegistrationMessages.CONFIRM_TOS));
-        }
-
-        String policyConfirmValue = formData.getFirst(FIELDNAME_POLICY_CONFIRM);
-        if(isPolicyUriSet() && (policyConfirmValue == null || policyConfirmValue.isEmpty())) {
-            context.error(StudyRegistrationMessages.CONFIRM_POLICY);
-            errors.add(new FormMessage(FIELDNAME_POLICY_CONFIRM, StudyRegistrationMessages.CONFIRM_POLICY));
+        for (FormMessage error : errors) {
+            context.error(error.getMessage());
         }
 
         if(errors.size() > 0) {
@@ -67,7 +87,8 @@ public class TermsOfServiceFormAction implements FormAction {
 
     @Override
     public void success(FormContext context) {
-
+        // validate only succeeds, if the participant confirmed every configured document
+        TermsOfServiceAcceptance.record(context.getUser(), getTermsOfService(context), Time.currentTimeMillis());
     }
 
     @Override
@@ -90,11 +111,24 @@ public class TermsOfServiceFormAction implements FormAction {
 
     }
 
-    private boolean isTosUriSet() {
-        return tosUri != null && !tosUri.isEmpty();
+    static List<FormMessage> validateConfirmations(MultivaluedMap<String, String> formData, ClientTermsOfService termsOfService) {
+        List<FormMessage> errors = new ArrayList<>();
+
+        String tosConfirmValue = formData.getFirst(FIELDNAME_TOS_CONFIRM);
+        if(termsOfService.isTosUriSet() && (tosConfirmValue == null || tosConfirmValue.isEmpty())) {
+            errors.add(new FormMessage(FIELDNAME_TOS_CONFIRM, StudyRegistrationMessages.CONFIRM_TOS));
+        }
+
+        String policyConfirmValue = formData.getFirst(FIELDNAME_POLICY_CONFIRM);
+        if(termsOfService.isPolicyUriSet() && (policyConfirmValue == null || policyConfirmValue.isEmpty())) {
+            errors.add(new FormMessage(FIELDNAME_POLICY_CONFIRM, StudyRegistrationMessages.CONFIRM_POLICY));
+        }
+
+        return errors;
     }
 
-    private boolean isPolicyUriSet() {
-        return policyUri != null && !policyUri.isEmpty();
+    private ClientTermsOfService getTermsOfService(FormContext context) {
+        KeycloakContext keycloakContext = context.getSession().getContext();
+        return termsOfServiceCache.get(keycloakContext.getRealm(), keycloakContext.getClient());
     }
 }
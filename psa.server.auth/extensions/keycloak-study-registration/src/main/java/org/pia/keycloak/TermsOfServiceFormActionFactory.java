@@ -9,19 +9,25 @@ package org.pia.keycloak;
 import org.keycloak.Config;
 import org.keycloak.authentication.FormAction;
 import org.keycloak.authentication.FormActionFactory;
+import org.keycloak.models.AbstractKeycloakTransaction;
 import org.keycloak.models.AuthenticationExecutionModel;
+import org.keycloak.models.ClientModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
 import org.keycloak.provider.ProviderConfigProperty;
 
 import java.util.List;
 
 public class TermsOfServiceFormActionFactory implements FormActionFactory {
+    public static final String CLIENT_INVALIDATION_TASK_KEY = "pia-client-terms-of-service-invalidation";
     private static final AuthenticationExecutionModel.Requirement[] REQUIREMENT_CHOICES = {
             AuthenticationExecutionModel.Requirement.REQUIRED,
             AuthenticationExecutionModel.Requirement.DISABLED
     };
 
+    private final TermsOfServiceFormAction formAction = new TermsOfServiceFormAction(ClientTermsOfServiceCache.INSTANCE);
+
     @Override
     public String getDisplayType() {
         return "Terms of service and policy confirmation";
@@ -59,7 +65,7 @@ public class TermsOfServiceFormActionFactory implements FormActionFactory {
 
     @Override
     public FormAction create(KeycloakSession session) {
-        return new TermsOfServiceFormAction(session);
+        return formAction;
     }
 
     @Override
@@ -68,6 +74,39 @@ public class TermsOfServiceFormActionFactory implements FormActionFactory {
 
     @Override
     public void postInit(KeycloakSessionFactory factory) {
+        ClusterNotifications.registerListener(factory, CLIENT_INVALIDATION_TASK_KEY,
+                event -> ClientTermsOfServiceCache.INSTANCE.invalidate((ClientInvalidationEvent) event));
+
+        factory.register(event -> {
+            if (event instanceof ClientModel.ClientUpdatedEvent) {
+                ClientModel.ClientUpdatedEvent updated = (ClientModel.ClientUpdatedEvent) event;
+                invalidateAfterCommit(updated.getKeycloakSession(), updated.getUpdatedClient());
+            } else if (event instanceof ClientModel.ClientRemovedEvent) {
+                ClientModel.ClientRemovedEvent removed = (ClientModel.ClientRemovedEvent) event;
+                invalidateAfterCommit(removed.getKeycloakSession(), removed.getClient());
+            } else if (event instanceof RealmModel.RealmRemovedEvent) {
+                String realmId = ((RealmModel.RealmRemovedEvent) event).getRealm().getId();
+                ClientTermsOfServiceCache.INSTANCE.invalidate(new ClientInvalidationEvent(realmId, null));
+            }
+        });
+    }
+
+    private static void invalidateAfterCommit(KeycloakSession session, ClientModel client) {
+        ClientInvalidationEvent invalidation = new ClientInvalidationEvent(client.getRealm().getId(), client.getId());
+
+        // invalidating before the commit would let a concurrent request cache the old attributes again
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                ClientTermsOfServiceCache.INSTANCE.invalidate(invalidation);
+                ClusterNotifications.notify(session, CLIENT_INVALIDATION_TASK_KEY, invalidation);
+            }
+
+            @Override
+            protected void rollbackImpl() {
+
+            }
+        });
     }
 
     @Override
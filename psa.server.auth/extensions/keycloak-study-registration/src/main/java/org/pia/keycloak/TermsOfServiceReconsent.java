@@ -0,0 +1,142 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import jakarta.ws.rs.core.MultivaluedMap;
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.authentication.RequiredActionContext;
+import org.keycloak.authentication.RequiredActionFactory;
+import org.keycloak.authentication.RequiredActionProvider;
+import org.keycloak.common.util.Time;
+import org.keycloak.forms.login.LoginFormsProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.FormMessage;
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+
+/**
+ * Requires participants to accept the terms of service and privacy policy of a client again, after their URIs changed.
+ * The check on login compares the digest of the cached client configuration with a single user attribute,
+ * which is loaded with the user anyway. Participants created before the configured {@code rollout}
+ * (ISO-8601 instant) are treated as having accepted the versions current on their first login after it.
+ * Without a rollout, every participant without recorded versions has to accept them.
+ */
+public class TermsOfServiceReconsent implements RequiredActionProvider, RequiredActionFactory {
+    public static final String PROVIDER_ID = "PIA_TERMS_RECONSENT";
+    public static final String TEMPLATE = "pia-terms-reconsent.ftl";
+    public static final String CONFIG_ROLLOUT = "rollout";
+    private static final long NO_ROLLOUT = Long.MIN_VALUE;
+    private static final Logger logger = Logger.getLogger(TermsOfServiceReconsent.class);
+
+    private final ClientTermsOfServiceCache termsOfServiceCache;
+    private long rolloutMillis;
+
+    public TermsOfServiceReconsent() {
+        this(ClientTermsOfServiceCache.INSTANCE);
+    }
+
+    public TermsOfServiceReconsent(ClientTermsOfServiceCache termsOfServiceCache) {
+        this(termsOfServiceCache, NO_ROLLOUT);
+    }
+
+    public TermsOfServiceReconsent(ClientTermsOfServiceCache termsOfServiceCache, long rolloutMillis) {
+        this.termsOfServiceCache = termsOfServiceCache;
+        this.rolloutMillis = rolloutMillis;
+    }
+
+    @Override
+    public void evaluateTriggers(RequiredActionContext context) {
+        ClientTermsOfService termsOfService = getTermsOfService(context);
+
+        if (TermsOfServiceAcceptance.seedLegacyAcceptance(context.getUser(), termsOfService, rolloutMillis)) {
+            return;
+        }
+
+        if (!TermsOfServiceAcceptance.hasAcceptedCurrentVersion(context.getUser(), termsOfService)) {
+            context.getUser().addRequiredAction(PROVIDER_ID);
+        }
+    }
+
+    @Override
+    public void requiredActionChallenge(RequiredActionContext context) {
+        ClientTermsOfService termsOfService = getTermsOfService(context);
+
+        if (TermsOfServiceAcceptance.hasAcceptedCurrentVersion(context.getUser(), termsOfService)) {
+            context.success();
+            return;
+        }
+
+        context.challenge(createForm(context, termsOfService).createForm(TEMPLATE));
+    }
+
+    @Override
+    public void processAction(RequiredActionContext context) {
+        ClientTermsOfService termsOfService = getTermsOfService(context);
+        MultivaluedMap<String, String> formData = context.getHttpRequest().getDecodedFormParameters();
+        List<FormMessage> errors = TermsOfServiceFormAction.validateConfirmations(formData, termsOfService);
+
+        if (!errors.isEmpty()) {
+            context.challenge(createForm(context, termsOfService).setErrors(errors).createForm(TEMPLATE));
+            return;
+        }
+
+        TermsOfServiceAcceptance.record(context.getUser(), termsOfService, Time.currentTimeMillis());
+        context.success();
+    }
+
+    @Override
+    public String getDisplayText() {
+        return "PIA Terms and Conditions Re-Consent";
+    }
+
+    @Override
+    public RequiredActionProvider create(KeycloakSession session) {
+        return this;
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        String rollout = config.get(CONFIG_ROLLOUT);
+
+        if (rollout == null || rollout.isBlank()) {
+            return;
+        }
+
+        try {
+            rolloutMillis = Instant.parse(rollout).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            logger.errorf("Invalid %s %s, participants without recorded terms have to accept them", CONFIG_ROLLOUT, rollout);
+        }
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+
+    }
+
+    @Override
+    public void close() {
+
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+
+    private ClientTermsOfService getTermsOfService(RequiredActionContext context) {
+        return termsOfServiceCache.get(context.getRealm(), context.getAuthenticationSession().getClient());
+    }
+
+    private LoginFormsProvider createForm(RequiredActionContext context, ClientTermsOfService termsOfService) {
+        return TermsOfServiceFormAction.setAttributes(context.getSession(), context.form(), termsOfService);
+    }
+}
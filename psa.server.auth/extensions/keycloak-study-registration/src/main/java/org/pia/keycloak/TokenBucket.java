@@ -0,0 +1,40 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket. Instead of the number of tokens it keeps the time at which the bucket
+ * will be full again (generic cell rate algorithm), so that a single compare-and-swap updates the state.
+ */
+public class TokenBucket {
+    private final long nanosPerToken;
+    private final long capacityNanos;
+    private final AtomicLong fullAt;
+
+    public TokenBucket(RateLimit limit, long nowNanos) {
+        this.nanosPerToken = limit.getNanosPerToken();
+        this.capacityNanos = nanosPerToken * limit.getBurst();
+        this.fullAt = new AtomicLong(nowNanos);
+    }
+
+    public boolean tryAcquire(long nowNanos) {
+        while (true) {
+            long current = fullAt.get();
+            long next = Math.max(current, nowNanos) + nanosPerToken;
+
+            if (next - nowNanos > capacityNanos) {
+                return false;
+            }
+
+            if (fullAt.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+}
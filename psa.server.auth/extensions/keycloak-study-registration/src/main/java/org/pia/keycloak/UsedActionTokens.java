@@ -0,0 +1,63 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.keycloak.authentication.actiontoken.DefaultActionToken;
+import org.keycloak.common.util.Time;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Action tokens which have already been used, kept in the cluster cache until the token expires.
+ * Lets repeated requests of a link, e.g. by email scanners, be answered without handling the token again.
+ * Requests of a link before it is used are not kept, so they do not write to the cluster cache.
+ */
+public class UsedActionTokens {
+    private static final String KEY_PREFIX = "pia-used-action-token:";
+
+    private final ClusterCache cache;
+
+    public UsedActionTokens(ClusterCache cache) {
+        this.cache = cache;
+    }
+
+    public boolean isUsed(DefaultActionToken token) {
+        return cache.get(getKey(token)) != null;
+    }
+
+    /**
+     * @return true if the token has not been used before and is now marked as used
+     */
+    public boolean markUsed(DefaultActionToken token) {
+        long lifespanMillis = getRemainingLifespanMillis(token);
+
+        if (lifespanMillis <= 0) {
+            return true;
+        }
+
+        return cache.putIfAbsent(getKey(token), Boolean.TRUE, lifespanMillis) == null;
+    }
+
+    /**
+     * Allows to use the token again, if handling it has been rolled back.
+     */
+    public void release(DefaultActionToken token) {
+        cache.remove(getKey(token));
+    }
+
+    private static long getRemainingLifespanMillis(DefaultActionToken token) {
+        if (token.getExp() == null) {
+            return 0;
+        }
+
+        return TimeUnit.SECONDS.toMillis(token.getExp()) - Time.currentTimeMillis();
+    }
+
+    private static String getKey(DefaultActionToken token) {
+        return KEY_PREFIX + token.getActionVerificationNonce();
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.jboss.logging.Logger;
+import org.keycloak.events.Errors;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventBuilder;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * Records the SEND_VERIFY_EMAIL event of the registration, as soon as the delivery of the verification email completed.
+ */
+public class VerifyEmailDeliveryListener implements EmailOutbox.DeliveryListener {
+    private static final Logger logger = Logger.getLogger(VerifyEmailDeliveryListener.class);
+
+    private final KeycloakSessionFactory sessionFactory;
+
+    public VerifyEmailDeliveryListener(KeycloakSessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+    }
+
+    @Override
+    public void delivered(OutboxEmail email) {
+        recordEvent(email.getEvent(), null);
+        StudyRegistrationMetrics.sentVerifyEmail(email.getStudy(), true);
+        StudyRegistrationMetrics.record(StudyRegistrationMetrics.PHASE_DELIVER_VERIFY_EMAIL, email.getStudy(), email.getEnqueuedAt());
+    }
+
+    @Override
+    public void failed(OutboxEmail email, Exception cause) {
+        logger.error("Failed to send verification email", cause);
+        recordEvent(email.getEvent(), Errors.EMAIL_SEND_FAILED);
+        StudyRegistrationMetrics.sentVerifyEmail(email.getStudy(), false);
+        StudyRegistrationMetrics.record(StudyRegistrationMetrics.PHASE_DELIVER_VERIFY_EMAIL, email.getStudy(), email.getEnqueuedAt());
+    }
+
+    private void recordEvent(Event event, String error) {
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            RealmModel realm = session.realms().getRealm(event.getRealmId());
+
+            if (realm == null) {
+                return;
+            }
+
+            session.getContext().setRealm(realm);
+
+            EventBuilder builder = new EventBuilder(realm, session)
+                    .event(event.getType())
+                    .client(event.getClientId())
+                    .user(event.getUserId())
+                    .session(event.getSessionId())
+                    .ipAddress(event.getIpAddress());
+
+            if (event.getDetails() != null) {
+                event.getDetails().forEach(builder::detail);
+            }
+
+            if (error == null) {
+                builder.success();
+            } else {
+                builder.error(error);
+            }
+        });
+    }
+}
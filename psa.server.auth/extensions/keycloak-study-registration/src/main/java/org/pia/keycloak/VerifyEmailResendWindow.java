@@ -0,0 +1,77 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.jboss.logging.Logger;
+import org.keycloak.common.util.Time;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Number of verification emails sent to each user, shared by all authentication sessions in the cluster cache.
+ * The count of the sliding window is estimated from the current and the previous fixed window,
+ * whose entries are evicted by the cache after two windows.
+ */
+public class VerifyEmailResendWindow {
+    public static final long DEFAULT_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(2);
+    public static final int DEFAULT_MAX_EMAILS = 1;
+    private static final String KEY_PREFIX = "pia-verify-email-sent:";
+    private static final int MAX_ATTEMPTS = 16;
+
+    private static final Logger logger = Logger.getLogger(VerifyEmailResendWindow.class);
+
+    private final ClusterCache cache;
+    private final long windowMillis;
+    private final int maxEmails;
+
+    public VerifyEmailResendWindow(ClusterCache cache, long windowMillis, int maxEmails) {
+        this.cache = cache;
+        this.windowMillis = windowMillis;
+        this.maxEmails = maxEmails;
+    }
+
+    /**
+     * Counts an email to the user if the sliding window has room for it.
+     *
+     * @return false if the email has to be suppressed
+     */
+    public boolean tryAcquire(String realmId, String userId, String email) {
+        long now = Time.currentTimeMillis();
+        long window = now / windowMillis;
+        double previousWeight = 1 - (double) (now % windowMillis) / windowMillis;
+        double previous = getCount(getKey(realmId, userId, email, window - 1)) * previousWeight;
+        String key = getKey(realmId, userId, email, window);
+        long lifespanMillis = 2 * windowMillis;
+
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            Object current = cache.get(key);
+            int count = current instanceof Integer ? (Integer) current : 0;
+
+            if (previous + count + 1 > maxEmails) {
+                return false;
+            }
+
+            if (current == null ? cache.putIfAbsent(key, 1, lifespanMillis) == null
+                    : cache.replace(key, current, count + 1, lifespanMillis)) {
+                return true;
+            }
+        }
+
+        // under contention for a single user the email is a duplicate anyway
+        logger.debugf("Could not count verification email of user %s", userId);
+        return false;
+    }
+
+    private int getCount(String key) {
+        Object count = cache.get(key);
+        return count instanceof Integer ? (Integer) count : 0;
+    }
+
+    private static String getKey(String realmId, String userId, String email, long window) {
+        return KEY_PREFIX + realmId + ":" + userId + ":" + email + ":" + window;
+    }
+}
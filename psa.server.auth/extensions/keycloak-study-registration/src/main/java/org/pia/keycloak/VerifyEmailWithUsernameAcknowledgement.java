@@ -23,6 +23,8 @@
  * This file has been modified:
  *  - create a custom implementation of VerifyEmail required action which extends the original one
  *  - use a custom implementation of VerifyEmailActionToken
+ *  - suppress verification emails within the resend window of the user
+ *  - deliver verification emails from the outbox of VerifyEmailWithUsernameAcknowledgementFactory
  */
 
 package org.pia.keycloak;
@@ -32,7 +34,6 @@ import org.keycloak.authentication.*;
 import org.keycloak.authentication.requiredactions.VerifyEmail;
 import org.keycloak.common.util.Time;
 import org.keycloak.email.EmailException;
-import org.keycloak.email.EmailTemplateProvider;
 import org.keycloak.events.Details;
 import org.keycloak.events.Errors;
 import org.keycloak.events.EventBuilder;
@@ -58,6 +59,16 @@ public class VerifyEmailWithUsernameAcknowledgement extends VerifyEmail {
 
     private static final Logger logger = Logger.getLogger(VerifyEmailWithUsernameAcknowledgement.class);
 
+    private final EmailOutbox outbox;
+    private final long resendWindowMillis;
+    private final int maxEmailsPerWindow;
+
+    public VerifyEmailWithUsernameAcknowledgement(EmailOutbox outbox, long resendWindowMillis, int maxEmailsPerWindow) {
+        this.outbox = outbox;
+        this.resendWindowMillis = resendWindowMillis;
+        this.maxEmailsPerWindow = maxEmailsPerWindow;
+    }
+
     @Override
     public void requiredActionChallenge(RequiredActionContext context) {
         AuthenticationSessionModel authSession = context.getAuthenticationSession();
@@ -81,8 +92,20 @@ public class VerifyEmailWithUsernameAcknowledgement extends VerifyEmail {
         // Do not allow resending e-mail by simple page refresh, i.e. when e-mail sent, it should be resent properly via email-verification endpoint
         if (! Objects.equals(authSession.getAuthNote(Constants.VERIFY_EMAIL_KEY), email)) {
             authSession.setAuthNote(Constants.VERIFY_EMAIL_KEY, email);
-            EventBuilder event = context.getEvent().clone().event(EventType.SEND_VERIFY_EMAIL).detail(Details.EMAIL, email);
-            challenge = sendVerifyEmail(context.getSession(), loginFormsProvider, context.getUser(), context.getAuthenticationSession(), event);
+
+            // Other sessions of the user, e.g. in further tabs or on other devices, share the resend window
+            VerifyEmailResendWindow resendWindow = new VerifyEmailResendWindow(ClusterCache.of(context.getSession()),
+                    resendWindowMillis, maxEmailsPerWindow);
+
+            if (resendWindow.tryAcquire(context.getRealm().getId(), context.getUser().getId(), email)) {
+                EventBuilder event = context.getEvent().clone().event(EventType.SEND_VERIFY_EMAIL).detail(Details.EMAIL, email);
+                challenge = sendVerifyEmail(context.getSession(), loginFormsProvider, context.getUser(), context.getAuthenticationSession(), event);
+            } else {
+                StudyRegistrationMetrics.suppressedVerifyEmail(context.getUser().getFirstAttribute(StudyFormAction.USER_ATTR_STUDY));
+                challenge = loginFormsProvider
+                        .setInfo(StudyRegistrationMessages.VERIFY_EMAIL_RECENTLY_SENT)
+                        .createResponse(UserModel.RequiredAction.VERIFY_EMAIL);
+            }
         } else {
             challenge = loginFormsProvider.createResponse(UserModel.RequiredAction.VERIFY_EMAIL);
         }
@@ -90,17 +113,6 @@ public class VerifyEmailWithUsernameAcknowledgement extends VerifyEmail {
         context.challenge(challenge);
     }
 
-    @Override
-    public String getDisplayText() {
-        return "Verify Email With Username Acknowledgement";
-    }
-
-
-    @Override
-    public String getId() {
-        return VerifyEmailWithUsernameAcknowledgement.PROVIDER_ID;
-    }
-
     private Response sendVerifyEmail(KeycloakSession session, LoginFormsProvider forms, UserModel user, AuthenticationSessionModel authSession, EventBuilder event) throws UriBuilderException, IllegalArgumentException {
         RealmModel realm = session.getContext().getRealm();
         UriInfo uriInfo = session.getContext().getUri();
@@ -116,22 +128,32 @@ public class VerifyEmailWithUsernameAcknowledgement extends VerifyEmail {
                         authSessionEncodedId,
                         user.getEmail(),
                         authSession.getClient().getClientId());
-        UriBuilder builder = Urls.actionTokenBuilder(uriInfo.getBaseUri(), token.serialize(session, realm, uriInfo),
+        UriBuilder builder = Urls.actionTokenBuilder(uriInfo.getBaseUri(), ActionTokenSigner.INSTANCE.serialize(token, session, realm, uriInfo),
                 authSession.getClient().getClientId(), authSession.getTabId());
         String link = builder.build(realm.getName()).toString();
         long expirationInMinutes = TimeUnit.SECONDS.toMinutes(validityInSecs);
+        String study = user.getFirstAttribute(StudyFormAction.USER_ATTR_STUDY);
+        long start = StudyRegistrationMetrics.start();
 
         try {
-            session
-              .getProvider(EmailTemplateProvider.class)
+            OutboxEmailTemplateProvider emailProvider = new OutboxEmailTemplateProvider(session, outbox, event.getEvent().clone(), study);
+            emailProvider
               .setAuthenticationSession(authSession)
               .setRealm(realm)
               .setUser(user)
               .sendVerifyEmail(link, expirationInMinutes);
-            event.success();
+
+            // queued emails record their event after the delivery
+            if (!emailProvider.isQueued()) {
+                event.success();
+                StudyRegistrationMetrics.sentVerifyEmail(study, true);
+            }
         } catch (EmailException e) {
             logger.error("Failed to send verification email", e);
             event.error(Errors.EMAIL_SEND_FAILED);
+            StudyRegistrationMetrics.sentVerifyEmail(study, false);
+        } finally {
+            StudyRegistrationMetrics.record(StudyRegistrationMetrics.PHASE_SEND_VERIFY_EMAIL, study, start);
         }
 
         return forms.createResponse(UserModel.RequiredAction.VERIFY_EMAIL);
@@ -24,14 +24,18 @@
  *  - create a custom implementation of VerifyEmailActionTokenHandler
  *  - always remove auth session after successful verification
  *  - show custom success message with username
+ *  - reuse the signer of the realm
+ *  - answer repeated requests of a used token with an info page
  */
 package org.pia.keycloak;
 
+import org.keycloak.Config;
 import org.keycloak.authentication.actiontoken.AbstractActionTokenHandler;
 import org.keycloak.TokenVerifier.Predicate;
 import org.keycloak.authentication.actiontoken.*;
 import org.keycloak.events.*;
 import org.keycloak.forms.login.LoginFormsProvider;
+import org.keycloak.models.AbstractKeycloakTransaction;
 import org.keycloak.models.Constants;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
@@ -53,6 +57,8 @@ import jakarta.ws.rs.core.UriInfo;
  */
 public class VerifyEmailWithUsernameAcknowledgementActionTokenHandler extends AbstractActionTokenHandler<VerifyEmailWithUsernameAcknowledgementActionToken> {
 
+    private StudyRegistrationConfig config = StudyRegistrationConfig.DEFAULT;
+
     public VerifyEmailWithUsernameAcknowledgementActionTokenHandler() {
         super(
           VerifyEmailWithUsernameAcknowledgementActionToken.TOKEN_TYPE,
@@ -63,6 +69,11 @@ public class VerifyEmailWithUsernameAcknowledgementActionTokenHandler extends Ab
         );
     }
 
+    @Override
+    public void init(Config.Scope scope) {
+        config = StudyRegistrationConfig.of(scope);
+    }
+
     @Override
     public Predicate<? super VerifyEmailWithUsernameAcknowledgementActionToken>[] getVerifiers(ActionTokenContext<VerifyEmailWithUsernameAcknowledgementActionToken> tokenContext) {
         return TokenUtils.predicates(
@@ -75,6 +86,17 @@ public class VerifyEmailWithUsernameAcknowledgementActionTokenHandler extends Ab
 
     @Override
     public Response handleToken(VerifyEmailWithUsernameAcknowledgementActionToken token, ActionTokenContext<VerifyEmailWithUsernameAcknowledgementActionToken> tokenContext) {
+        long start = StudyRegistrationMetrics.start();
+        String study = tokenContext.getAuthenticationSession().getAuthenticatedUser().getFirstAttribute(StudyFormAction.USER_ATTR_STUDY);
+
+        try {
+            return verifyEmail(token, tokenContext);
+        } finally {
+            StudyRegistrationMetrics.record(StudyRegistrationMetrics.PHASE_VERIFY_EMAIL, study, start);
+        }
+    }
+
+    private Response verifyEmail(VerifyEmailWithUsernameAcknowledgementActionToken token, ActionTokenContext<VerifyEmailWithUsernameAcknowledgementActionToken> tokenContext) {
         UserModel user = tokenContext.getAuthenticationSession().getAuthenticatedUser();
         EventBuilder event = tokenContext.getEvent();
 
@@ -84,14 +106,20 @@ public class VerifyEmailWithUsernameAcknowledgementActionTokenHandler extends Ab
         final UriInfo uriInfo = tokenContext.getUriInfo();
         final RealmModel realm = tokenContext.getRealm();
         final KeycloakSession session = tokenContext.getSession();
+        final UsedActionTokens usedTokens = new UsedActionTokens(ClusterCache.of(session));
 
-        if (tokenContext.isAuthenticationSessionFresh()) {
-            // Update the authentication session in the token
-            token.setCompoundOriginalAuthenticationSessionId(token.getCompoundAuthenticationSessionId());
+        String study = user.getFirstAttribute(StudyFormAction.USER_ATTR_STUDY);
+
+        if (usedTokens.isUsed(token)) {
+            StudyRegistrationMetrics.verifyEmailLinkRequest(study, "used");
+            return createAlreadyVerifiedPage(session, authSession);
+        }
 
-            String authSessionEncodedId = AuthenticationSessionCompoundId.fromAuthSession(authSession).getEncodedId();
-            token.setCompoundAuthenticationSessionId(authSessionEncodedId);
-            UriBuilder builder = Urls.actionTokenBuilder(uriInfo.getBaseUri(), token.serialize(session, realm, uriInfo),
+        if (tokenContext.isAuthenticationSessionFresh()) {
+            // a fresh authentication session has been created for the request, so every request of the link,
+            // e.g. by email scanners, signs a new confirm token bound to it
+            StudyRegistrationMetrics.verifyEmailLinkRequest(study, "unused");
+            UriBuilder builder = Urls.actionTokenBuilder(uriInfo.getBaseUri(), getConfirmToken(token, tokenContext),
                     authSession.getClient().getClientId(), authSession.getTabId());
             String confirmUri = builder.build(realm.getName()).toString();
 
@@ -102,12 +130,31 @@ public class VerifyEmailWithUsernameAcknowledgementActionTokenHandler extends Ab
                     .createInfoPage();
         }
 
+        // concurrent requests of the same link only verify the email once
+        if (!usedTokens.markUsed(token)) {
+            return createAlreadyVerifiedPage(session, authSession);
+        }
+
+        // the token can be used again, if the verification is not committed
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+
+            }
+
+            @Override
+            protected void rollbackImpl() {
+                usedTokens.release(token);
+            }
+        });
+
         // verify user email as we know it is valid as this entry point would never have gotten here.
         user.setEmailVerified(true);
         user.removeRequiredAction(RequiredAction.VERIFY_EMAIL);
         authSession.removeRequiredAction(RequiredAction.VERIFY_EMAIL);
 
         event.success();
+        StudyRegistrationEventListenerProvider.publish(session, () -> createEmailVerifiedEvent(realm, user, session));
 
         AuthenticationSessionManager asm = new AuthenticationSessionManager(tokenContext.getSession());
         asm.removeAuthenticationSession(tokenContext.getRealm(), authSession, true);
@@ -120,4 +167,33 @@ public class VerifyEmailWithUsernameAcknowledgementActionTokenHandler extends Ab
                 .createInfoPage();
     }
 
+    StudyParticipantEvent createEmailVerifiedEvent(RealmModel realm, UserModel user, KeycloakSession session) {
+        String study = user.getFirstAttribute(StudyFormAction.USER_ATTR_STUDY);
+
+        if (study == null) {
+            return null;
+        }
+
+        StudyGroupMetadata metadata = StudyGroupMetadataCache.INSTANCE.get(realm, study, config.getRegistrationLimitKey(),
+                () -> session.groups().getGroupById(realm, study));
+
+        return metadata != null ? new EmailVerifiedEvent(user.getUsername(), metadata.getName()) : null;
+    }
+
+    private Response createAlreadyVerifiedPage(KeycloakSession session, AuthenticationSessionModel authSession) {
+        return session.getProvider(LoginFormsProvider.class)
+                .setAuthenticationSession(authSession)
+                .setSuccess(StudyRegistrationMessages.EMAIL_ALREADY_VERIFIED)
+                .createInfoPage();
+    }
+
+    private String getConfirmToken(VerifyEmailWithUsernameAcknowledgementActionToken token, ActionTokenContext<VerifyEmailWithUsernameAcknowledgementActionToken> tokenContext) {
+        String authSessionEncodedId = AuthenticationSessionCompoundId.fromAuthSession(tokenContext.getAuthenticationSession()).getEncodedId();
+
+        token.setCompoundOriginalAuthenticationSessionId(token.getCompoundAuthenticationSessionId());
+        token.setCompoundAuthenticationSessionId(authSessionEncodedId);
+
+        return ActionTokenSigner.INSTANCE.serialize(token, tokenContext.getSession(), tokenContext.getRealm(), tokenContext.getUriInfo());
+    }
+
 }
@@ -0,0 +1,71 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.keycloak.Config;
+import org.keycloak.authentication.RequiredActionFactory;
+import org.keycloak.authentication.RequiredActionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Owns the outbox of the verification emails, which is shared by all requests and shut down with the server.
+ */
+public class VerifyEmailWithUsernameAcknowledgementFactory implements RequiredActionFactory {
+    public static final String CONFIG_RESEND_WINDOW_SECONDS = "resendWindowSeconds";
+    public static final String CONFIG_MAX_EMAILS_PER_WINDOW = "maxEmailsPerWindow";
+    public static final String CONFIG_OUTBOX_CAPACITY = "outboxCapacity";
+    public static final String CONFIG_OUTBOX_WORKERS = "outboxWorkers";
+    public static final String CONFIG_OUTBOX_BATCH_SIZE = "outboxBatchSize";
+
+    private EmailOutbox outbox;
+    private long resendWindowMillis = VerifyEmailResendWindow.DEFAULT_WINDOW_MILLIS;
+    private int maxEmailsPerWindow = VerifyEmailResendWindow.DEFAULT_MAX_EMAILS;
+    private int outboxCapacity = EmailOutbox.DEFAULT_CAPACITY;
+    private int outboxWorkers = EmailOutbox.DEFAULT_WORKERS;
+    private int outboxBatchSize = EmailOutbox.DEFAULT_BATCH_SIZE;
+
+    @Override
+    public RequiredActionProvider create(KeycloakSession session) {
+        return new VerifyEmailWithUsernameAcknowledgement(outbox, resendWindowMillis, maxEmailsPerWindow);
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        resendWindowMillis = TimeUnit.SECONDS.toMillis(Math.max(1, config.getLong(CONFIG_RESEND_WINDOW_SECONDS,
+                TimeUnit.MILLISECONDS.toSeconds(VerifyEmailResendWindow.DEFAULT_WINDOW_MILLIS))));
+        maxEmailsPerWindow = Math.max(1, config.getInt(CONFIG_MAX_EMAILS_PER_WINDOW, VerifyEmailResendWindow.DEFAULT_MAX_EMAILS));
+        outboxCapacity = Math.max(1, config.getInt(CONFIG_OUTBOX_CAPACITY, EmailOutbox.DEFAULT_CAPACITY));
+        outboxWorkers = Math.max(1, config.getInt(CONFIG_OUTBOX_WORKERS, EmailOutbox.DEFAULT_WORKERS));
+        outboxBatchSize = Math.max(1, config.getInt(CONFIG_OUTBOX_BATCH_SIZE, EmailOutbox.DEFAULT_BATCH_SIZE));
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        outbox = new EmailOutbox(factory, new VerifyEmailDeliveryListener(factory), outboxCapacity, outboxWorkers,
+                outboxBatchSize);
+    }
+
+    @Override
+    public void close() {
+        if (outbox != null) {
+            outbox.shutdown();
+        }
+    }
+
+    @Override
+    public String getDisplayText() {
+        return "Verify Email With Username Acknowledgement";
+    }
+
+    @Override
+    public String getId() {
+        return VerifyEmailWithUsernameAcknowledgement.PROVIDER_ID;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import jakarta.ws.rs.core.UriInfo;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.keycloak.TokenVerifier;
+import org.keycloak.common.util.Time;
+import org.keycloak.crypto.*;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.TokenManager;
+
+import java.net.URI;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class ActionTokenSignerTest {
+    private KeycloakSession session;
+    private SignatureProvider signatureProvider;
+    private RealmModel realm;
+    private UriInfo uriInfo;
+    private KeyWrapper key;
+    private ActionTokenSigner signer;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+
+        key = new KeyWrapper();
+        key.setKid("kid");
+        key.setAlgorithm(Algorithm.RS256);
+        key.setType(KeyType.RSA);
+        key.setUse(KeyUse.SIG);
+        key.setPrivateKey(keyPair.getPrivate());
+        key.setPublicKey(keyPair.getPublic());
+
+        session = mock(KeycloakSession.class);
+        TokenManager tokenManager = mock(TokenManager.class);
+        signatureProvider = mock(SignatureProvider.class);
+        realm = mockRealm("realm");
+        uriInfo = mock(UriInfo.class);
+
+        when(session.tokens()).thenReturn(tokenManager);
+        when(tokenManager.signatureAlgorithm(any())).thenReturn(Algorithm.RS256);
+        when(session.getProvider(SignatureProvider.class, Algorithm.RS256)).thenReturn(signatureProvider);
+        when(signatureProvider.signer()).thenAnswer(invocation -> new AsymmetricSignatureSignerContext(key));
+        when(uriInfo.getBaseUri()).thenReturn(URI.create("https://localhost/auth/"));
+
+        signer = new ActionTokenSigner(60_000, 10);
+    }
+
+    @Test
+    @DisplayName("Serialize a token which can be verified with the realm key")
+    void serialize() throws Exception {
+        String serialized = signer.serialize(newToken(), session, realm, uriInfo);
+
+        VerifyEmailWithUsernameAcknowledgementActionToken token = TokenVerifier
+                .create(serialized, VerifyEmailWithUsernameAcknowledgementActionToken.class)
+                .verifierContext(new AsymmetricSignatureVerifierContext(key))
+                .verify()
+                .getToken();
+
+        assertEquals("participant@example.com", token.getEmail());
+        assertEquals("https://localhost/auth/realms/realm", token.getIssuer());
+        assertEquals("kid", TokenVerifier.create(serialized, VerifyEmailWithUsernameAcknowledgementActionToken.class).getHeader().getKeyId());
+    }
+
+    @Test
+    @DisplayName("Look up the signer only once per realm and algorithm")
+    void signerCached() {
+        signer.serialize(newToken(), session, realm, uriInfo);
+        signer.serialize(newToken(), session, realm, uriInfo);
+        verify(signatureProvider, times(1)).signer();
+
+        signer.serialize(newToken(), session, mockRealm("other"), uriInfo);
+        verify(signatureProvider, times(2)).signer();
+    }
+
+    @Test
+    @DisplayName("Look up the signer again after the realm has been invalidated")
+    void invalidateRealm() {
+        signer.serialize(newToken(), session, realm, uriInfo);
+        signer.invalidateRealm("realm");
+        signer.serialize(newToken(), session, realm, uriInfo);
+
+        verify(signatureProvider, times(2)).signer();
+    }
+
+    private static RealmModel mockRealm(String name) {
+        RealmModel realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn(name);
+        when(realm.getName()).thenReturn(name);
+        return realm;
+    }
+
+    private static VerifyEmailWithUsernameAcknowledgementActionToken newToken() {
+        return new VerifyEmailWithUsernameAcknowledgementActionToken("user", Time.currentTime() + 300,
+                "auth-session", "participant@example.com", "client");
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.keycloak.common.util.Time;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ApproximateRegistrationCounterTest {
+    private final List<Runnable> backgroundTasks = new ArrayList<>();
+    private final ApproximateRegistrationCounter counter = new ApproximateRegistrationCounter(backgroundTasks::add);
+
+    @AfterEach
+    void tearDown() {
+        Time.setOffset(0);
+    }
+
+    @Test
+    @DisplayName("Should count in the request only when there is no count yet")
+    void countOnce() {
+        assertEquals(10, counter.get("realm", "study", 10_000, () -> 10, () -> fail("should not refresh")));
+        assertEquals(10, counter.get("realm", "study", 10_000, () -> fail("should not count again"), () -> fail("should not refresh")));
+    }
+
+    @Test
+    @DisplayName("Should return the outdated count while it is refreshed in the background")
+    void refreshInBackground() {
+        counter.get("realm", "study", 10_000, () -> 10, () -> 0);
+        Time.setOffset(11);
+
+        assertEquals(10, counter.get("realm", "study", 10_000, () -> fail("should not count in the request"), () -> 20));
+        assertEquals(10, counter.get("realm", "study", 10_000, () -> 30, () -> 30));
+        assertEquals(1, backgroundTasks.size());
+
+        backgroundTasks.get(0).run();
+
+        assertEquals(20, counter.get("realm", "study", 10_000, () -> 40, () -> 40));
+    }
+
+    @Test
+    @DisplayName("Should add registrations of this node immediately")
+    void increment() {
+        counter.get("realm", "study", 10_000, () -> 10, () -> 0);
+
+        counter.increment("realm", "study");
+        counter.increment("realm", "other");
+
+        assertEquals(11, counter.get("realm", "study", 10_000, () -> 0, () -> 0));
+        assertEquals(0, counter.get("realm", "other", 10_000, () -> 0, () -> 0));
+    }
+
+    @Test
+    @DisplayName("Should keep the count, when the refresh fails")
+    void refreshFailure() {
+        counter.get("realm", "study", 10_000, () -> 10, () -> 0);
+        Time.setOffset(11);
+
+        counter.get("realm", "study", 10_000, () -> 0, () -> {
+            throw new IllegalStateException("database unavailable");
+        });
+        backgroundTasks.get(0).run();
+
+        assertEquals(10, counter.get("realm", "study", 10_000, () -> 0, () -> 20));
+        assertEquals(2, backgroundTasks.size());
+    }
+}
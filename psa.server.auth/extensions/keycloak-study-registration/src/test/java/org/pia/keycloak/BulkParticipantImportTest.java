@@ -0,0 +1,184 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransaction;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.util.JsonSerialization;
+import org.mockito.ArgumentCaptor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class BulkParticipantImportTest {
+    private static final String REALM = "realm";
+    private static final String STUDY = "study";
+
+    private KeycloakSessionFactory sessionFactory;
+    private KeycloakSession session;
+    private GroupModel group;
+    private RoleModel role;
+    private StudyRegistrationCounter counter;
+    private List<UserModel> users;
+
+    @BeforeEach
+    void setUp() {
+        sessionFactory = mock(KeycloakSessionFactory.class);
+        session = mock(KeycloakSession.class, RETURNS_DEEP_STUBS);
+        // counts the memberships without the stored counts
+        doReturn(null).when(session).getProvider(JpaConnectionProvider.class);
+        doReturn(null).when(session).getProvider(EventListenerProvider.class, StudyRegistrationEventListenerProviderFactory.PROVIDER_ID);
+        RealmModel realm = mock(RealmModel.class);
+        group = mock(GroupModel.class);
+        role = mock(RoleModel.class);
+        counter = new StudyRegistrationCounter(new LocalClusterCache());
+        users = new ArrayList<>();
+
+        when(sessionFactory.create()).thenReturn(session);
+        when(session.realms().getRealm(REALM)).thenReturn(realm);
+        when(session.groups().getGroupById(realm, STUDY)).thenReturn(group);
+        when(session.roles().getRealmRole(realm, StudyRegistrationContext.PROBAND_ROLE)).thenReturn(role);
+        when(session.users().getUsersCount(eq(realm), anySet())).thenReturn(0);
+        when(session.users().getUserByUsername(any(), anyString())).thenReturn(null);
+        when(session.users().getUserByEmail(any(), anyString())).thenReturn(null);
+        when(session.users().addUser(eq(realm), anyString())).thenAnswer(invocation -> {
+            UserModel user = mock(UserModel.class);
+            when(user.getId()).thenReturn("id-" + invocation.getArgument(1));
+            when(user.getUsername()).thenReturn(invocation.getArgument(1));
+            users.add(user);
+            return user;
+        });
+    }
+
+    @Test
+    @DisplayName("Should create participants like the registration form in one transaction per chunk")
+    void importInChunks() throws IOException {
+        List<Map<String, Object>> results = runWithLimit(-1, 2,
+                "{\"username\": \"first\", \"email\": \"first@example.com\"}",
+                "",
+                "{\"username\": \"second\"}",
+                "{\"username\": \"third\"}");
+
+        assertEquals(List.of(1, 3, 4), results.stream().map(result -> result.get("line")).toList());
+        assertTrue(results.stream().allMatch(result -> "CREATED".equals(result.get("status"))));
+        assertEquals("id-first", results.get(0).get("userId"));
+        assertEquals(3, users.size());
+        verify(users.get(0)).setEmail("first@example.com");
+        verify(users.get(0)).setSingleAttribute(StudyFormAction.USER_ATTR_STUDY, STUDY);
+        verify(users.get(0)).joinGroup(group);
+        verify(users.get(0)).grantRole(role);
+        verify(users.get(0)).addRequiredAction(VerifyEmailWithUsernameAcknowledgement.PROVIDER_ID);
+        verify(sessionFactory, times(2)).create();
+        assertEquals(3, counter.get(REALM, STUDY, () -> fail("should not count in the database")));
+    }
+
+    @Test
+    @DisplayName("Should publish a registered event for every created participant after the chunk has been committed")
+    void publishRegisteredEvents() throws IOException {
+        StudyEventPublisher publisher = mock(StudyEventPublisher.class);
+        doReturn(new StudyRegistrationEventListenerProvider(session, publisher)).when(session)
+                .getProvider(EventListenerProvider.class, StudyRegistrationEventListenerProviderFactory.PROVIDER_ID);
+        when(group.getName()).thenReturn("Test Study");
+
+        runWithLimit(1, 10,
+                "{\"username\": \"first\"}",
+                "{\"username\": \"second\"}");
+
+        verify(publisher, never()).enqueue(any());
+        ArgumentCaptor<KeycloakTransaction> transaction = ArgumentCaptor.forClass(KeycloakTransaction.class);
+        verify(session.getTransactionManager()).enlistAfterCompletion(transaction.capture());
+        transaction.getValue().begin();
+        transaction.getValue().commit();
+
+        ArgumentCaptor<StudyParticipantEvent> event = ArgumentCaptor.forClass(StudyParticipantEvent.class);
+        verify(publisher).enqueue(event.capture());
+        assertEquals("first", ((StudyRegisteredEvent) event.getValue()).getUsername());
+        assertEquals("Test Study", ((StudyRegisteredEvent) event.getValue()).getStudyName());
+    }
+
+    @Test
+    @DisplayName("Should reject participants beyond the registration limit")
+    void limitReached() throws IOException {
+        List<Map<String, Object>> results = runWithLimit(2, 10,
+                "{\"username\": \"first\"}",
+                "{\"username\": \"second\"}",
+                "{\"username\": \"third\"}");
+
+        assertEquals(List.of("CREATED", "CREATED", "LIMIT_REACHED"), results.stream().map(result -> result.get("status")).toList());
+        assertEquals(2, users.size());
+    }
+
+    @Test
+    @DisplayName("Should report invalid and existing participants without failing the chunk")
+    void invalidRows() throws IOException {
+        when(session.users().getUserByUsername(any(), eq("existing"))).thenReturn(mock(UserModel.class));
+
+        List<Map<String, Object>> results = run(
+                "not json",
+                "{\"email\": \"missing-username@example.com\"}",
+                "{\"username\": \"invalid-email\", \"email\": \"invalid\"}",
+                "{\"username\": \"existing\"}",
+                "{\"username\": \"twice\"}",
+                "{\"username\": \"TWICE\"}");
+
+        assertEquals(List.of("INVALID", "INVALID", "INVALID", "USERNAME_EXISTS", "CREATED", "USERNAME_EXISTS"),
+                results.stream().map(result -> result.get("status")).toList());
+        assertEquals(1, users.size());
+    }
+
+    @Test
+    @DisplayName("Should give back the claimed slots when a chunk fails")
+    void failedChunk() throws IOException {
+        when(session.users().addUser(any(), eq("second"))).thenThrow(new IllegalStateException("duplicate"));
+
+        List<Map<String, Object>> results = run(
+                "{\"username\": \"first\"}",
+                "{\"username\": \"second\"}");
+
+        assertEquals(List.of("FAILED", "FAILED"), results.stream().map(result -> result.get("status")).toList());
+        verify(session.getTransactionManager()).setRollbackOnly();
+        assertEquals(0, counter.get(REALM, STUDY, () -> fail("should not count in the database")));
+    }
+
+    private List<Map<String, Object>> run(String... lines) throws IOException {
+        return runWithLimit(-1, 10, lines);
+    }
+
+    private List<Map<String, Object>> runWithLimit(int limit, int chunkSize, String... lines) throws IOException {
+        BulkParticipantImport participantImport = new BulkParticipantImport(sessionFactory, REALM, STUDY, limit,
+                StudyRegistrationConfig.DEFAULT, counter, new ApproximateRegistrationCounter(Runnable::run), chunkSize);
+        StringWriter writer = new StringWriter();
+
+        participantImport.run(new BufferedReader(new StringReader(String.join("\n", lines))), writer);
+
+        List<Map<String, Object>> results = new ArrayList<>();
+        for (String line : writer.toString().split("\n")) {
+            results.add(JsonSerialization.readValue(line, new TypeReference<Map<String, Object>>() {
+            }));
+        }
+        return results;
+    }
+}
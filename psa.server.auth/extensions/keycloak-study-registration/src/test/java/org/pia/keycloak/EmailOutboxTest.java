@@ -0,0 +1,238 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import jakarta.mail.Address;
+import jakarta.mail.SendFailedException;
+import jakarta.mail.internet.InternetAddress;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.keycloak.email.EmailException;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class EmailOutboxTest {
+    private KeycloakSessionFactory sessionFactory;
+    private RecordingSender sender;
+    private RecordingListener listener;
+    private EmailOutbox outbox;
+
+    @BeforeEach
+    void setUp() {
+        sessionFactory = mock(KeycloakSessionFactory.class);
+        when(sessionFactory.create()).thenAnswer(invocation -> mock(KeycloakSession.class, RETURNS_DEEP_STUBS));
+        sender = new RecordingSender();
+    }
+
+    @AfterEach
+    void tearDown() {
+        outbox.shutdown();
+    }
+
+    @Test
+    @DisplayName("Should deliver the emails in batches, each within one session")
+    void deliverInBatches() throws InterruptedException {
+        startOutbox(10, 3);
+        sender.blockFirstDelivery();
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(outbox.enqueue(createEmail("participant" + i + "@example.com")));
+        }
+
+        sender.unblock();
+        listener.await();
+
+        assertEquals(10, listener.delivered.size());
+        assertEquals(10, sender.sent.size());
+        assertTrue(sender.sessions.size() <= 3, "emails were not delivered in batches");
+        verify(sessionFactory, times(sender.sessions.size())).create();
+    }
+
+    @Test
+    @DisplayName("Should close every batch after its emails have been sent")
+    void closeEveryBatch() throws InterruptedException {
+        startOutbox(10, 3);
+        sender.blockFirstDelivery();
+
+        for (int i = 0; i < 10; i++) {
+            outbox.enqueue(createEmail("participant" + i + "@example.com"));
+        }
+
+        sender.unblock();
+        listener.await();
+        sender.awaitClosedBatches(sender.sessions.size());
+
+        assertEquals(sender.sessions, sender.closedSessions);
+    }
+
+    @Test
+    @DisplayName("Should retry a failed delivery")
+    void retryFailedDelivery() throws InterruptedException {
+        startOutbox(1, 3);
+        sender.failNextDeliveries(2);
+
+        outbox.enqueue(createEmail("participant@example.com"));
+        listener.await();
+
+        assertEquals(1, listener.delivered.size());
+        assertEquals(3, listener.delivered.get(0).getAttempt());
+        assertTrue(listener.failed.isEmpty());
+        assertEquals(1, sender.sent.size());
+    }
+
+    @Test
+    @DisplayName("Should give up after the maximum number of attempts")
+    void giveUpAfterMaxAttempts() throws InterruptedException {
+        startOutbox(1, 3);
+        sender.failNextDeliveries(10);
+
+        outbox.enqueue(createEmail("participant@example.com"));
+        listener.await();
+
+        assertTrue(listener.delivered.isEmpty());
+        assertEquals(1, listener.failed.size());
+        assertEquals(3, listener.failed.get(0).getAttempt());
+    }
+
+    @Test
+    @DisplayName("Should not retry a rejected address")
+    void doNotRetryRejectedAddress() throws InterruptedException {
+        startOutbox(2, 3);
+        sender.rejectRecipient("unknown@example.com");
+
+        outbox.enqueue(createEmail("unknown@example.com"));
+        outbox.enqueue(createEmail("participant@example.com"));
+        listener.await();
+
+        assertEquals(1, listener.failed.size());
+        assertEquals(1, listener.failed.get(0).getAttempt());
+        assertEquals(1, listener.delivered.size());
+        assertEquals("participant@example.com", listener.delivered.get(0).getAddress());
+    }
+
+    private void startOutbox(int expectedEmails, int maxAttempts) {
+        listener = new RecordingListener(expectedEmails);
+        outbox = new EmailOutbox(sessionFactory, sender, listener, 100, 1, 5, maxAttempts, 10);
+    }
+
+    private OutboxEmail createEmail(String address) {
+        return new OutboxEmail("realm", Map.of("host", "localhost", "from", "pia@example.com"), address,
+                "Verify email", "Please verify", "<p>Please verify</p>", null, "study");
+    }
+
+    private static class RecordingSender implements EmailOutbox.Sender {
+        private final List<OutboxEmail> sent = new CopyOnWriteArrayList<>();
+        private final Set<KeycloakSession> sessions = ConcurrentHashMap.newKeySet();
+        private final AtomicInteger failures = new AtomicInteger();
+        private final Set<String> rejectedRecipients = ConcurrentHashMap.newKeySet();
+        private final Set<KeycloakSession> closedSessions = ConcurrentHashMap.newKeySet();
+        private final Semaphore closedBatches = new Semaphore(0);
+        private volatile CountDownLatch blocked;
+
+        @Override
+        public void send(KeycloakSession session, OutboxEmail email) throws EmailException {
+            CountDownLatch latch = blocked;
+
+            if (latch != null) {
+                try {
+                    latch.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            sessions.add(session);
+
+            if (rejectedRecipients.contains(email.getAddress())) {
+                throw new EmailException(createRejection(email.getAddress()));
+            }
+
+            if (failures.getAndUpdate(remaining -> Math.max(0, remaining - 1)) > 0) {
+                throw new EmailException("Service unavailable");
+            }
+
+            sent.add(email);
+        }
+
+        @Override
+        public void closeBatch(KeycloakSession session) {
+            closedSessions.add(session);
+            closedBatches.release();
+        }
+
+        private void awaitClosedBatches(int count) throws InterruptedException {
+            assertTrue(closedBatches.tryAcquire(count, 10, TimeUnit.SECONDS), "batches were not closed in time");
+        }
+
+        private void blockFirstDelivery() {
+            blocked = new CountDownLatch(1);
+        }
+
+        private void unblock() {
+            blocked.countDown();
+            blocked = null;
+        }
+
+        private void failNextDeliveries(int count) {
+            failures.set(count);
+        }
+
+        private void rejectRecipient(String address) {
+            rejectedRecipients.add(address);
+        }
+
+        private static SendFailedException createRejection(String address) {
+            try {
+                return new SendFailedException("Recipient rejected", null, new Address[0], new Address[0],
+                        new Address[]{new InternetAddress(address)});
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static class RecordingListener implements EmailOutbox.DeliveryListener {
+        private final List<OutboxEmail> delivered = new CopyOnWriteArrayList<>();
+        private final List<OutboxEmail> failed = new CopyOnWriteArrayList<>();
+        private final CountDownLatch completed;
+
+        private RecordingListener(int expectedEmails) {
+            completed = new CountDownLatch(expectedEmails);
+        }
+
+        @Override
+        public void delivered(OutboxEmail email) {
+            delivered.add(email);
+            completed.countDown();
+        }
+
+        @Override
+        public void failed(OutboxEmail email, Exception cause) {
+            failed.add(email);
+            completed.countDown();
+        }
+
+        private void await() throws InterruptedException {
+            assertTrue(completed.await(10, TimeUnit.SECONDS), "emails were not delivered in time");
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.keycloak.common.util.Time;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExpiringCacheTest {
+
+    @AfterEach
+    void tearDown() {
+        Time.setOffset(0);
+    }
+
+    @Test
+    @DisplayName("Should load a missing value only once")
+    void loadOnce() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10_000, 10);
+
+        assertEquals("loaded", cache.get("key", key -> "loaded"));
+        assertEquals("loaded", cache.get("key", key -> fail("should not load again")));
+    }
+
+    @Test
+    @DisplayName("Should not cache null values")
+    void doNotCacheNull() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10_000, 10);
+
+        assertNull(cache.get("key", key -> null));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    @DisplayName("Should expire values after their time to live")
+    void expire() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10_000, 10);
+        cache.put("key", "value");
+
+        Time.setOffset(11);
+
+        assertNull(cache.get("key"));
+    }
+
+    @Test
+    @DisplayName("Should not grow beyond its maximum size")
+    void maxSize() {
+        ExpiringCache<Integer, Integer> cache = new ExpiringCache<>(10_000, 10);
+
+        for (int i = 0; i < 100; i++) {
+            cache.put(i, i);
+        }
+
+        assertTrue(cache.size() <= 10);
+    }
+
+    @Test
+    @DisplayName("Should evict the least recently used entry when it is full")
+    void evictLeastRecentlyUsed() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10_000, 2);
+        cache.put("a", "value");
+        cache.put("b", "value");
+        cache.get("a");
+
+        cache.put("c", "value");
+
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+    }
+
+    @Test
+    @DisplayName("Should create a missing value only once for concurrent callers")
+    void computeIfAbsentConcurrently() throws InterruptedException {
+        ExpiringCache<String, Object> cache = new ExpiringCache<>(10_000, 10);
+        Set<Object> values = ConcurrentHashMap.newKeySet();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        CountDownLatch start = new CountDownLatch(1);
+
+        for (int i = 0; i < 8; i++) {
+            executor.execute(() -> {
+                try {
+                    start.await();
+                    values.add(cache.computeIfAbsent("key", key -> new Object()));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(1, values.size());
+    }
+
+    @Test
+    @DisplayName("Should invalidate matching keys")
+    void invalidateIf() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10_000, 10);
+        cache.put("a:1", "value");
+        cache.put("b:1", "value");
+
+        cache.invalidateIf(key -> key.startsWith("a:"));
+
+        assertNull(cache.get("a:1"));
+        assertNotNull(cache.get("b:1"));
+    }
+}
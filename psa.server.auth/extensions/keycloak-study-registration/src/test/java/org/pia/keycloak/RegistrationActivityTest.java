@@ -0,0 +1,58 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.keycloak.common.util.Time;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RegistrationActivityTest {
+    private final RegistrationActivity activity = new RegistrationActivity(new LocalClusterCache());
+
+    @AfterEach
+    void tearDown() {
+        Time.setOffset(0);
+    }
+
+    @Test
+    @DisplayName("Should count the registrations within the requested minutes")
+    void countWindow() {
+        activity.record("realm", "study", 2);
+        Time.setOffset(5 * 60);
+        activity.record("realm", "study", 1);
+        activity.record("realm", "study", 1);
+        activity.record("realm", "other", 1);
+
+        assertEquals(2, activity.count("realm", "study", 2));
+        assertEquals(4, activity.count("realm", "study", 10));
+        assertEquals(1, activity.count("realm", "other", 10));
+    }
+
+    @Test
+    @DisplayName("Should forget registrations after an hour")
+    void expire() {
+        activity.record("realm", "study", 3);
+        Time.setOffset((RegistrationActivity.MAX_WINDOW_MINUTES + 2) * 60);
+
+        assertEquals(0, activity.count("realm", "study", RegistrationActivity.MAX_WINDOW_MINUTES));
+    }
+
+    @Test
+    @DisplayName("Should count committed registrations")
+    void counterRecordsActivity() {
+        StudyRegistrationCounter counter = new StudyRegistrationCounter(new LocalClusterCache());
+        counter.reserve("realm", "study", "reservation", 10, () -> 0);
+
+        counter.commit("realm", "study", "reservation", () -> 1);
+        counter.increment("realm", "study", () -> 2);
+
+        assertEquals(2, counter.getActivity().count("realm", "study", 5));
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.theme.Theme;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class RegistrationPageModelCacheTest {
+    private KeycloakSession session;
+    private RegistrationPageModelCache pageModelCache;
+    private AtomicInteger builds;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        session = mock(KeycloakSession.class, RETURNS_DEEP_STUBS);
+        Theme theme = mock(Theme.class);
+        Properties messages = new Properties();
+        messages.setProperty("piaRegistrationSubtitle", "Registrierung zur Studie<br/><i>{0}</i>");
+        when(session.getContext().getRealm().getId()).thenReturn("realm-id");
+        when(session.getContext().resolveLocale(null)).thenReturn(Locale.GERMANY);
+        when(session.theme().getTheme(Theme.Type.LOGIN)).thenReturn(theme);
+        when(session.theme().isCacheEnabled()).thenReturn(true);
+        when(theme.getName()).thenReturn("pia");
+        when(theme.getEnhancedMessages(any(), eq(Locale.GERMANY))).thenReturn(messages);
+        pageModelCache = new RegistrationPageModelCache(60_000, 10);
+        builds = new AtomicInteger();
+    }
+
+    @Test
+    @DisplayName("Should format the attributes once per study name and locale")
+    void cachePerInputs() {
+        assertEquals("Registrierung zur Studie<br /><i>Study A</i>", getSubtitle("Study A"));
+        assertEquals("Registrierung zur Studie<br /><i>Study A</i>", getSubtitle("Study A"));
+        assertEquals(1, builds.get());
+
+        assertEquals("Registrierung zur Studie<br /><i>Study B</i>", getSubtitle("Study B"));
+        assertEquals(2, builds.get());
+    }
+
+    @Test
+    @DisplayName("Should sanitize the attributes like the kcSanitize method of the templates")
+    void sanitize() {
+        assertFalse(getSubtitle("<script>alert(1)</script>Study").contains("<script>"));
+    }
+
+    @Test
+    @DisplayName("Should format the attributes on every render while the theme cache is disabled")
+    void themeCacheDisabled() {
+        when(session.theme().isCacheEnabled()).thenReturn(false);
+
+        getSubtitle("Study A");
+        getSubtitle("Study A");
+
+        assertEquals(2, builds.get());
+    }
+
+    private String getSubtitle(String studyName) {
+        return pageModelCache.get(session, "register-study", List.of(studyName), messages -> {
+            builds.incrementAndGet();
+            return Map.of("studySubtitle", messages.sanitize(messages.format("piaRegistrationSubtitle", studyName)));
+        }).get("studySubtitle");
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RegistrationRateLimiterTest {
+    private static final long NOW = TimeUnit.HOURS.toNanos(1);
+
+    private final RegistrationRateLimiter rateLimiter = new RegistrationRateLimiter(100);
+
+    @Test
+    @DisplayName("Should allow a burst and reject further requests")
+    void allowBurst() {
+        RateLimit limit = new RateLimit(1, 3);
+
+        assertTrue(rateLimiter.tryAcquire("key", limit, NOW));
+        assertTrue(rateLimiter.tryAcquire("key", limit, NOW));
+        assertTrue(rateLimiter.tryAcquire("key", limit, NOW));
+        assertFalse(rateLimiter.tryAcquire("key", limit, NOW));
+        assertTrue(rateLimiter.tryAcquire("other", limit, NOW));
+    }
+
+    @Test
+    @DisplayName("Should refill the bucket with the configured rate")
+    void refill() {
+        RateLimit limit = new RateLimit(2, 1);
+
+        assertTrue(rateLimiter.tryAcquire("key", limit, NOW));
+        assertFalse(rateLimiter.tryAcquire("key", limit, NOW + TimeUnit.MILLISECONDS.toNanos(400)));
+        assertTrue(rateLimiter.tryAcquire("key", limit, NOW + TimeUnit.MILLISECONDS.toNanos(500)));
+        assertFalse(rateLimiter.tryAcquire("key", limit, NOW + TimeUnit.MILLISECONDS.toNanos(500)));
+    }
+
+    @Test
+    @DisplayName("Should read the rate limit from the configuration")
+    void readConfiguration() {
+        Map<String, String> config = new HashMap<>();
+
+        assertNull(RateLimit.of(config, "rate", "burst"));
+
+        config.put("rate", "5");
+        assertEquals(5, RateLimit.of(config, "rate", "burst").getBurst());
+
+        config.put("burst", "20");
+        assertEquals(20, RateLimit.of(config, "rate", "burst").getBurst());
+
+        config.put("rate", "0");
+        assertNull(RateLimit.of(config, "rate", "burst"));
+    }
+
+    @Test
+    @DisplayName("Should disable the rate limit with an invalid rate and use the default burst for an invalid burst")
+    void readInvalidConfiguration() {
+        Map<String, String> config = new HashMap<>();
+
+        config.put("rate", "fast");
+        assertNull(RateLimit.of(config, "rate", "burst"));
+
+        config.put("rate", "NaN");
+        assertNull(RateLimit.of(config, "rate", "burst"));
+
+        config.put("rate", "2.5");
+        config.put("burst", "many");
+        assertEquals(3, RateLimit.of(config, "rate", "burst").getBurst());
+
+        config.put("burst", "0");
+        assertEquals(3, RateLimit.of(config, "rate", "burst").getBurst());
+    }
+}
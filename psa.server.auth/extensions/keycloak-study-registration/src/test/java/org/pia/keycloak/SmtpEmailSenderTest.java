@@ -0,0 +1,136 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import jakarta.mail.Address;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Transport;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.keycloak.email.EmailException;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.vault.VaultStringSecret;
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class SmtpEmailSenderTest {
+    private final Map<String, Object> attributes = new HashMap<>();
+    private final List<Transport> transports = new ArrayList<>();
+    private KeycloakSession session;
+    private SmtpEmailSender sender;
+
+    @BeforeEach
+    void setUp() {
+        session = mock(KeycloakSession.class, RETURNS_DEEP_STUBS);
+        doAnswer(invocation -> attributes.get(invocation.<String>getArgument(0))).when(session).getAttribute(anyString());
+        doAnswer(invocation -> attributes.put(invocation.getArgument(0), invocation.getArgument(1)))
+                .when(session).setAttribute(anyString(), any());
+        doAnswer(invocation -> attributes.remove(invocation.<String>getArgument(0))).when(session).removeAttribute(anyString());
+
+        sender = new SmtpEmailSender(mailSession -> {
+            Transport transport = mock(Transport.class);
+            when(transport.isConnected()).thenReturn(true);
+            transports.add(transport);
+            return transport;
+        });
+    }
+
+    @Test
+    @DisplayName("Should send all emails of a batch over one connection")
+    void sendBatchOverOneConnection() throws Exception {
+        sender.send(session, createEmail("participant1@example.com", Map.of("host", "localhost", "from", "pia@example.com")));
+        sender.send(session, createEmail("participant2@example.com", Map.of("host", "localhost", "from", "pia@example.com")));
+        sender.send(session, createEmail("participant3@example.com", Map.of("host", "localhost", "from", "pia@example.com")));
+
+        assertEquals(1, transports.size());
+        Transport transport = transports.get(0);
+        verify(transport).connect();
+        verify(transport, times(3)).sendMessage(any(Message.class), any(Address[].class));
+        verify(transport, never()).close();
+
+        sender.closeBatch(session);
+
+        verify(transport).close();
+        assertTrue(attributes.isEmpty());
+    }
+
+    @Test
+    @DisplayName("Should build the message from the SMTP configuration of the realm")
+    void buildMessage() throws Exception {
+        sender.send(session, createEmail("participant@example.com",
+                Map.of("host", "localhost", "from", "pia@example.com", "fromDisplayName", "PIA", "replyTo", "support@example.com")));
+
+        ArgumentCaptor<Message> message = ArgumentCaptor.forClass(Message.class);
+        ArgumentCaptor<Address[]> recipients = ArgumentCaptor.forClass(Address[].class);
+        verify(transports.get(0)).sendMessage(message.capture(), recipients.capture());
+
+        assertEquals("PIA <pia@example.com>", message.getValue().getFrom()[0].toString());
+        assertEquals("support@example.com", message.getValue().getReplyTo()[0].toString());
+        assertEquals("Verify email", message.getValue().getSubject());
+        assertEquals("participant@example.com", recipients.getValue()[0].toString());
+    }
+
+    @Test
+    @DisplayName("Should open a new connection after a failed email")
+    void reconnectAfterFailure() throws Exception {
+        Map<String, String> config = Map.of("host", "localhost", "from", "pia@example.com");
+
+        sender.send(session, createEmail("participant1@example.com", config));
+        doThrow(new MessagingException("Connection reset")).when(transports.get(0))
+                .sendMessage(any(Message.class), any(Address[].class));
+
+        assertThrows(EmailException.class, () -> sender.send(session, createEmail("participant2@example.com", config)));
+        verify(transports.get(0)).close();
+
+        sender.send(session, createEmail("participant3@example.com", config));
+
+        assertEquals(2, transports.size());
+        verify(transports.get(1)).connect();
+        verify(transports.get(1)).sendMessage(any(Message.class), any(Address[].class));
+    }
+
+    @Test
+    @DisplayName("Should open a new connection for another SMTP configuration")
+    void reconnectForOtherConfig() throws Exception {
+        sender.send(session, createEmail("participant1@example.com", Map.of("host", "smtp1", "from", "pia@example.com")));
+        sender.send(session, createEmail("participant2@example.com", Map.of("host", "smtp2", "from", "pia@example.com")));
+
+        assertEquals(2, transports.size());
+        verify(transports.get(0)).close();
+        verify(transports.get(1)).connect();
+    }
+
+    @Test
+    @DisplayName("Should authenticate with the password from the vault")
+    void authenticateWithVaultPassword() throws Exception {
+        VaultStringSecret secret = mock(VaultStringSecret.class);
+        when(secret.get()).thenReturn(Optional.of("secret"));
+        when(session.vault().getStringSecret("${vault.smtp}")).thenReturn(secret);
+
+        sender.send(session, createEmail("participant@example.com", Map.of("host", "localhost", "from", "pia@example.com",
+                "auth", "true", "user", "pia", "password", "${vault.smtp}")));
+
+        verify(transports.get(0)).connect("pia", "secret");
+        verify(secret).close();
+    }
+
+    private OutboxEmail createEmail(String address, Map<String, String> smtpConfig) {
+        return new OutboxEmail("realm", smtpConfig, address, "Verify email", "Please verify", "<p>Please verify</p>",
+                null, "study");
+    }
+}
@@ -6,6 +6,8 @@
 
 package org.pia.keycloak;
 
+import io.prometheus.client.CollectorRegistry;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
@@ -14,9 +16,15 @@ import org.junit.jupiter.params.provider.EmptySource;
 import org.junit.jupiter.params.provider.NullSource;
 import org.keycloak.authentication.AuthenticationFlowContext;
 import org.keycloak.authentication.AuthenticationFlowError;
+import org.keycloak.common.util.Time;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.sessions.AuthenticationSessionModel;
 
 import jakarta.ws.rs.core.Response;
+import java.util.HashMap;
+import java.util.Map;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.mockito.Mockito.*;
 
 class StudyAuthenticatorTest {
@@ -34,6 +42,11 @@ class StudyAuthenticatorTest {
         when(context.form().setError(any()).createErrorPage(any())).thenReturn(response);
     }
 
+    @AfterEach
+    void tearDown() {
+        Time.setOffset(0);
+    }
+
     @ParameterizedTest
     @DisplayName("Should fail without study parameter")
     @NullSource
@@ -91,6 +104,90 @@ class StudyAuthenticatorTest {
         );
     }
 
+    @Test
+    @DisplayName("Should shed requests above the rate limit before looking up the study")
+    void authenticateRateLimited() {
+        AuthenticatorConfigModel config = new AuthenticatorConfigModel();
+        config.setConfig(Map.of(StudyAuthenticatorFactory.CONFIG_STUDY_RATE, "1", StudyAuthenticatorFactory.CONFIG_STUDY_BURST, "1"));
+        when(context.getAuthenticatorConfig()).thenReturn(config);
+        when(context.getRealm().getId()).thenReturn("rate-limited-realm");
+        Response tooManyRequests = mock(Response.class);
+        when(context.form().setError(StudyRegistrationMessages.TOO_MANY_REQUESTS).createErrorPage(Response.Status.TOO_MANY_REQUESTS)).thenReturn(tooManyRequests);
+        setStudyParam("123-456-789");
+        when(studyHelper.studyGroupIsOpen()).thenReturn(true);
+
+        studyAuthenticator = new StudyAuthenticator(studyHelper, new RegistrationRateLimiter(10), StudyRegistrationConfig.DEFAULT);
+        studyAuthenticator.authenticate(context);
+        studyAuthenticator.authenticate(context);
+
+        verify(studyHelper, times(1)).init(any(), any());
+        verify(context).success();
+        verify(context).failure(AuthenticationFlowError.ACCESS_DENIED, tooManyRequests);
+    }
+
+    @Test
+    @DisplayName("Should share one bucket for all studies, which are not known to be open")
+    void authenticateRateLimitedUnknownStudies() {
+        AuthenticatorConfigModel config = new AuthenticatorConfigModel();
+        config.setConfig(Map.of(StudyAuthenticatorFactory.CONFIG_STUDY_RATE, "1", StudyAuthenticatorFactory.CONFIG_STUDY_BURST, "1"));
+        when(context.getAuthenticatorConfig()).thenReturn(config);
+        when(context.getRealm().getId()).thenReturn("unknown-studies-realm");
+        Response tooManyRequests = mock(Response.class);
+        when(context.form().setError(StudyRegistrationMessages.TOO_MANY_REQUESTS).createErrorPage(Response.Status.TOO_MANY_REQUESTS)).thenReturn(tooManyRequests);
+        when(studyHelper.isKnownOpenStudy(any(), eq("open-study"))).thenReturn(true);
+        when(studyHelper.studyGroupIsOpen()).thenReturn(true);
+        studyAuthenticator = new StudyAuthenticator(studyHelper, new RegistrationRateLimiter(10), StudyRegistrationConfig.DEFAULT);
+
+        setStudyParam("unknown-1");
+        studyAuthenticator.authenticate(context);
+        setStudyParam("unknown-2");
+        studyAuthenticator.authenticate(context);
+        setStudyParam("open-study");
+        studyAuthenticator.authenticate(context);
+
+        verify(context, times(2)).success();
+        verify(context).failure(AuthenticationFlowError.ACCESS_DENIED, tooManyRequests);
+        verify(studyHelper, never()).init(any(), eq("unknown-2"));
+    }
+
+    @Test
+    @DisplayName("Should ignore invalid rate limits instead of failing the request")
+    void authenticateWithInvalidRateLimits() {
+        AuthenticatorConfigModel config = new AuthenticatorConfigModel();
+        config.setConfig(Map.of(StudyAuthenticatorFactory.CONFIG_IP_RATE, "1/s",
+                StudyAuthenticatorFactory.CONFIG_STUDY_RATE, "ten",
+                StudyAuthenticatorFactory.CONFIG_WAITING_ROOM_RATE, "",
+                StudyAuthenticatorFactory.CONFIG_WAITING_ROOM_POLL_SECONDS, "soon"));
+        when(context.getAuthenticatorConfig()).thenReturn(config);
+        when(context.getRealm().getId()).thenReturn("invalid-config-realm");
+        setStudyParam("123-456-789");
+        when(studyHelper.studyGroupIsOpen()).thenReturn(true);
+
+        studyAuthenticator = new StudyAuthenticator(studyHelper, new RegistrationRateLimiter(10), StudyRegistrationConfig.DEFAULT);
+        studyAuthenticator.authenticate(context);
+        studyAuthenticator.authenticate(context);
+
+        verify(context, times(2)).success();
+    }
+
+    @Test
+    @DisplayName("Should count rejections and record the duration by study")
+    void authenticateRecordsMetrics() {
+        String studyId = "metrics-study";
+        setStudyParam(studyId);
+        when(studyHelper.getStudyLabel()).thenReturn(studyId);
+        when(studyHelper.studyGroupIsOpen()).thenReturn(true);
+        when(studyHelper.reachedRegistrationLimit()).thenReturn(true);
+
+        studyAuthenticator.authenticate(context);
+        studyAuthenticator.authenticate(context);
+
+        assertEquals(2.0, getSampleValue("pia_study_registration_rejections_total",
+                new String[]{"study", "reason"}, new String[]{studyId, StudyRegistrationMessages.LIMIT_REACHED}));
+        assertEquals(2.0, getSampleValue("pia_study_registration_duration_seconds_count",
+                new String[]{"phase", "study"}, new String[]{StudyRegistrationMetrics.PHASE_AUTHENTICATE, studyId}));
+    }
+
     @Test
     @DisplayName("Should succeed")
     void authenticateSuccessfully() {
@@ -106,6 +203,102 @@ class StudyAuthenticatorTest {
         verify(context).success();
     }
 
+    @Test
+    @DisplayName("Should queue participants beyond the admission rate and admit them when it is their turn")
+    void waitingRoom() {
+        studyAuthenticator = new StudyAuthenticator(studyHelper, new RegistrationRateLimiter(10), StudyRegistrationConfig.DEFAULT,
+                new StudyWaitingRoom(new LocalClusterCache()));
+        when(studyHelper.studyGroupIsOpen()).thenReturn(true);
+        when(studyHelper.getRemainingCapacity()).thenReturn(10);
+        AuthenticationFlowContext first = mockWaitingRoomContext("123-456-789");
+        AuthenticationFlowContext second = mockWaitingRoomContext("123-456-789");
+        Response waitingRoomPage = mock(Response.class);
+        when(second.form().setAttribute(any(), any()).setAttribute(any(), any())
+                .createForm(StudyAuthenticator.WAITING_ROOM_TEMPLATE)).thenReturn(waitingRoomPage);
+
+        studyAuthenticator.authenticate(first);
+        studyAuthenticator.authenticate(second);
+
+        verify(first).success();
+        verify(second).challenge(waitingRoomPage);
+
+        studyAuthenticator.action(second);
+        verify(second, never()).success();
+
+        Time.setOffset(1);
+        studyAuthenticator.action(second);
+
+        verify(second.getAuthenticationSession()).setUserSessionNote(StudyFormAction.PARAM_STUDY, "123-456-789");
+        verify(second).success();
+    }
+
+    @Test
+    @DisplayName("Should reject participants without queueing them, when the waiting ones take the remaining capacity")
+    void waitingRoomFull() {
+        studyAuthenticator = new StudyAuthenticator(studyHelper, new RegistrationRateLimiter(10), StudyRegistrationConfig.DEFAULT,
+                new StudyWaitingRoom(new LocalClusterCache()));
+        when(studyHelper.studyGroupIsOpen()).thenReturn(true);
+        when(studyHelper.getRemainingCapacity()).thenReturn(0);
+        AuthenticationFlowContext participant = mockWaitingRoomContext("123-456-789");
+        Response limitReached = mock(Response.class);
+        when(participant.form().setError(StudyRegistrationMessages.LIMIT_REACHED).createErrorPage(Response.Status.FORBIDDEN))
+                .thenReturn(limitReached);
+
+        studyAuthenticator.authenticate(participant);
+        studyAuthenticator.authenticate(participant);
+
+        verify(participant, times(2)).failure(AuthenticationFlowError.ACCESS_DENIED, limitReached);
+        verify(participant, never()).success();
+    }
+
+    @Test
+    @DisplayName("Should poll the waiting room with the default interval, if the configured one is invalid")
+    void waitingRoomWithInvalidPollSeconds() {
+        studyAuthenticator = new StudyAuthenticator(studyHelper, new RegistrationRateLimiter(10), StudyRegistrationConfig.DEFAULT,
+                new StudyWaitingRoom(new LocalClusterCache()));
+        when(studyHelper.studyGroupIsOpen()).thenReturn(true);
+        when(studyHelper.getRemainingCapacity()).thenReturn(10);
+        Map<String, String> config = Map.of(StudyAuthenticatorFactory.CONFIG_WAITING_ROOM_RATE, "0.1",
+                StudyAuthenticatorFactory.CONFIG_WAITING_ROOM_BURST, "1",
+                StudyAuthenticatorFactory.CONFIG_WAITING_ROOM_POLL_SECONDS, "often");
+        AuthenticationFlowContext first = mockWaitingRoomContext("987-654-321", config);
+        AuthenticationFlowContext second = mockWaitingRoomContext("987-654-321", config);
+
+        studyAuthenticator.authenticate(first);
+        studyAuthenticator.authenticate(second);
+
+        verify(first).success();
+        verify(second.form().setAttribute(eq("waitingRoomPosition"), any()))
+                .setAttribute("waitingRoomRefreshSeconds", StudyAuthenticatorFactory.DEFAULT_WAITING_ROOM_POLL_SECONDS);
+    }
+
+    private AuthenticationFlowContext mockWaitingRoomContext(String study) {
+        return mockWaitingRoomContext(study,
+                Map.of(StudyAuthenticatorFactory.CONFIG_WAITING_ROOM_RATE, "1", StudyAuthenticatorFactory.CONFIG_WAITING_ROOM_BURST, "1"));
+    }
+
+    private AuthenticationFlowContext mockWaitingRoomContext(String study, Map<String, String> configValues) {
+        AuthenticationFlowContext participant = mock(AuthenticationFlowContext.class, RETURNS_DEEP_STUBS);
+        AuthenticatorConfigModel config = new AuthenticatorConfigModel();
+        config.setConfig(configValues);
+        when(participant.getAuthenticatorConfig()).thenReturn(config);
+        when(participant.getRealm().getId()).thenReturn("waiting-room-realm");
+        when(participant.getHttpRequest().getUri().getQueryParameters().getFirst(StudyFormAction.PARAM_STUDY)).thenReturn(study);
+
+        Map<String, String> notes = new HashMap<>();
+        AuthenticationSessionModel authSession = mock(AuthenticationSessionModel.class);
+        doAnswer(invocation -> notes.put(invocation.getArgument(0), invocation.getArgument(1)))
+                .when(authSession).setAuthNote(any(), any());
+        when(authSession.getAuthNote(any())).thenAnswer(invocation -> notes.get(invocation.<String>getArgument(0)));
+        when(participant.getAuthenticationSession()).thenReturn(authSession);
+
+        return participant;
+    }
+
+    private Double getSampleValue(String name, String[] labelNames, String[] labelValues) {
+        return CollectorRegistry.defaultRegistry.getSampleValue(name, labelNames, labelValues);
+    }
+
     private void setStudyParam(String parameter) {
         when(context.getHttpRequest().getUri().getQueryParameters().getFirst(StudyFormAction.PARAM_STUDY)).thenReturn(parameter);
     }
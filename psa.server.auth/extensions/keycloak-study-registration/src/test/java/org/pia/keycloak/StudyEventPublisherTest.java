@@ -0,0 +1,164 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StudyEventPublisherTest {
+    private StudyEventPublisher publisher;
+
+    @AfterEach
+    void tearDown() {
+        if (publisher != null) {
+            publisher.shutdown();
+        }
+    }
+
+    @Test
+    @DisplayName("Should publish a batch as soon as it is full")
+    void publishFullBatch() throws InterruptedException {
+        InMemorySink sink = new InMemorySink();
+        publisher = new StudyEventPublisher(sink, 100, 3, TimeUnit.MINUTES.toMillis(1), 1);
+
+        for (int i = 0; i < 3; i++) {
+            publisher.enqueue(event(i));
+        }
+
+        List<StudyParticipantEvent> batch = sink.batches.poll(5, TimeUnit.SECONDS);
+        assertNotNull(batch);
+        assertEquals(3, batch.size());
+    }
+
+    @Test
+    @DisplayName("Should publish an incomplete batch after the flush interval")
+    void publishAfterFlushInterval() throws InterruptedException {
+        InMemorySink sink = new InMemorySink();
+        publisher = new StudyEventPublisher(sink, 100, 10, 50, 1);
+
+        publisher.enqueue(event(1));
+        publisher.enqueue(event(2));
+
+        List<StudyParticipantEvent> batch = sink.batches.poll(5, TimeUnit.SECONDS);
+        assertNotNull(batch);
+        assertEquals(2, batch.size());
+    }
+
+    @Test
+    @DisplayName("Should retry a batch which could not be published")
+    void retry() throws InterruptedException {
+        InMemorySink sink = new InMemorySink();
+        sink.failures.set(1);
+        publisher = new StudyEventPublisher(sink, 100, 1, 10, 2);
+
+        publisher.enqueue(event(1));
+
+        assertNotNull(sink.batches.poll(5, TimeUnit.SECONDS));
+        assertEquals(2, sink.attempts.get());
+    }
+
+    @Test
+    @DisplayName("Should drop events which do not fit into the buffer")
+    void dropWhenFull() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        InMemorySink sink = new InMemorySink() {
+            @Override
+            public void publish(List<StudyParticipantEvent> batch) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+                super.publish(batch);
+            }
+        };
+        publisher = new StudyEventPublisher(sink, 1, 1, 10, 1);
+
+        // the first event is taken by the blocked worker, the second one fills the buffer
+        assertTrue(publisher.enqueue(event(1)));
+        waitUntil(() -> publisher.size() == 0);
+        assertTrue(publisher.enqueue(event(2)));
+        assertFalse(publisher.enqueue(event(3)));
+
+        release.countDown();
+        assertNotNull(sink.batches.poll(5, TimeUnit.SECONDS));
+        assertNotNull(sink.batches.poll(5, TimeUnit.SECONDS));
+        assertNull(sink.batches.poll(50, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    @DisplayName("Should publish the buffered events on shutdown")
+    void publishOnShutdown() {
+        InMemorySink sink = new InMemorySink();
+        StudyEventPublisher publisher = new StudyEventPublisher(sink, 100, 10, TimeUnit.MINUTES.toMillis(1), 1);
+
+        publisher.enqueue(event(1));
+        publisher.enqueue(event(2));
+        publisher.shutdown();
+
+        assertEquals(2, sink.batches.stream().mapToInt(List::size).sum());
+        assertTrue(sink.closed);
+    }
+
+    @Test
+    @DisplayName("Should wrap the event into a message like the services expect it")
+    void serialize() throws IOException {
+        String message = new String(AmqpStudyEventSink.serialize(new StudyRegisteredEvent("abc-123", "Test Study")),
+                StandardCharsets.UTF_8);
+
+        assertEquals("{\"message\":{\"username\":\"abc-123\",\"studyName\":\"Test Study\"}}", message);
+    }
+
+    private static StudyParticipantEvent event(int i) {
+        return new StudyRegisteredEvent("user-" + i, "Test Study");
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    private static class InMemorySink implements StudyEventPublisher.Sink {
+        final LinkedBlockingQueue<List<StudyParticipantEvent>> batches = new LinkedBlockingQueue<>();
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicInteger attempts = new AtomicInteger();
+        volatile boolean closed;
+
+        @Override
+        public void publish(List<StudyParticipantEvent> batch) throws IOException {
+            attempts.incrementAndGet();
+
+            if (failures.getAndDecrement() > 0) {
+                throw new IOException("broker unavailable");
+            }
+
+            batches.add(new ArrayList<>(batch));
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -12,15 +12,26 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.EmptySource;
 import org.junit.jupiter.params.provider.NullSource;
+import org.keycloak.events.EventListenerProvider;
 import org.keycloak.authentication.FormContext;
 import org.keycloak.authentication.ValidationContext;
 import org.keycloak.forms.login.LoginFormsProvider;
 import org.keycloak.models.GroupModel;
+import org.keycloak.models.GroupProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransactionManager;
 import org.keycloak.models.RoleModel;
+import org.keycloak.models.RoleProvider;
+import org.keycloak.models.UserProvider;
+import org.mockito.ArgumentCaptor;
 
 import jakarta.ws.rs.core.MultivaluedHashMap;
 import jakarta.ws.rs.core.MultivaluedMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.*;
 
@@ -49,9 +60,7 @@ class StudyFormActionTest {
         String expectedStudyName = "Test Study";
         setStudyInAuthenticationSession(expectedStudy);
 
-        GroupModel group = mock(GroupModel.class);
-        when(group.getName()).thenReturn(expectedStudyName);
-        when(formContext.getSession().groups().getGroupById(any(), eq(expectedStudy))).thenReturn(group);
+        when(studyHelper.getStudyName()).thenReturn(expectedStudyName);
 
         MultivaluedMap<String, String> formData = new MultivaluedHashMap<>();
         formData.add(StudyFormAction.FIELD_USER_ATTR_STUDY, expectedStudy);
@@ -60,6 +69,7 @@ class StudyFormActionTest {
 
         verify(loginFormsProvider).setAttribute(StudyFormAction.ATTR_STUDY_NAME, expectedStudyName);
         verify(loginFormsProvider).setFormData(formData);
+        verify(studyHelper, never()).releaseRegistrationSlot(any());
     }
 
     @Test
@@ -71,9 +81,7 @@ class StudyFormActionTest {
 
         when(formContext.getHttpRequest().getHttpMethod()).thenReturn("post");
 
-        GroupModel group = mock(GroupModel.class);
-        when(group.getName()).thenReturn(expectedStudyName);
-        when(formContext.getSession().groups().getGroupById(any(), eq(expectedStudy))).thenReturn(group);
+        when(studyHelper.getStudyName()).thenReturn(expectedStudyName);
 
         MultivaluedMap<String, String> formData = new MultivaluedHashMap<>();
         formData.add(StudyFormAction.FIELD_USER_ATTR_STUDY, expectedStudy);
@@ -82,6 +90,7 @@ class StudyFormActionTest {
 
         verify(loginFormsProvider).setFormData(formData);
         verify(loginFormsProvider).setAttribute(StudyFormAction.ATTR_STUDY_NAME, expectedStudyName);
+        verify(studyHelper).releaseRegistrationSlot(any());
     }
 
     @ParameterizedTest
@@ -104,9 +113,7 @@ class StudyFormActionTest {
         String expectedEmail = "test@localhost";
         setStudyInAuthenticationSession(expectedStudy);
 
-        GroupModel group = mock(GroupModel.class);
-        when(group.getName()).thenReturn(expectedStudyName);
-        when(formContext.getSession().groups().getGroupById(any(), eq(expectedStudy))).thenReturn(group);
+        when(studyHelper.getStudyName()).thenReturn(expectedStudyName);
         when(formContext.getHttpRequest().getHttpMethod()).thenReturn("post");
 
         MultivaluedMap<String, String> formData = new MultivaluedHashMap<>();
@@ -138,9 +145,10 @@ class StudyFormActionTest {
 
         studyFormAction.validate(validationContext);
 
-        verify(studyHelper).init(any(), any());
+        verify(studyHelper).init(any(StudyRegistrationContext.class));
         verify(validationContext).error(StudyRegistrationMessages.STUDY_NOT_OPEN);
         verify(validationContext, never()).error(StudyRegistrationMessages.LIMIT_REACHED);
+        verify(studyHelper, never()).reserveRegistrationSlot(any());
         verify(validationContext).validationError(any(), any());
     }
 
@@ -149,11 +157,11 @@ class StudyFormActionTest {
     void validateRegistrationLimitReached() {
         setStudyFormValueForValidation("123-456-789");
         when(studyHelper.studyGroupIsOpen()).thenReturn(true);
-        when(studyHelper.reachedRegistrationLimit()).thenReturn(true);
+        when(studyHelper.reserveRegistrationSlot(any())).thenReturn(false);
 
         studyFormAction.validate(validationContext);
 
-        verify(studyHelper).init(any(), any());
+        verify(studyHelper).init(any(StudyRegistrationContext.class));
         verify(validationContext, never()).error(StudyRegistrationMessages.STUDY_NOT_OPEN);
         verify(validationContext).error(StudyRegistrationMessages.LIMIT_REACHED);
         verify(validationContext).validationError(any(), any());
@@ -164,11 +172,11 @@ class StudyFormActionTest {
     void validateSuccess() {
         setStudyFormValueForValidation("123-456-789");
         when(studyHelper.studyGroupIsOpen()).thenReturn(true);
-        when(studyHelper.reachedRegistrationLimit()).thenReturn(false);
+        when(studyHelper.reserveRegistrationSlot(any())).thenReturn(true);
 
         studyFormAction.validate(validationContext);
 
-        verify(studyHelper).init(any(), any());
+        verify(studyHelper).init(any(StudyRegistrationContext.class));
         verify(validationContext).success();
     }
 
@@ -185,10 +193,90 @@ class StudyFormActionTest {
         RoleModel role = mock(RoleModel.class);
         when(formContext.getSession().roles().getRealmRole(any(), eq("Proband"))).thenReturn(role);
 
+        when(group.getName()).thenReturn("Test Study");
+        when(formContext.getUser().getUsername()).thenReturn("abc-123");
+        StudyRegistrationEventListenerProvider eventListener = mock(StudyRegistrationEventListenerProvider.class);
+        KeycloakSession session = formContext.getSession();
+        doReturn(eventListener).when(session)
+                .getProvider(EventListenerProvider.class, StudyRegistrationEventListenerProviderFactory.PROVIDER_ID);
+
         studyFormAction.success(formContext);
 
+        verify(studyHelper).init(any(StudyRegistrationContext.class));
         verify(formContext.getUser()).joinGroup(group);
+        verify(studyHelper).commitRegistrationSlot(any());
         verify(formContext.getUser()).grantRole(role);
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Supplier<StudyParticipantEvent>> event = ArgumentCaptor.forClass(Supplier.class);
+        verify(eventListener).publish(event.capture());
+        StudyRegisteredEvent registered = (StudyRegisteredEvent) event.getValue().get();
+        assertEquals("abc-123", registered.getUsername());
+        assertEquals("Test Study", registered.getStudyName());
+    }
+
+    @Test
+    @DisplayName("Should look up study group and role only once per request")
+    void lookupsPerRequest() {
+        String study = "123-456-789";
+        GroupModel group = mock(GroupModel.class);
+        when(group.getName()).thenReturn("Test Study");
+        when(group.getFirstAttribute(StudyHelper.REGISTRATION_LIMIT_KEY)).thenReturn("10");
+        StudyGroupMetadataCache metadataCache = new StudyGroupMetadataCache(60_000, 10);
+        StudyRegistrationCounter counter = new StudyRegistrationCounter(new LocalClusterCache());
+
+        // GET request rendering the registration form
+        KeycloakSession getSession = mockSession(group);
+        FormContext getContext = mockFormContext(FormContext.class, getSession, study);
+        new StudyFormAction(new StudyHelper(getSession, counter, metadataCache)).buildPage(getContext, loginFormsProvider);
+
+        // POST request validating the form and creating the user
+        KeycloakSession postSession = mockSession(group);
+        ValidationContext postContext = mockFormContext(ValidationContext.class, postSession, study);
+        StudyFormAction postAction = new StudyFormAction(new StudyHelper(postSession, counter, metadataCache));
+        postAction.validate(postContext);
+        postAction.success(postContext);
+
+        verify(postContext).success();
+        verify(postContext.getUser()).joinGroup(group);
+        verify(getSession.groups(), times(1)).getGroupById(any(), eq(study));
+        verify(postSession.groups(), times(1)).getGroupById(any(), eq(study));
+        verify(postSession.roles(), times(1)).getRealmRole(any(), eq(StudyRegistrationContext.PROBAND_ROLE));
+    }
+
+    private KeycloakSession mockSession(GroupModel group) {
+        KeycloakSession session = mock(KeycloakSession.class);
+        GroupProvider groups = mock(GroupProvider.class);
+        RoleProvider roles = mock(RoleProvider.class);
+        UserProvider users = mock(UserProvider.class);
+        Map<String, Object> attributes = new HashMap<>();
+
+        when(session.groups()).thenReturn(groups);
+        when(session.roles()).thenReturn(roles);
+        when(session.users()).thenReturn(users);
+        when(session.getTransactionManager()).thenReturn(mock(KeycloakTransactionManager.class));
+        when(groups.getGroupById(any(), any())).thenReturn(group);
+        when(roles.getRealmRole(any(), any())).thenReturn(mock(RoleModel.class));
+        when(session.getAttribute(any(), any())).thenAnswer(invocation -> attributes.get(invocation.<String>getArgument(0)));
+        doAnswer(invocation -> attributes.put(invocation.getArgument(0), invocation.getArgument(1)))
+                .when(session).setAttribute(any(), any());
+
+        return session;
+    }
+
+    private <T extends FormContext> T mockFormContext(Class<T> type, KeycloakSession session, String study) {
+        T context = mock(type, RETURNS_DEEP_STUBS);
+        MultivaluedMap<String, String> formData = new MultivaluedHashMap<>();
+        formData.add(StudyFormAction.FIELD_USER_ATTR_STUDY, study);
+
+        when(context.getSession()).thenReturn(session);
+        when(context.getAuthenticationSession().getParentSession().getId()).thenReturn("auth-session");
+        when(context.getAuthenticationSession().getTabId()).thenReturn("tab");
+        when(context.getAuthenticationSession().getUserSessionNotes().get(StudyFormAction.PARAM_STUDY)).thenReturn(study);
+        when(context.getHttpRequest().getHttpMethod()).thenReturn(type == ValidationContext.class ? "post" : "get");
+        when(context.getHttpRequest().getDecodedFormParameters()).thenReturn(formData);
+
+        return context;
     }
 
     private void setStudyInAuthenticationSession(String value) {
@@ -0,0 +1,118 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import io.prometheus.client.CollectorRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.keycloak.common.util.Time;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.RealmModel;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class StudyGroupMetadataCacheTest {
+    private static final String REALM_ID = "negative-cache-realm";
+
+    private StudyGroupMetadataCache metadataCache;
+    private RealmModel realm;
+    private AtomicInteger loads;
+
+    @BeforeEach
+    void setUp() {
+        metadataCache = new StudyGroupMetadataCache(60_000, 10, 10_000, 10);
+        realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn(REALM_ID);
+        loads = new AtomicInteger();
+    }
+
+    @AfterEach
+    void tearDown() {
+        Time.setOffset(0);
+    }
+
+    @Test
+    @DisplayName("Should not load an unknown study again until the negative entry expires or the study is invalidated")
+    void unknownStudy() {
+        double hits = getHits("unknown");
+
+        assertNull(get("unknown-study", () -> null));
+        assertNull(get("unknown-study", () -> null));
+        assertEquals(1, loads.get());
+        assertEquals(hits + 1, getHits("unknown"));
+
+        metadataCache.invalidate(REALM_ID, "unknown-study");
+        assertNull(get("unknown-study", () -> null));
+        assertEquals(2, loads.get());
+
+        Time.setOffset(11);
+        assertNull(get("unknown-study", () -> null));
+        assertEquals(3, loads.get());
+    }
+
+    @Test
+    @DisplayName("Should cache closed studies apart from open ones and return them as closed")
+    void closedStudy() {
+        GroupModel closed = mockGroup("closed-study", null);
+
+        assertFalse(get("closed-study", () -> closed).isOpen());
+        assertFalse(get("closed-study", () -> closed).isOpen());
+        assertEquals(1, loads.get());
+
+        // the negative entry expires earlier than an open one
+        GroupModel open = mockGroup("open-study", "10");
+        assertTrue(get("open-study", () -> open).isOpen());
+        Time.setOffset(11);
+        assertTrue(get("open-study", () -> open).isOpen());
+        assertFalse(get("closed-study", () -> closed).isOpen());
+        assertEquals(3, loads.get());
+    }
+
+    @Test
+    @DisplayName("Should evict the least recently used unknown studies under a flood of unknown ids")
+    void floodOfUnknownStudies() {
+        GroupModel open = mockGroup("open-study", "10");
+        get("open-study", () -> open);
+        get("recent-study", () -> null);
+
+        for (int i = 0; i < 1000; i++) {
+            get("unknown-" + i, () -> null);
+            get("recent-study", () -> null);
+        }
+
+        assertEquals(1002, loads.get());
+        assertTrue(get("open-study", () -> open).isOpen());
+        assertNull(get("unknown-0", () -> null));
+        assertEquals(1003, loads.get());
+    }
+
+    private StudyGroupMetadata get(String groupId, Supplier<GroupModel> loader) {
+        return metadataCache.get(realm, groupId, StudyHelper.REGISTRATION_LIMIT_KEY, () -> {
+            loads.incrementAndGet();
+            return loader.get();
+        });
+    }
+
+    private static GroupModel mockGroup(String id, String registrationLimit) {
+        GroupModel group = mock(GroupModel.class);
+        when(group.getId()).thenReturn(id);
+        when(group.getFirstAttribute(StudyHelper.REGISTRATION_LIMIT_KEY)).thenReturn(registrationLimit);
+        return group;
+    }
+
+    private static double getHits(String reason) {
+        Double value = CollectorRegistry.defaultRegistry.getSampleValue("pia_study_registration_negative_cache_hits_total",
+                new String[]{"reason"}, new String[]{reason});
+        return value != null ? value : 0;
+    }
+}
@@ -12,13 +12,18 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.AuthenticatorConfigModel;
 import org.keycloak.models.GroupModel;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransaction;
 import org.keycloak.models.RealmModel;
+import org.mockito.ArgumentCaptor;
 
+import java.util.Map;
 import java.util.stream.Stream;
 
-import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.*;
 import static org.junit.jupiter.params.provider.Arguments.arguments;
 import static org.mockito.Mockito.*;
 
@@ -32,9 +37,12 @@ class StudyHelperTest {
     void setUp() {
         realmModel = mock(RealmModel.class);
         keycloakSession = mock(KeycloakSession.class, RETURNS_DEEP_STUBS);
+        // counts the memberships without the stored counts
+        doReturn(null).when(keycloakSession).getProvider(JpaConnectionProvider.class);
         groupModel = mock(GroupModel.class);
 
-        studyHelper = new StudyHelper(keycloakSession);
+        studyHelper = new StudyHelper(keycloakSession, StudyRegistrationConfig.DEFAULT, new StudyRegistrationCounter(new LocalClusterCache()),
+                new StudyGroupMetadataCache(60_000, 10), new ApproximateRegistrationCounter(Runnable::run));
     }
 
     @ParameterizedTest
@@ -90,9 +98,124 @@ class StudyHelperTest {
     void getUsersCount() {
         int expected = 123;
         when(keycloakSession.users().getUsersCount(any(), anySet())).thenReturn(expected);
+        studyHelper.init(realmModel, "study");
+
         assertEquals(expected, studyHelper.getUsersCount());
     }
 
+    @Test
+    @DisplayName("Count users only once in the database and keep the count up to date")
+    void getUsersCountCached() {
+        when(keycloakSession.users().getUsersCount(any(), anySet())).thenReturn(10);
+        studyHelper.init(realmModel, "study");
+
+        assertEquals(10, studyHelper.getUsersCount());
+        studyHelper.commitRegistrationSlot("reservation");
+        assertEquals(10, studyHelper.getUsersCount());
+        completeTransaction(true);
+        assertEquals(11, studyHelper.getUsersCount());
+
+        verify(keycloakSession.users(), times(1)).getUsersCount(any(), anySet());
+    }
+
+    @Test
+    @DisplayName("Reserve registration slots only until the limit is reached")
+    void reserveRegistrationSlot() {
+        when(groupModel.getFirstAttribute(StudyHelper.REGISTRATION_LIMIT_KEY)).thenReturn("2");
+        when(keycloakSession.groups().getGroupById(any(), anyString())).thenReturn(groupModel);
+        when(keycloakSession.users().getUsersCount(any(), anySet())).thenReturn(1);
+        studyHelper.init(realmModel, "study");
+
+        assertTrue(studyHelper.reserveRegistrationSlot("first"));
+        assertFalse(studyHelper.reserveRegistrationSlot("second"));
+
+        studyHelper.releaseRegistrationSlot("first");
+        assertTrue(studyHelper.reserveRegistrationSlot("second"));
+    }
+
+    @Test
+    @DisplayName("Give back the reserved slot without counting the user when the registration is rolled back")
+    void commitRegistrationSlotRolledBack() {
+        when(groupModel.getFirstAttribute(StudyHelper.REGISTRATION_LIMIT_KEY)).thenReturn("2");
+        when(keycloakSession.groups().getGroupById(any(), anyString())).thenReturn(groupModel);
+        when(keycloakSession.users().getUsersCount(any(), anySet())).thenReturn(1);
+        studyHelper.init(realmModel, "study");
+
+        assertTrue(studyHelper.reserveRegistrationSlot("first"));
+        studyHelper.commitRegistrationSlot("first");
+        completeTransaction(false);
+
+        assertEquals(1, studyHelper.getUsersCount());
+        assertTrue(studyHelper.reserveRegistrationSlot("second"));
+    }
+
+    @Test
+    @DisplayName("Do not reserve registration slots without a limit")
+    void reserveRegistrationSlotWithoutLimit() {
+        when(keycloakSession.groups().getGroupById(any(), anyString())).thenReturn(groupModel);
+        studyHelper.init(realmModel, "study");
+
+        assertTrue(studyHelper.reserveRegistrationSlot("first"));
+        verify(keycloakSession.users(), never()).getUsersCount(any(), anySet());
+    }
+
+    @Test
+    @DisplayName("Use the node local count far from the limit and reserve slots within the margin in approximate mode")
+    void reserveRegistrationSlotApproximate() {
+        when(groupModel.getFirstAttribute(StudyHelper.REGISTRATION_LIMIT_KEY)).thenReturn("3");
+        when(keycloakSession.groups().getGroupById(any(), anyString())).thenReturn(groupModel);
+        when(keycloakSession.users().getUsersCount(any(), anySet())).thenReturn(1);
+        studyHelper.configure(new StudyRegistrationConfig(60_000, 60_000, StudyRegistrationConfig.LimitMode.APPROXIMATE,
+                "Proband", StudyHelper.REGISTRATION_LIMIT_KEY, 60_000, 1));
+        studyHelper.init(realmModel, "study");
+
+        assertTrue(studyHelper.reserveRegistrationSlot("first"));
+        assertTrue(studyHelper.reserveRegistrationSlot("second"));
+        assertFalse(studyHelper.reachedRegistrationLimit());
+        verify(keycloakSession.users(), times(1)).getUsersCount(any(), anySet());
+
+        // the count is seeded in an own transaction after the registration has been committed
+        when(keycloakSession.getKeycloakSessionFactory().create()).thenReturn(keycloakSession);
+        studyHelper.commitRegistrationSlot("first");
+        completeTransaction(true);
+        assertEquals(2, studyHelper.getApproximateUsersCount());
+
+        assertTrue(studyHelper.reserveRegistrationSlot("second"));
+        assertTrue(studyHelper.reserveRegistrationSlot("third"));
+        assertFalse(studyHelper.reserveRegistrationSlot("fourth"));
+    }
+
+    @Test
+    @DisplayName("Read the registration limit from the configured attribute")
+    void configuredRegistrationLimitKey() {
+        when(groupModel.getFirstAttribute("maxParticipants")).thenReturn("5");
+        when(keycloakSession.groups().getGroupById(any(), anyString())).thenReturn(groupModel);
+        AuthenticatorConfigModel configModel = new AuthenticatorConfigModel();
+        configModel.setConfig(Map.of(StudyRegistrationConfig.REGISTRATION_LIMIT_ATTRIBUTE, "maxParticipants"));
+
+        studyHelper.configure(StudyRegistrationConfig.DEFAULT.withOverrides(configModel));
+        studyHelper.init(realmModel, "study");
+
+        assertEquals(5, studyHelper.getRegistrationLimit());
+    }
+
+    @Test
+    @DisplayName("Load the study group only once")
+    void initCached() {
+        when(groupModel.getFirstAttribute(StudyHelper.REGISTRATION_LIMIT_KEY)).thenReturn("10");
+        when(groupModel.getName()).thenReturn("Test Study");
+        when(keycloakSession.groups().getGroupById(any(), anyString())).thenReturn(groupModel);
+
+        studyHelper.init(realmModel, "study");
+        studyHelper.init(realmModel, "study");
+
+        assertTrue(studyHelper.studyGroupIsOpen());
+        assertEquals(10, studyHelper.getRegistrationLimit());
+        assertEquals("Test Study", studyHelper.getStudyName());
+        verify(keycloakSession.groups(), times(1)).getGroupById(any(), anyString());
+        verify(groupModel, times(1)).getFirstAttribute(StudyHelper.REGISTRATION_LIMIT_KEY);
+    }
+
     @ParameterizedTest
     @DisplayName("Return the registration limit from study group")
     @MethodSource("getRegistrationLimitProvider")
@@ -113,4 +236,16 @@ class StudyHelperTest {
                 arguments("", -1)
         );
     }
-}
\ No newline at end of file
+
+    private void completeTransaction(boolean commit) {
+        ArgumentCaptor<KeycloakTransaction> transaction = ArgumentCaptor.forClass(KeycloakTransaction.class);
+        verify(keycloakSession.getTransactionManager(), atLeastOnce()).enlistAfterCompletion(transaction.capture());
+        transaction.getValue().begin();
+
+        if (commit) {
+            transaction.getValue().commit();
+        } else {
+            transaction.getValue().rollback();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.AuthenticatorConfigModel;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StudyRegistrationConfigOverridesTest {
+    private final StudyRegistrationConfig config = new StudyRegistrationConfig(TimeUnit.SECONDS.toMillis(60),
+            TimeUnit.SECONDS.toMillis(300), StudyRegistrationConfig.LimitMode.STRICT, "Proband", "maxParticipants");
+    private final StudyRegistrationConfigOverrides overrides = new StudyRegistrationConfigOverrides(config);
+
+    @Test
+    @DisplayName("Should parse the configuration of an execution only again after it changed")
+    void getCached() {
+        Map<String, String> values = new HashMap<>(Map.of(StudyRegistrationConfig.PROBAND_ROLE, "Participant"));
+        AuthenticatorConfigModel configModel = createConfigModel(values);
+
+        StudyRegistrationConfig first = overrides.get(configModel);
+
+        assertEquals("Participant", first.getProbandRole());
+        assertSame(first, overrides.get(configModel));
+        assertSame(first, overrides.get(createConfigModel(new HashMap<>(values))));
+
+        values.put(StudyRegistrationConfig.PROBAND_ROLE, "Proband");
+        StudyRegistrationConfig changed = overrides.get(configModel);
+
+        assertNotSame(first, changed);
+        assertEquals("Proband", changed.getProbandRole());
+    }
+
+    @Test
+    @DisplayName("Should use the server configuration without an execution configuration")
+    void getWithoutExecutionConfig() {
+        assertSame(config, overrides.get(null));
+        assertSame(config, overrides.getConfig());
+    }
+
+    @Test
+    @DisplayName("Should not share the cache between holders")
+    void separateHolders() {
+        AuthenticatorConfigModel configModel = createConfigModel(Map.of(StudyRegistrationConfig.PROBAND_ROLE, "Participant"));
+        StudyRegistrationConfig other = new StudyRegistrationConfig(TimeUnit.SECONDS.toMillis(10),
+                TimeUnit.SECONDS.toMillis(300), StudyRegistrationConfig.LimitMode.APPROXIMATE, "Proband", "maxParticipants");
+
+        overrides.get(configModel);
+        StudyRegistrationConfig overridden = new StudyRegistrationConfigOverrides(other).get(configModel);
+
+        assertEquals(StudyRegistrationConfig.LimitMode.APPROXIMATE, overridden.getLimitMode());
+        assertEquals(TimeUnit.SECONDS.toMillis(10), overridden.getCacheTimeToLiveMillis());
+    }
+
+    private static AuthenticatorConfigModel createConfigModel(Map<String, String> values) {
+        AuthenticatorConfigModel configModel = new AuthenticatorConfigModel();
+        configModel.setId("execution-config");
+        configModel.setConfig(values);
+        return configModel;
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.AuthenticatorConfigModel;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StudyRegistrationConfigTest {
+    private final StudyRegistrationConfig config = new StudyRegistrationConfig(TimeUnit.SECONDS.toMillis(60),
+            TimeUnit.SECONDS.toMillis(300), StudyRegistrationConfig.LimitMode.STRICT, "Proband", "maxParticipants");
+
+    @Test
+    @DisplayName("Should apply the configuration of an execution")
+    void withOverrides() {
+        AuthenticatorConfigModel configModel = createConfigModel(Map.of(
+                StudyRegistrationConfig.CACHE_TTL, "10",
+                StudyRegistrationConfig.LIMIT_MODE, "approximate",
+                StudyRegistrationConfig.EXACT_COUNT_MARGIN, "5"));
+
+        StudyRegistrationConfig overridden = config.withOverrides(configModel);
+
+        assertEquals(TimeUnit.SECONDS.toMillis(10), overridden.getCacheTimeToLiveMillis());
+        assertEquals(TimeUnit.SECONDS.toMillis(300), overridden.getReconciliationIntervalMillis());
+        assertEquals(StudyRegistrationConfig.LimitMode.APPROXIMATE, overridden.getLimitMode());
+        assertEquals("Proband", overridden.getProbandRole());
+        assertEquals(5, overridden.getExactCountMargin());
+    }
+
+    @Test
+    @DisplayName("Should keep the current configuration for invalid values")
+    void withInvalidOverrides() {
+        AuthenticatorConfigModel configModel = createConfigModel(Map.of(
+                StudyRegistrationConfig.CACHE_TTL, "ten",
+                StudyRegistrationConfig.RECONCILIATION_INTERVAL, "0",
+                StudyRegistrationConfig.LIMIT_MODE, "sloppy",
+                StudyRegistrationConfig.EXACT_COUNT_MARGIN, "-1",
+                StudyRegistrationConfig.PROBAND_ROLE, "Participant"));
+
+        StudyRegistrationConfig overridden = config.withOverrides(configModel);
+
+        assertEquals(TimeUnit.SECONDS.toMillis(60), overridden.getCacheTimeToLiveMillis());
+        assertEquals(TimeUnit.SECONDS.toMillis(300), overridden.getReconciliationIntervalMillis());
+        assertEquals(StudyRegistrationConfig.LimitMode.STRICT, overridden.getLimitMode());
+        assertEquals(config.getExactCountMargin(), overridden.getExactCountMargin());
+        assertEquals("Participant", overridden.getProbandRole());
+    }
+
+    private static AuthenticatorConfigModel createConfigModel(Map<String, String> values) {
+        AuthenticatorConfigModel configModel = new AuthenticatorConfigModel();
+        configModel.setId("execution-config");
+        configModel.setConfig(values);
+        return configModel;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.LockModeType;
+import jakarta.persistence.TypedQuery;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.*;
+
+class StudyRegistrationCountStoreTest {
+    private static final String GROUP_ID = "group-id";
+
+    private KeycloakSession session;
+    private RealmModel realm;
+    private EntityManager em;
+
+    @BeforeEach
+    void setUp() {
+        session = mock(KeycloakSession.class, RETURNS_DEEP_STUBS);
+        realm = mock(RealmModel.class);
+        em = mock(EntityManager.class);
+    }
+
+    @Test
+    @DisplayName("Read the stored count without counting the memberships")
+    void storedCount() {
+        @SuppressWarnings("unchecked")
+        TypedQuery<Integer> query = mock(TypedQuery.class, RETURNS_SELF);
+        when(em.createNamedQuery("piaGetStudyMemberCount", Integer.class)).thenReturn(query);
+        when(query.getResultList()).thenReturn(List.of(42));
+
+        assertEquals(42, new StudyRegistrationCountStore(session, em).count(realm, GROUP_ID));
+        verify(query).setParameter("groupId", GROUP_ID);
+        verify(session.users(), never()).getUsersCount(any(), anySet());
+    }
+
+    @Test
+    @DisplayName("Count the memberships without a JPA connection")
+    void withoutJpa() {
+        when(session.users().getUsersCount(realm, Set.of(GROUP_ID))).thenReturn(7);
+        StudyRegistrationCountStore store = new StudyRegistrationCountStore(session, null);
+
+        store.add(GROUP_ID, 1);
+
+        assertEquals(7, store.count(realm, GROUP_ID));
+    }
+
+    @Test
+    @DisplayName("Reconcile the count with the memberships while holding the lock of the row")
+    void reconcile() {
+        StudyRegistrationCountEntity entity = new StudyRegistrationCountEntity();
+        entity.setGroupId(GROUP_ID);
+        entity.setMemberCount(12);
+        when(em.find(StudyRegistrationCountEntity.class, GROUP_ID, LockModeType.PESSIMISTIC_WRITE)).thenReturn(entity);
+        when(session.users().getUsersCount(realm, Set.of(GROUP_ID))).thenReturn(10);
+
+        int delta = new StudyRegistrationCountStore(session, em).reconcile(realm, GROUP_ID);
+
+        assertEquals(10, entity.getMemberCount());
+        assertEquals(-2, delta);
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.keycloak.common.util.Time;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StudyRegistrationCounterTest {
+    private static final String REALM = "realm";
+    private static final String STUDY = "study";
+
+    private StudyRegistrationCounter counter;
+    private AtomicInteger databaseCount;
+    private AtomicInteger databaseQueries;
+    private IntSupplier countInDatabase;
+
+    @BeforeEach
+    void setUp() {
+        counter = new StudyRegistrationCounter(new LocalClusterCache(), 60_000);
+        databaseCount = new AtomicInteger(5);
+        databaseQueries = new AtomicInteger();
+        countInDatabase = () -> {
+            databaseQueries.incrementAndGet();
+            return databaseCount.get();
+        };
+    }
+
+    @AfterEach
+    void tearDown() {
+        Time.setOffset(0);
+    }
+
+    @Test
+    @DisplayName("Should seed the count from the database only once")
+    void seedOnce() {
+        assertEquals(5, counter.get(REALM, STUDY, countInDatabase));
+        assertEquals(5, counter.get(REALM, STUDY, countInDatabase));
+
+        assertEquals(1, databaseQueries.get());
+    }
+
+    @Test
+    @DisplayName("Should claim slots in a single update only up to the limit")
+    void claim() {
+        assertTrue(counter.reserve(REALM, STUDY, "reservation", 10, countInDatabase));
+
+        assertEquals(3, counter.claim(REALM, STUDY, 3, 10, countInDatabase));
+        assertEquals(1, counter.claim(REALM, STUDY, 3, 10, countInDatabase));
+        assertEquals(0, counter.claim(REALM, STUDY, 3, 10, countInDatabase));
+        assertEquals(9, counter.get(REALM, STUDY, countInDatabase));
+
+        counter.add(REALM, STUDY, -2);
+        assertEquals(7, counter.get(REALM, STUDY, countInDatabase));
+        assertEquals(1, databaseQueries.get());
+    }
+
+    @Test
+    @DisplayName("Should increment a seeded count without querying the database")
+    void increment() {
+        counter.get(REALM, STUDY, countInDatabase);
+
+        counter.increment(REALM, STUDY, countInDatabase);
+        counter.increment(REALM, STUDY, countInDatabase);
+
+        assertEquals(7, counter.get(REALM, STUDY, countInDatabase));
+        assertEquals(1, databaseQueries.get());
+    }
+
+    @Test
+    @DisplayName("Should not count a new member twice when the count gets seeded by the increment")
+    void incrementUnseeded() {
+        databaseCount.set(6);
+
+        counter.increment(REALM, STUDY, countInDatabase);
+
+        assertEquals(6, counter.get(REALM, STUDY, countInDatabase));
+    }
+
+    @Test
+    @DisplayName("Should reconcile the count with the database after the interval")
+    void reconcile() {
+        counter.get(REALM, STUDY, countInDatabase);
+        counter.increment(REALM, STUDY, countInDatabase);
+        databaseCount.set(3);
+
+        Time.setOffset(61);
+
+        assertEquals(3, counter.get(REALM, STUDY, countInDatabase));
+        assertEquals(2, databaseQueries.get());
+    }
+
+    @Test
+    @DisplayName("Should not reserve more slots than the limit allows")
+    void reserveUntilLimit() {
+        assertTrue(counter.reserve(REALM, STUDY, "a", 7, countInDatabase));
+        assertTrue(counter.reserve(REALM, STUDY, "b", 7, countInDatabase));
+        assertFalse(counter.reserve(REALM, STUDY, "c", 7, countInDatabase));
+
+        assertTrue(counter.reserve(REALM, STUDY, "a", 7, countInDatabase));
+    }
+
+    @Test
+    @DisplayName("Should turn a committed reservation into a registered user")
+    void commitReservation() {
+        counter.reserve(REALM, STUDY, "a", 6, countInDatabase);
+
+        counter.commit(REALM, STUDY, "a", countInDatabase);
+
+        assertEquals(6, counter.get(REALM, STUDY, countInDatabase));
+        assertFalse(counter.reserve(REALM, STUDY, "b", 6, countInDatabase));
+    }
+
+    @Test
+    @DisplayName("Should free the slot of a released or expired reservation")
+    void releaseReservation() {
+        StudyRegistrationCounter shortLivedCounter = new StudyRegistrationCounter(new LocalClusterCache(), 60_000, 10_000);
+
+        assertTrue(shortLivedCounter.reserve(REALM, STUDY, "a", 6, countInDatabase));
+        shortLivedCounter.release(REALM, STUDY, "a");
+        assertTrue(shortLivedCounter.reserve(REALM, STUDY, "b", 6, countInDatabase));
+        assertFalse(shortLivedCounter.reserve(REALM, STUDY, "c", 6, countInDatabase));
+
+        Time.setOffset(11);
+
+        assertTrue(shortLivedCounter.reserve(REALM, STUDY, "c", 6, countInDatabase));
+    }
+
+    @Test
+    @DisplayName("Should never exceed the limit with concurrent reservations")
+    void concurrentReservations() throws InterruptedException {
+        int threads = 8;
+        int limit = 50;
+        AtomicInteger reserved = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        for (int i = 0; i < 200; i++) {
+            String reservationId = "reservation-" + i;
+            executor.execute(() -> {
+                if (counter.reserve(REALM, STUDY, reservationId, limit, countInDatabase)) {
+                    reserved.incrementAndGet();
+                }
+            });
+        }
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(limit - databaseCount.get(), reserved.get());
+    }
+
+    @Test
+    @DisplayName("Should reject a reservation instead of dropping the count when the update fails under contention")
+    void reserveUnderContention() {
+        LocalClusterCache contendedCache = new LocalClusterCache() {
+            @Override
+            public boolean replace(String key, Object oldValue, Object newValue, long lifespanMillis) {
+                return key.contains(":stripe:") ? false : super.replace(key, oldValue, newValue, lifespanMillis);
+            }
+
+            @Override
+            public Object putIfAbsent(String key, Object value, long lifespanMillis) {
+                return key.contains(":stripe:") ? value : super.putIfAbsent(key, value, lifespanMillis);
+            }
+        };
+        StudyRegistrationCounter contendedCounter = new StudyRegistrationCounter(contendedCache, 60_000);
+
+        assertFalse(contendedCounter.reserve(REALM, STUDY, "a", 10, countInDatabase));
+
+        databaseCount.set(0);
+        assertEquals(5, contendedCounter.get(REALM, STUDY, countInDatabase));
+        assertEquals(1, databaseQueries.get());
+    }
+
+    @Test
+    @DisplayName("Should count a committed member when another registration seeded the count without it")
+    void commitSeededByOther() {
+        LocalClusterCache racingCache = new LocalClusterCache() {
+            private boolean raced;
+
+            @Override
+            public Object putIfAbsent(String key, Object value, long lifespanMillis) {
+                if (!raced && value instanceof StudyRegistrationCount) {
+                    raced = true;
+                    super.putIfAbsent(key, new StudyRegistrationCount(5, Time.currentTimeMillis(),
+                            new int[StudyRegistrationCounter.DEFAULT_STRIPES]), lifespanMillis);
+                }
+                return super.putIfAbsent(key, value, lifespanMillis);
+            }
+        };
+        StudyRegistrationCounter racingCounter = new StudyRegistrationCounter(racingCache, 60_000);
+        databaseCount.set(6);
+
+        racingCounter.commit(REALM, STUDY, "a", countInDatabase);
+
+        assertEquals(6, racingCounter.get(REALM, STUDY, countInDatabase));
+    }
+
+    @Test
+    @DisplayName("Should spread the reservations of a study over its stripes")
+    void spreadReservations() {
+        LocalClusterCache cache = new LocalClusterCache();
+        StudyRegistrationCounter stripedCounter = new StudyRegistrationCounter(cache, 60_000,
+                StudyRegistrationCounter.DEFAULT_RESERVATION_LIFESPAN_MILLIS, 4);
+
+        for (int i = 0; i < 8; i++) {
+            assertTrue(stripedCounter.reserve(REALM, STUDY, "reservation-" + i, 13, countInDatabase));
+        }
+        assertFalse(stripedCounter.reserve(REALM, STUDY, "reservation-8", 13, countInDatabase));
+
+        long usedStripes = IntStream.range(0, 4)
+                .mapToObj(stripe -> cache.get("pia-study-registration-count:" + REALM + ":" + STUDY + ":stripe:" + stripe))
+                .filter(stripe -> stripe instanceof StudyRegistrationStripe
+                        && !((StudyRegistrationStripe) stripe).getReservations().isEmpty())
+                .count();
+        assertEquals(4, usedStripes);
+    }
+
+    @Test
+    @DisplayName("Should keep the changes of the stripes when the count is reconciled")
+    void reconcileStripes() {
+        counter.get(REALM, STUDY, countInDatabase);
+        counter.reserve(REALM, STUDY, "a", 10, countInDatabase);
+        databaseCount.set(6);
+        counter.commit(REALM, STUDY, "a", countInDatabase);
+
+        Time.setOffset(61);
+
+        assertEquals(6, counter.get(REALM, STUDY, countInDatabase));
+        assertEquals(4, counter.claim(REALM, STUDY, 10, 10, countInDatabase));
+        assertEquals(10, counter.get(REALM, STUDY, countInDatabase));
+    }
+
+    @Test
+    @DisplayName("Should keep counts of studies separated")
+    void separateStudies() {
+        counter.get(REALM, STUDY, countInDatabase);
+        counter.increment(REALM, STUDY, countInDatabase);
+
+        assertEquals(5, counter.get(REALM, "other", countInDatabase));
+        assertEquals(5, counter.get("other", STUDY, countInDatabase));
+    }
+}
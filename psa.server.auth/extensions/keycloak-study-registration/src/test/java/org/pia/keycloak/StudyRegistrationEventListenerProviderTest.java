@@ -0,0 +1,186 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.LockModeType;
+import jakarta.persistence.Query;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransaction;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.mockito.ArgumentCaptor;
+
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.*;
+
+class StudyRegistrationEventListenerProviderTest {
+    private static final String REALM_ID = "realm-id";
+    private static final String GROUP_ID = "group-id";
+
+    private KeycloakSession keycloakSession;
+    private KeycloakTransactionManager transactionManager;
+    // the deprecated ClusterProvider is still the one used to notify the other nodes
+    @SuppressWarnings("deprecation")
+    private ClusterProvider clusterProvider;
+    private StudyRegistrationEventListenerProvider listener;
+
+    @BeforeEach
+    @SuppressWarnings("deprecation")
+    void setUp() {
+        keycloakSession = mock(KeycloakSession.class);
+        transactionManager = mock(KeycloakTransactionManager.class);
+        clusterProvider = mock(ClusterProvider.class);
+        when(keycloakSession.getTransactionManager()).thenReturn(transactionManager);
+        when(keycloakSession.getProvider(ClusterProvider.class)).thenReturn(clusterProvider);
+        listener = new StudyRegistrationEventListenerProvider(keycloakSession);
+    }
+
+    @ParameterizedTest
+    @DisplayName("Should invalidate the study group after the transaction has been committed")
+    @ValueSource(strings = {"groups/" + GROUP_ID, "groups/" + GROUP_ID + "/children"})
+    @SuppressWarnings("deprecation")
+    void invalidateGroup(String resourcePath) {
+        GroupModel group = mock(GroupModel.class);
+        when(group.getName()).thenReturn("Cached");
+        RealmModel realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn(REALM_ID);
+        StudyGroupMetadataCache.INSTANCE.get(realm, GROUP_ID, StudyHelper.REGISTRATION_LIMIT_KEY, () -> group);
+
+        listener.onEvent(createAdminEvent(ResourceType.GROUP, resourcePath), false);
+
+        ArgumentCaptor<KeycloakTransaction> transaction = ArgumentCaptor.forClass(KeycloakTransaction.class);
+        verify(transactionManager).enlistAfterCompletion(transaction.capture());
+        transaction.getValue().begin();
+        transaction.getValue().commit();
+
+        GroupModel changedGroup = mock(GroupModel.class);
+        when(changedGroup.getName()).thenReturn("Changed");
+        assertEquals("Changed", StudyGroupMetadataCache.INSTANCE
+                .get(realm, GROUP_ID, StudyHelper.REGISTRATION_LIMIT_KEY, () -> changedGroup).getName());
+        verify(clusterProvider).notify(eq(StudyRegistrationEventListenerProvider.GROUP_INVALIDATION_TASK_KEY),
+                any(StudyGroupInvalidationEvent.class), eq(true), eq(ClusterProvider.DCNotify.ALL_DCS));
+    }
+
+    @Test
+    @DisplayName("Should ignore events of other resources")
+    void ignoreOtherResources() {
+        listener.onEvent(createAdminEvent(ResourceType.USER, "users/123"), false);
+
+        verify(transactionManager, never()).enlistAfterCompletion(any());
+    }
+
+    @ParameterizedTest
+    @DisplayName("Should change the stored member count when a user joins or leaves a group")
+    @ValueSource(strings = {"CREATE", "DELETE"})
+    void updateMemberCount(String operation) {
+        EntityManager em = mock(EntityManager.class);
+        Query query = mock(Query.class, RETURNS_SELF);
+        JpaConnectionProvider connection = mock(JpaConnectionProvider.class);
+        when(connection.getEntityManager()).thenReturn(em);
+        when(em.createNamedQuery("piaAddStudyMemberCount")).thenReturn(query);
+        when(keycloakSession.getProvider(JpaConnectionProvider.class)).thenReturn(connection);
+        AdminEvent event = createAdminEvent(ResourceType.GROUP_MEMBERSHIP, "users/123/groups/" + GROUP_ID);
+        event.setOperationType(OperationType.valueOf(operation));
+
+        listener.onEvent(event, false);
+
+        verify(query).setParameter("delta", operation.equals("CREATE") ? 1 : -1);
+        verify(query).setParameter("groupId", GROUP_ID);
+        verify(query).executeUpdate();
+        verify(transactionManager, never()).enlistAfterCompletion(any());
+    }
+
+    @Test
+    @DisplayName("Should count the studies of a removed user again and change the cached count after the commit")
+    void removeMember() {
+        String study = "removed-member-group-id";
+        RealmModel realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn(REALM_ID);
+        UserModel user = mock(UserModel.class);
+        when(user.getGroupsStream()).thenReturn(Stream.empty());
+        when(user.getFirstAttribute(StudyFormAction.USER_ATTR_STUDY)).thenReturn(study);
+        StudyRegistrationCountEntity entity = new StudyRegistrationCountEntity();
+        entity.setGroupId(study);
+        entity.setMemberCount(5);
+        EntityManager em = mock(EntityManager.class);
+        when(em.find(StudyRegistrationCountEntity.class, study, LockModeType.PESSIMISTIC_WRITE)).thenReturn(entity);
+        JpaConnectionProvider connection = mock(JpaConnectionProvider.class);
+        when(connection.getEntityManager()).thenReturn(em);
+        when(keycloakSession.getProvider(JpaConnectionProvider.class)).thenReturn(connection);
+        UserProvider users = mock(UserProvider.class);
+        when(users.getUsersCount(realm, Set.of(study))).thenReturn(4);
+        when(keycloakSession.users()).thenReturn(users);
+        StudyRegistrationCounter counter = new StudyRegistrationCounter(LocalClusterCache.INSTANCE);
+        counter.get(REALM_ID, study, () -> 5);
+        UserModel.UserRemovedEvent event = mock(UserModel.UserRemovedEvent.class);
+        when(event.getKeycloakSession()).thenReturn(keycloakSession);
+        when(event.getRealm()).thenReturn(realm);
+        when(event.getUser()).thenReturn(user);
+
+        StudyRegistrationEventListenerProvider.removeMember(event);
+
+        assertEquals(4, entity.getMemberCount());
+        assertEquals(5, counter.get(REALM_ID, study, () -> 0));
+        ArgumentCaptor<KeycloakTransaction> transaction = ArgumentCaptor.forClass(KeycloakTransaction.class);
+        verify(transactionManager).enlistAfterCompletion(transaction.capture());
+        transaction.getValue().begin();
+        transaction.getValue().commit();
+        assertEquals(4, counter.get(REALM_ID, study, () -> 0));
+    }
+
+    @Test
+    @DisplayName("Should buffer participant events only after the transaction has been committed")
+    void publishAfterCommit() {
+        StudyEventPublisher publisher = mock(StudyEventPublisher.class);
+        StudyParticipantEvent event = new StudyRegisteredEvent("abc-123", "Test Study");
+
+        new StudyRegistrationEventListenerProvider(keycloakSession, publisher).publish(() -> event);
+
+        ArgumentCaptor<KeycloakTransaction> transaction = ArgumentCaptor.forClass(KeycloakTransaction.class);
+        verify(transactionManager).enlistAfterCompletion(transaction.capture());
+        verify(publisher, never()).enqueue(any());
+        transaction.getValue().begin();
+        transaction.getValue().commit();
+        verify(publisher).enqueue(event);
+    }
+
+    @Test
+    @DisplayName("Should not create participant events without a message queue")
+    void publishWithoutMessageQueue() {
+        listener.publish(() -> {
+            throw new AssertionError("event should not be created");
+        });
+
+        verify(transactionManager, never()).enlistAfterCompletion(any());
+    }
+
+    private AdminEvent createAdminEvent(ResourceType resourceType, String resourcePath) {
+        AdminEvent event = new AdminEvent();
+        event.setRealmId(REALM_ID);
+        event.setResourceType(resourceType);
+        event.setOperationType(OperationType.UPDATE);
+        event.setResourcePath(resourcePath);
+        return event;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.keycloak.common.util.Time;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class StudyRegistrationReservationSweeperTest {
+    private static final String REALM = "realm";
+    private static final String STUDY = "study-1";
+    private static final String OTHER_STUDY = "study-2";
+
+    private LocalClusterCache cache;
+    private StudyRegistrationCountStore store;
+    private StudyRegistrationReservationSweeper sweeper;
+
+    @BeforeEach
+    void setUp() {
+        cache = new LocalClusterCache();
+        store = mock(StudyRegistrationCountStore.class);
+        sweeper = new StudyRegistrationReservationSweeper(60_000, 2);
+    }
+
+    @AfterEach
+    void tearDown() {
+        Time.setOffset(0);
+    }
+
+    @Test
+    @DisplayName("Should release expired reservations, so their slots are available before the next registration")
+    void releaseExpired() {
+        StudyRegistrationCounter counter = new StudyRegistrationCounter(cache, 60_000, 10_000);
+        assertTrue(counter.reserve(REALM, STUDY, "abandoned", 6, () -> 5));
+        when(store.getPage("", 2)).thenReturn(List.of(count(STUDY)));
+
+        assertEquals(0, sweeper.sweep(cache, store));
+
+        Time.setOffset(11);
+
+        assertEquals(1, sweeper.sweep(cache, store));
+        assertEquals(0, sweeper.sweep(cache, store));
+    }
+
+    @Test
+    @DisplayName("Should sweep one page per run and start from the beginning after the last page")
+    void pageThroughStudies() {
+        when(store.getPage("", 2)).thenReturn(List.of(count(STUDY), count(OTHER_STUDY)));
+        when(store.getPage(OTHER_STUDY, 2)).thenReturn(List.of());
+
+        sweeper.sweep(cache, store);
+        sweeper.sweep(cache, store);
+        sweeper.sweep(cache, store);
+
+        verify(store, times(2)).getPage("", 2);
+        verify(store).getPage(OTHER_STUDY, 2);
+    }
+
+    private static StudyRegistrationCountEntity count(String groupId) {
+        StudyRegistrationCountEntity entity = new StudyRegistrationCountEntity();
+        entity.setGroupId(groupId);
+        entity.setRealmId(REALM);
+        return entity;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.TypedQuery;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class StudyRegistrationResourceProviderTest {
+    private static final String REALM = "statistics-realm";
+
+    private KeycloakSession requestSession;
+    private KeycloakSessionFactory sessionFactory;
+    private KeycloakSession jobSession;
+    private RealmModel realm;
+
+    @BeforeEach
+    void setUp() {
+        requestSession = mock(KeycloakSession.class, RETURNS_DEEP_STUBS);
+        sessionFactory = mock(KeycloakSessionFactory.class);
+        jobSession = mock(KeycloakSession.class, RETURNS_DEEP_STUBS);
+        realm = mock(RealmModel.class);
+
+        when(sessionFactory.create()).thenReturn(jobSession);
+        // counts the memberships in the node local cache without the stored counts
+        doReturn(null).when(jobSession).getProvider(JpaConnectionProvider.class);
+        doReturn(null).when(jobSession).getProvider(InfinispanConnectionProvider.class);
+        when(jobSession.realms().getRealm(REALM)).thenReturn(realm);
+    }
+
+    @Test
+    @DisplayName("Should stream the statistics of the study groups from an own transaction")
+    void writeStatistics() throws IOException {
+        GroupModel study = mockGroup("statistics-study", "Study", "10");
+        GroupModel other = mockGroup("statistics-other", "Other", null);
+        when(jobSession.groups().getGroupsStream(realm)).thenReturn(Stream.of(study, other));
+        when(jobSession.users().getUsersCount(eq(realm), anySet())).thenReturn(3);
+        StudyRegistrationResourceProvider provider = new StudyRegistrationResourceProvider(requestSession,
+                StudyRegistrationConfig.DEFAULT, 10);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        provider.writeStatistics(output, sessionFactory, REALM, 60);
+
+        List<Map<String, Object>> statistics = JsonSerialization.mapper.readValue(output.toByteArray(),
+                new TypeReference<List<Map<String, Object>>>() {
+                });
+        assertEquals(1, statistics.size());
+        assertEquals("statistics-study", statistics.get(0).get("study"));
+        assertEquals("Study", statistics.get(0).get("name"));
+        assertEquals(3, statistics.get(0).get("count"));
+        assertEquals(10, statistics.get(0).get("limit"));
+        verify(sessionFactory).create();
+        verifyNoInteractions(requestSession);
+    }
+
+    @Test
+    @DisplayName("Should stream the statistics of the studies with a stored count")
+    void writeStatisticsOfStoredCounts() throws IOException {
+        EntityManager em = mock(EntityManager.class);
+        JpaConnectionProvider connection = mock(JpaConnectionProvider.class);
+        when(connection.getEntityManager()).thenReturn(em);
+        doReturn(connection).when(jobSession).getProvider(JpaConnectionProvider.class);
+        when(realm.getId()).thenReturn(REALM);
+        TypedQuery<StudyRegistrationCountEntity> query = mockQuery(List.of(
+                storedCount("stored-closed", 1), storedCount("stored-study", 7)));
+        when(em.createNamedQuery("piaGetRealmStudyMemberCountsAfter", StudyRegistrationCountEntity.class)).thenReturn(query);
+        GroupModel study = mockGroup("stored-study", "Study", "10");
+        GroupModel closed = mockGroup("stored-closed", "Closed", null);
+        when(jobSession.groups().getGroupById(realm, "stored-study")).thenReturn(study);
+        when(jobSession.groups().getGroupById(realm, "stored-closed")).thenReturn(closed);
+        StudyRegistrationResourceProvider provider = new StudyRegistrationResourceProvider(requestSession,
+                StudyRegistrationConfig.DEFAULT, 10);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        provider.writeStatistics(output, sessionFactory, REALM, 60);
+        provider.writeStatistics(new ByteArrayOutputStream(), sessionFactory, REALM, 60);
+
+        List<Map<String, Object>> statistics = JsonSerialization.mapper.readValue(output.toByteArray(),
+                new TypeReference<List<Map<String, Object>>>() {
+                });
+        assertEquals(1, statistics.size());
+        assertEquals("stored-study", statistics.get(0).get("study"));
+        assertEquals("Study", statistics.get(0).get("name"));
+        assertEquals(7, statistics.get(0).get("count"));
+        verify(query, times(2)).setParameter("realmId", REALM);
+        verify(query, times(2)).setParameter("afterGroupId", "");
+        // the groups are loaded once, afterwards their metadata is cached
+        verify(jobSession.groups()).getGroupById(realm, "stored-study");
+        verify(jobSession.groups()).getGroupById(realm, "stored-closed");
+        verify(jobSession.groups(), never()).getGroupsStream(realm);
+        verify(jobSession.users(), never()).getUsersCount(eq(realm), anySet());
+    }
+
+    @Test
+    @DisplayName("Should stream no statistics, if the realm has been removed")
+    void writeStatisticsRemovedRealm() throws IOException {
+        when(jobSession.realms().getRealm(REALM)).thenReturn(null);
+        StudyRegistrationResourceProvider provider = new StudyRegistrationResourceProvider(requestSession,
+                StudyRegistrationConfig.DEFAULT, 10);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        provider.writeStatistics(output, sessionFactory, REALM, 60);
+
+        assertEquals("[]", output.toString());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static TypedQuery<StudyRegistrationCountEntity> mockQuery(List<StudyRegistrationCountEntity> result) {
+        TypedQuery<StudyRegistrationCountEntity> query = mock(TypedQuery.class);
+        when(query.setParameter(anyString(), any())).thenReturn(query);
+        when(query.setMaxResults(anyInt())).thenReturn(query);
+        when(query.getResultList()).thenReturn(result);
+        return query;
+    }
+
+    private static StudyRegistrationCountEntity storedCount(String groupId, int memberCount) {
+        StudyRegistrationCountEntity entity = new StudyRegistrationCountEntity();
+        entity.setGroupId(groupId);
+        entity.setRealmId(REALM);
+        entity.setMemberCount(memberCount);
+        return entity;
+    }
+
+    private static GroupModel mockGroup(String id, String name, String registrationLimit) {
+        GroupModel group = mock(GroupModel.class);
+        when(group.getId()).thenReturn(id);
+        when(group.getName()).thenReturn(name);
+        when(group.getFirstAttribute(StudyHelper.REGISTRATION_LIMIT_KEY)).thenReturn(registrationLimit);
+        return group;
+    }
+}
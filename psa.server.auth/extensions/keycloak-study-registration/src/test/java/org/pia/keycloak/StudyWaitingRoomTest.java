@@ -0,0 +1,72 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.keycloak.common.util.Time;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StudyWaitingRoomTest {
+    private static final String REALM = "realm";
+    private static final String STUDY = "study";
+
+    private StudyWaitingRoom waitingRoom;
+
+    @BeforeEach
+    void setUp() {
+        waitingRoom = new StudyWaitingRoom(new LocalClusterCache());
+    }
+
+    @AfterEach
+    void tearDown() {
+        Time.setOffset(0);
+    }
+
+    @Test
+    @DisplayName("Should admit the burst right away and the following participants at the rate in the order of arrival")
+    void admitAtRate() {
+        RateLimit rate = new RateLimit(2, 2);
+
+        long first = waitingRoom.enqueue(REALM, STUDY, rate, -1);
+        long second = waitingRoom.enqueue(REALM, STUDY, rate, -1);
+        assertTrue(second <= Time.currentTimeMillis());
+        long third = waitingRoom.enqueue(REALM, STUDY, rate, -1);
+        long fourth = waitingRoom.enqueue(REALM, STUDY, rate, -1);
+
+        assertEquals(500, third - first, 50);
+        assertEquals(500, fourth - third);
+        assertEquals(2, StudyWaitingRoom.getPosition(fourth, rate));
+    }
+
+    @Test
+    @DisplayName("Should stop queueing participants when the waiting ones take the remaining capacity")
+    void stopAtCapacity() {
+        RateLimit rate = new RateLimit(1, 1);
+
+        assertNotEquals(StudyWaitingRoom.FULL, waitingRoom.enqueue(REALM, STUDY, rate, 2));
+        assertNotEquals(StudyWaitingRoom.FULL, waitingRoom.enqueue(REALM, STUDY, rate, 2));
+        assertNotEquals(StudyWaitingRoom.FULL, waitingRoom.enqueue(REALM, STUDY, rate, 2));
+        assertEquals(StudyWaitingRoom.FULL, waitingRoom.enqueue(REALM, STUDY, rate, 2));
+        assertNotEquals(StudyWaitingRoom.FULL, waitingRoom.enqueue(REALM, "other-study", rate, 2));
+    }
+
+    @Test
+    @DisplayName("Should not save up admissions while nobody is waiting")
+    void noSavedAdmissions() {
+        RateLimit rate = new RateLimit(1, 1);
+        waitingRoom.enqueue(REALM, STUDY, rate, -1);
+
+        Time.setOffset(60);
+
+        assertTrue(waitingRoom.enqueue(REALM, STUDY, rate, -1) <= Time.currentTimeMillis());
+        assertTrue(waitingRoom.enqueue(REALM, STUDY, rate, -1) > Time.currentTimeMillis());
+    }
+}
@@ -18,12 +18,14 @@ import org.keycloak.authentication.ValidationContext;
 import org.keycloak.forms.login.LoginFormsProvider;
 import org.keycloak.models.ClientModel;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.UserModel;
 
 import jakarta.ws.rs.core.MultivaluedHashMap;
 import jakarta.ws.rs.core.MultivaluedMap;
 
 import java.util.stream.Stream;
 
+import static org.junit.jupiter.api.Assertions.*;
 import static org.junit.jupiter.params.provider.Arguments.arguments;
 import static org.mockito.Mockito.*;
 
@@ -44,6 +46,8 @@ class TermsOfServiceFormActionTest {
         validationContext = mock(ValidationContext.class, RETURNS_DEEP_STUBS);
 
         when(keycloakSession.getContext().getClient()).thenReturn(clientModel);
+        when(formContext.getSession()).thenReturn(keycloakSession);
+        when(validationContext.getSession()).thenReturn(keycloakSession);
     }
 
     @Test
@@ -124,8 +128,65 @@ class TermsOfServiceFormActionTest {
         );
     }
 
+    @Test
+    @DisplayName("Should read the client attributes only once")
+    void cacheClientAttributes() {
+        setTosUrl("https://tos.uri");
+        setFormValues("true", null);
+
+        FormAction formAction = buildFormAction();
+        formAction.buildPage(formContext, loginFormsProvider);
+        formAction.validate(validationContext);
+        formAction.validate(validationContext);
+
+        verify(clientModel, times(1)).getAttribute(ClientModel.TOS_URI);
+        verify(clientModel, times(1)).getAttribute(ClientModel.POLICY_URI);
+    }
+
+    @Test
+    @DisplayName("Should read the client attributes again after the client changed")
+    void invalidateClient() {
+        ClientTermsOfServiceCache cache = new ClientTermsOfServiceCache(60_000, 10);
+        when(clientModel.getId()).thenReturn("client");
+        when(keycloakSession.getContext().getRealm().getId()).thenReturn("realm");
+        setTosUrl("https://tos.uri");
+
+        FormAction formAction = new TermsOfServiceFormAction(cache);
+        formAction.buildPage(formContext, loginFormsProvider);
+
+        setTosUrl("https://changed.tos.uri");
+        cache.invalidate(new ClientInvalidationEvent("realm", "client"));
+        formAction.buildPage(formContext, loginFormsProvider);
+
+        verify(loginFormsProvider).setAttribute(TermsOfServiceFormAction.TOS_URI, "https://changed.tos.uri");
+    }
+
+    @Test
+    @DisplayName("Should record the accepted versions of the configured documents")
+    void successRecordsAcceptance() {
+        setTosUrl("https://tos.uri/v2");
+        setPolicyUri(null);
+        UserModel user = mock(UserModel.class);
+        when(formContext.getUser()).thenReturn(user);
+
+        buildFormAction().success(formContext);
+
+        verify(user).setSingleAttribute(TermsOfServiceAcceptance.TOS_HASH, TermsOfServiceAcceptance.hash("https://tos.uri/v2"));
+        verify(user).setSingleAttribute(TermsOfServiceAcceptance.TOS_URI, "https://tos.uri/v2");
+        verify(user).setSingleAttribute(eq(TermsOfServiceAcceptance.TOS_ACCEPTED_AT), anyString());
+        verify(user, never()).setSingleAttribute(eq(TermsOfServiceAcceptance.POLICY_HASH), any());
+    }
+
+    @Test
+    @DisplayName("Should identify a version by the SHA-256 hash of its URI")
+    void hash() {
+        assertEquals("4fcd2d83b4d25db5b97f5a15f8f52d7549bbb1070e865ef0dad7c9249b0f9a70", TermsOfServiceAcceptance.hash("https://tos.uri"));
+        assertNotEquals(TermsOfServiceAcceptance.hash("https://tos.uri/v1"), TermsOfServiceAcceptance.hash("https://tos.uri/v2"));
+        assertNull(TermsOfServiceAcceptance.hash(""));
+    }
+
     private TermsOfServiceFormAction buildFormAction() {
-        return new TermsOfServiceFormAction(keycloakSession);
+        return new TermsOfServiceFormAction(new ClientTermsOfServiceCache(60_000, 10));
     }
 
     private void setFormValues(String tosValue, String policyValue) {
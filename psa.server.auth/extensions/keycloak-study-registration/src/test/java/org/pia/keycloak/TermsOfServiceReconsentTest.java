@@ -0,0 +1,179 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.keycloak.Config;
+import org.keycloak.authentication.RequiredActionContext;
+import org.keycloak.forms.login.LoginFormsProvider;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.FormMessage;
+
+import jakarta.ws.rs.core.MultivaluedHashMap;
+import jakarta.ws.rs.core.MultivaluedMap;
+
+import java.time.Instant;
+import java.util.List;
+
+import static org.mockito.Mockito.*;
+
+class TermsOfServiceReconsentTest {
+    private static final String TOS_URI = "https://tos.uri/v1";
+    private static final String POLICY_URI = "https://policy.uri/v1";
+    private static final long ROLLOUT = Instant.parse("2024-06-01T00:00:00Z").toEpochMilli();
+
+    private RequiredActionContext context;
+    private ClientModel clientModel;
+    private UserModel user;
+    private LoginFormsProvider loginFormsProvider;
+    private TermsOfServiceReconsent reconsent;
+
+    @BeforeEach
+    void setUp() {
+        context = mock(RequiredActionContext.class, RETURNS_DEEP_STUBS);
+        clientModel = mock(ClientModel.class);
+        user = mock(UserModel.class);
+        loginFormsProvider = mock(LoginFormsProvider.class, RETURNS_SELF);
+
+        when(context.getAuthenticationSession().getClient()).thenReturn(clientModel);
+        when(context.getUser()).thenReturn(user);
+        when(context.form()).thenReturn(loginFormsProvider);
+        when(clientModel.getAttribute(ClientModel.TOS_URI)).thenReturn(TOS_URI);
+        when(clientModel.getAttribute(ClientModel.POLICY_URI)).thenReturn(POLICY_URI);
+
+        reconsent = new TermsOfServiceReconsent(new ClientTermsOfServiceCache(60_000, 10));
+    }
+
+    @Test
+    @DisplayName("Should not require a re-consent if the current versions have been accepted")
+    void evaluateTriggersCurrent() {
+        when(user.getFirstAttribute(TermsOfServiceAcceptance.TERMS_DIGEST)).thenReturn(getDigest(TOS_URI, POLICY_URI));
+
+        reconsent.evaluateTriggers(context);
+
+        verify(user, never()).addRequiredAction(anyString());
+    }
+
+    @Test
+    @DisplayName("Should require a re-consent if the accepted versions are outdated")
+    void evaluateTriggersOutdated() {
+        when(user.getFirstAttribute(TermsOfServiceAcceptance.TERMS_DIGEST)).thenReturn(getDigest("https://tos.uri/v0", POLICY_URI));
+
+        reconsent.evaluateTriggers(context);
+
+        verify(user).addRequiredAction(TermsOfServiceReconsent.PROVIDER_ID);
+    }
+
+    @Test
+    @DisplayName("Should not require a re-consent from participants registered before the versions were recorded")
+    void evaluateTriggersLegacyUser() {
+        when(user.getFirstAttribute(TermsOfServiceAcceptance.TERMS_DIGEST)).thenReturn(null);
+        when(user.getCreatedTimestamp()).thenReturn(ROLLOUT - 1);
+
+        createReconsentWithRollout().evaluateTriggers(context);
+
+        verify(user, never()).addRequiredAction(anyString());
+        verify(user).setSingleAttribute(TermsOfServiceAcceptance.TERMS_DIGEST, getDigest(TOS_URI, POLICY_URI));
+    }
+
+    @Test
+    @DisplayName("Should require a consent from users without recorded versions created after the rollout")
+    void evaluateTriggersUserCreatedAfterRollout() {
+        when(user.getFirstAttribute(TermsOfServiceAcceptance.TERMS_DIGEST)).thenReturn(null);
+        when(user.getCreatedTimestamp()).thenReturn(ROLLOUT);
+
+        createReconsentWithRollout().evaluateTriggers(context);
+
+        verify(user).addRequiredAction(TermsOfServiceReconsent.PROVIDER_ID);
+        verify(user, never()).setSingleAttribute(eq(TermsOfServiceAcceptance.TERMS_DIGEST), any());
+    }
+
+    @Test
+    @DisplayName("Should require a consent from users without recorded versions, if no rollout is configured")
+    void evaluateTriggersWithoutRollout() {
+        when(user.getFirstAttribute(TermsOfServiceAcceptance.TERMS_DIGEST)).thenReturn(null);
+        when(user.getCreatedTimestamp()).thenReturn(ROLLOUT - 1);
+        reconsent.init(mock(Config.Scope.class));
+
+        reconsent.evaluateTriggers(context);
+
+        verify(user).addRequiredAction(TermsOfServiceReconsent.PROVIDER_ID);
+        verify(user, never()).setSingleAttribute(eq(TermsOfServiceAcceptance.TERMS_DIGEST), any());
+    }
+
+    @Test
+    @DisplayName("Should read the rollout from the configuration")
+    void initRollout() {
+        Config.Scope config = mock(Config.Scope.class);
+        when(config.get(TermsOfServiceReconsent.CONFIG_ROLLOUT)).thenReturn(Instant.ofEpochMilli(ROLLOUT).toString());
+        when(user.getFirstAttribute(TermsOfServiceAcceptance.TERMS_DIGEST)).thenReturn(null);
+        when(user.getCreatedTimestamp()).thenReturn(ROLLOUT - 1);
+
+        reconsent.init(config);
+        reconsent.evaluateTriggers(context);
+
+        verify(user, never()).addRequiredAction(anyString());
+    }
+
+    @Test
+    @DisplayName("Should not require a re-consent if the client has no terms")
+    void evaluateTriggersWithoutTerms() {
+        when(clientModel.getAttribute(ClientModel.TOS_URI)).thenReturn(null);
+        when(clientModel.getAttribute(ClientModel.POLICY_URI)).thenReturn(null);
+
+        reconsent.evaluateTriggers(context);
+
+        verify(user, never()).addRequiredAction(anyString());
+    }
+
+    @Test
+    @DisplayName("Should show the form again if not all documents have been confirmed")
+    void processActionMissingConfirmation() {
+        setFormValues("on", null);
+
+        reconsent.processAction(context);
+
+        verify(loginFormsProvider).setErrors(argThat((List<FormMessage> errors) -> errors.size() == 1));
+        verify(context).challenge(any());
+        verify(context, never()).success();
+        verify(user, never()).setSingleAttribute(eq(TermsOfServiceAcceptance.TERMS_DIGEST), any());
+    }
+
+    @Test
+    @DisplayName("Should record the accepted versions")
+    void processActionSuccess() {
+        setFormValues("on", "on");
+
+        reconsent.processAction(context);
+
+        verify(user).setSingleAttribute(TermsOfServiceAcceptance.TERMS_DIGEST, getDigest(TOS_URI, POLICY_URI));
+        verify(user).setSingleAttribute(TermsOfServiceAcceptance.TOS_HASH, TermsOfServiceAcceptance.hash(TOS_URI));
+        verify(context).success();
+    }
+
+    private TermsOfServiceReconsent createReconsentWithRollout() {
+        return new TermsOfServiceReconsent(new ClientTermsOfServiceCache(60_000, 10), ROLLOUT);
+    }
+
+    private void setFormValues(String tosValue, String policyValue) {
+        MultivaluedMap<String, String> formData = new MultivaluedHashMap<>();
+        if (tosValue != null) {
+            formData.add(TermsOfServiceFormAction.FIELDNAME_TOS_CONFIRM, tosValue);
+        }
+        if (policyValue != null) {
+            formData.add(TermsOfServiceFormAction.FIELDNAME_POLICY_CONFIRM, policyValue);
+        }
+        when(context.getHttpRequest().getDecodedFormParameters()).thenReturn(formData);
+    }
+
+    private static String getDigest(String tosUri, String policyUri) {
+        return new ClientTermsOfService(tosUri, policyUri).getDigest();
+    }
+}
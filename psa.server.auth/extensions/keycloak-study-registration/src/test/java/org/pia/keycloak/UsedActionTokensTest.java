@@ -0,0 +1,61 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.keycloak.common.util.Time;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UsedActionTokensTest {
+    private UsedActionTokens usedTokens;
+
+    @BeforeEach
+    void setUp() {
+        usedTokens = new UsedActionTokens(new LocalClusterCache());
+    }
+
+    @Test
+    @DisplayName("Mark a token as used only once")
+    void markUsed() {
+        VerifyEmailWithUsernameAcknowledgementActionToken token = newToken(Time.currentTime() + 300);
+
+        assertFalse(usedTokens.isUsed(token));
+        assertTrue(usedTokens.markUsed(token));
+        assertFalse(usedTokens.markUsed(token));
+        assertTrue(usedTokens.isUsed(token));
+        assertFalse(usedTokens.isUsed(newToken(Time.currentTime() + 300)));
+    }
+
+    @Test
+    @DisplayName("Allow to use a released token again")
+    void release() {
+        VerifyEmailWithUsernameAcknowledgementActionToken token = newToken(Time.currentTime() + 300);
+        usedTokens.markUsed(token);
+
+        usedTokens.release(token);
+
+        assertFalse(usedTokens.isUsed(token));
+        assertTrue(usedTokens.markUsed(token));
+    }
+
+    @Test
+    @DisplayName("Do not keep expired tokens")
+    void expiredToken() {
+        VerifyEmailWithUsernameAcknowledgementActionToken token = newToken(Time.currentTime() - 1);
+
+        assertTrue(usedTokens.markUsed(token));
+        assertFalse(usedTokens.isUsed(token));
+    }
+
+    private static VerifyEmailWithUsernameAcknowledgementActionToken newToken(int expiration) {
+        return new VerifyEmailWithUsernameAcknowledgementActionToken("user", expiration,
+                "auth-session", "participant@example.com", "client");
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.keycloak.common.util.Time;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VerifyEmailResendWindowTest {
+    private static final long WINDOW_MILLIS = 60_000;
+
+    private final LocalClusterCache cache = new LocalClusterCache();
+
+    @AfterEach
+    void tearDown() {
+        Time.setOffset(0);
+    }
+
+    @Test
+    @DisplayName("Suppress further emails to the same address within the window")
+    void suppressDuplicates() {
+        VerifyEmailResendWindow window = new VerifyEmailResendWindow(cache, WINDOW_MILLIS, 1);
+
+        assertTrue(window.tryAcquire("realm", "user", "participant@example.com"));
+        assertFalse(window.tryAcquire("realm", "user", "participant@example.com"));
+        assertTrue(window.tryAcquire("realm", "user", "changed@example.com"));
+        assertTrue(window.tryAcquire("realm", "other", "participant@example.com"));
+    }
+
+    @Test
+    @DisplayName("Count the previous window until it has slid out")
+    void slidingWindow() {
+        VerifyEmailResendWindow window = new VerifyEmailResendWindow(cache, WINDOW_MILLIS, 1);
+        assertTrue(window.tryAcquire("realm", "user", "participant@example.com"));
+
+        Time.setOffset(60);
+        assertFalse(window.tryAcquire("realm", "user", "participant@example.com"));
+
+        Time.setOffset(120);
+        assertTrue(window.tryAcquire("realm", "user", "participant@example.com"));
+    }
+
+    @Test
+    @DisplayName("Allow the configured number of emails per window")
+    void maxEmails() {
+        VerifyEmailResendWindow window = new VerifyEmailResendWindow(cache, WINDOW_MILLIS, 2);
+
+        assertTrue(window.tryAcquire("realm", "user", "participant@example.com"));
+        assertTrue(window.tryAcquire("realm", "user", "participant@example.com"));
+        assertFalse(window.tryAcquire("realm", "user", "participant@example.com"));
+    }
+}
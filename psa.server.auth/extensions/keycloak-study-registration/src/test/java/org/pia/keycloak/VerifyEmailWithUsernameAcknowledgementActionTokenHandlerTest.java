@@ -0,0 +1,87 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+package org.pia.keycloak;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.keycloak.Config;
+import org.keycloak.authentication.actiontoken.ActionTokenContext;
+import org.keycloak.common.util.Time;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
+import org.keycloak.cookie.CookieProvider;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.forms.login.LoginFormsProvider;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransaction;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.mockito.ArgumentCaptor;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class VerifyEmailWithUsernameAcknowledgementActionTokenHandlerTest {
+    private static final String STUDY = "verify-email-study";
+
+    @Test
+    @DisplayName("Should look up the study of the email verified event with the configured registration limit attribute")
+    void createEmailVerifiedEvent() {
+        // the scope returns the defaults of all other options
+        Config.Scope scope = mock(Config.Scope.class, invocation -> invocation.getArguments().length > 1
+                ? invocation.getArgument(1) : null);
+        doReturn("customLimit").when(scope).get(eq(StudyRegistrationConfig.REGISTRATION_LIMIT_ATTRIBUTE), any());
+        VerifyEmailWithUsernameAcknowledgementActionTokenHandler handler = new VerifyEmailWithUsernameAcknowledgementActionTokenHandler();
+        handler.init(scope);
+
+        RealmModel realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn("verify-email-realm");
+        GroupModel group = mock(GroupModel.class);
+        when(group.getName()).thenReturn("Test Study");
+        when(group.getFirstAttribute("customLimit")).thenReturn("10");
+        UserModel user = mock(UserModel.class);
+        when(user.getUsername()).thenReturn("abc-123");
+        when(user.getFirstAttribute(StudyFormAction.USER_ATTR_STUDY)).thenReturn(STUDY);
+        KeycloakSession session = mock(KeycloakSession.class, RETURNS_DEEP_STUBS);
+        when(session.groups().getGroupById(realm, STUDY)).thenReturn(group);
+
+        EmailVerifiedEvent event = (EmailVerifiedEvent) handler.createEmailVerifiedEvent(realm, user, session);
+
+        assertEquals("Test Study", event.getStudyName());
+        assertEquals("abc-123", event.getPseudonym());
+        assertEquals(10, StudyGroupMetadataCache.INSTANCE.get(realm, STUDY, "customLimit", () -> null)
+                .getRegistrationLimit());
+    }
+
+    @Test
+    @DisplayName("Should allow to use the token again when the verification is rolled back")
+    @SuppressWarnings("unchecked")
+    void releaseTokenOnRollback() {
+        ActionTokenContext<VerifyEmailWithUsernameAcknowledgementActionToken> tokenContext =
+                mock(ActionTokenContext.class, RETURNS_DEEP_STUBS);
+        KeycloakSession session = mock(KeycloakSession.class, RETURNS_DEEP_STUBS);
+        doReturn(null).when(session).getProvider(InfinispanConnectionProvider.class);
+        doReturn(null).when(session).getProvider(EventListenerProvider.class, StudyRegistrationEventListenerProviderFactory.PROVIDER_ID);
+        doReturn(mock(LoginFormsProvider.class, RETURNS_DEEP_STUBS)).when(session).getProvider(LoginFormsProvider.class);
+        // removing the authentication session expires its cookie
+        doReturn(mock(CookieProvider.class)).when(session).getProvider(CookieProvider.class);
+        when(tokenContext.getSession()).thenReturn(session);
+        when(tokenContext.isAuthenticationSessionFresh()).thenReturn(false);
+        VerifyEmailWithUsernameAcknowledgementActionToken token = new VerifyEmailWithUsernameAcknowledgementActionToken(
+                "user", Time.currentTime() + 300, "auth-session", "participant@example.com", "client");
+        UsedActionTokens usedTokens = new UsedActionTokens(LocalClusterCache.INSTANCE);
+
+        new VerifyEmailWithUsernameAcknowledgementActionTokenHandler().handleToken(token, tokenContext);
+
+        assertTrue(usedTokens.isUsed(token));
+        ArgumentCaptor<KeycloakTransaction> transaction = ArgumentCaptor.forClass(KeycloakTransaction.class);
+        verify(session.getTransactionManager()).enlistAfterCompletion(transaction.capture());
+        transaction.getValue().begin();
+        transaction.getValue().rollback();
+        assertFalse(usedTokens.isUsed(token));
+    }
+}
@@ -0,0 +1,66 @@
+<#--
+SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+
+SPDX-License-Identifier: AGPL-3.0-or-later
+-->
+
+<#import "template.ftl" as layout>
+<@layout.registrationLayout displayMessage=!messagesPerField.existsError('piaTosConfirm','piaPolicyConfirm'); section>
+    <#if section = "header">
+        ${msg("piaReconsentTitle")}
+    <#elseif section = "form">
+        <form id="kc-terms-reconsent-form" class="${properties.kcFormClass!}" action="${url.loginAction}" method="post" data-e2e="reconsent-form">
+            <div class="pia-alert">
+                <div class="pia-alert-content">
+                    <span class="pia-alert-summary">${kcSanitize(msg("piaReconsentHint"))?no_esc}</span>
+                </div>
+            </div>
+
+            <#if tosUri?has_content>
+                <div class="form-group">
+                    <div class="checkbox">
+                        <label>
+                            <input type="checkbox" name="piaTosConfirm"
+                                   aria-invalid="<#if messagesPerField.existsError('piaTosConfirm')>true</#if>"
+                                   data-e2e="reconsent-checkbox-tos-confirm">
+                            <#if tosConfirmLabel??>${tosConfirmLabel?no_esc}<#else>${msg('piaRegistrationTosConfirmLabel', tosUri)?no_esc}</#if>
+                        </label>
+                        <#if messagesPerField.existsError('piaTosConfirm')>
+                            <span class="${properties.kcInputErrorMessageClass!}" aria-live="polite">
+                                ${kcSanitize(messagesPerField.get('piaTosConfirm'))?no_esc}
+                            </span>
+                        </#if>
+                    </div>
+                </div>
+            </#if>
+
+            <#if policyUri?has_content>
+                <div class="form-group">
+                    <div class="checkbox">
+                        <label>
+                            <input type="checkbox" name="piaPolicyConfirm"
+                                   aria-invalid="<#if messagesPerField.existsError('piaPolicyConfirm')>true</#if>"
+                                   data-e2e="reconsent-checkbox-policy-confirm">
+                            <#if policyConfirmLabel??>${policyConfirmLabel?no_esc}<#else>${msg('piaRegistrationPolicyConfirmLabel', policyUri)?no_esc}</#if>
+                        </label>
+                        <#if messagesPerField.existsError('piaPolicyConfirm')>
+                            <span class="${properties.kcInputErrorMessageClass!}" aria-live="polite">
+                                ${kcSanitize(messagesPerField.get('piaPolicyConfirm'))?no_esc}
+                            </span>
+                        </#if>
+                    </div>
+                </div>
+            </#if>
+
+            <div class="${properties.kcFormGroupClass!}">
+                <div id="kc-form-buttons" class="${properties.kcFormButtonsClass!}">
+                    <input class="${properties.kcButtonClass!} ${properties.kcButtonPrimaryClass!} ${properties.kcButtonBlockClass!} ${properties.kcButtonLargeClass!}"
+                           type="submit"
+                           value="${msg("doSubmit")}"
+                           data-e2e="reconsent-submit-button"
+                    />
+                </div>
+            </div>
+        </form>
+    </#if>
+</@layout.registrationLayout>
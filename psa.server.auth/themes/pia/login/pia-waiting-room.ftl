@@ -0,0 +1,35 @@
+<#--
+SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+
+SPDX-License-Identifier: AGPL-3.0-or-later
+-->
+
+<#import "template.ftl" as layout>
+<@layout.registrationLayout displayMessage=false; section>
+    <#if section = "header">
+        ${msg("piaWaitingRoomTitle")}
+    <#elseif section = "form">
+        <form id="kc-waiting-room-form" class="${properties.kcFormClass!}" action="${url.loginAction}" method="post" data-e2e="waiting-room-form">
+            <div class="pia-alert">
+                <div class="pia-alert-content">
+                    <span class="pia-alert-summary">${kcSanitize(msg("piaWaitingRoomHint", waitingRoomPosition))?no_esc}</span>
+                </div>
+            </div>
+
+            <div class="${properties.kcFormGroupClass!}">
+                <div id="kc-form-buttons" class="${properties.kcFormButtonsClass!}">
+                    <input class="${properties.kcButtonClass!} ${properties.kcButtonPrimaryClass!} ${properties.kcButtonBlockClass!} ${properties.kcButtonLargeClass!}"
+                           type="submit"
+                           value="${msg("piaWaitingRoomRefresh")}"
+                           data-e2e="waiting-room-refresh-button"
+                    />
+                </div>
+            </div>
+        </form>
+        <script type="text/javascript">
+            setTimeout(function () {
+                document.getElementById('kc-waiting-room-form').submit();
+            }, ${waitingRoomRefreshSeconds?c} * 1000);
+        </script>
+    </#if>
+</@layout.registrationLayout>
@@ -31,7 +31,7 @@ This file has been modified:
     <#if section = "header">
         ${msg("registerTitle")}
     <#elseif section = "form">
-        <h2 class="pia-login-subtitle" data-e2e="registration-subtitle">${kcSanitize(msg('piaRegistrationSubtitle', studyName))?no_esc}</h2>
+        <h2 class="pia-login-subtitle" data-e2e="registration-subtitle"><#if studySubtitle??>${studySubtitle?no_esc}<#else>${kcSanitize(msg('piaRegistrationSubtitle', studyName))?no_esc}</#if></h2>
 
         <div class="pia-alert">
             <div class="pia-alert-content">
@@ -141,7 +141,7 @@ This file has been modified:
                             <input type="checkbox" name="piaTosConfirm" <#if register.formData['piaTosConfirm']?has_content>checked</#if>
                                    aria-invalid="<#if messagesPerField.existsError('piaTosConfirm')>true</#if>"
                                    data-e2e="registration-checkbox-tos-confirm">
-                            ${msg('piaRegistrationTosConfirmLabel', tosUri)?no_esc}
+                            <#if tosConfirmLabel??>${tosConfirmLabel?no_esc}<#else>${msg('piaRegistrationTosConfirmLabel', tosUri)?no_esc}</#if>
                         </label>
                         <#if messagesPerField.existsError('tos-confirm')>
                             <span class="${properties.kcInputErrorMessageClass!}" aria-live="polite">
@@ -159,7 +159,7 @@ This file has been modified:
                             <input type="checkbox" name="piaPolicyConfirm" <#if register.formData['piaPolicyConfirm']?has_content>checked</#if>
                                    aria-invalid="<#if messagesPerField.existsError('piaPolicyConfirm')>true</#if>"
                                    data-e2e="registration-checkbox-policy-confirm">
-                            ${msg('piaRegistrationPolicyConfirmLabel', policyUri)?no_esc}
+                            <#if policyConfirmLabel??>${policyConfirmLabel?no_esc}<#else>${msg('piaRegistrationPolicyConfirmLabel', policyUri)?no_esc}</#if>
                         </label>
                         <#if messagesPerField.existsError('policy-confirm')>
                             <span class="${properties.kcInputErrorMessageClass!}" aria-live="polite">
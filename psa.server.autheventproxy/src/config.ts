@@ -19,6 +19,12 @@ const conf = {
       messageQueueExchange: ConfigUtils.getEnvVariable(
         'AUTHSERVER_MESSAGEQUEUE_EXCHANGE'
       ),
+      // the study registration extension of the authserver publishes the proband events itself
+      publishesProbandEvents:
+        ConfigUtils.getEnvVariable(
+          'AUTHSERVER_PUBLISHES_PROBAND_EVENTS',
+          'false'
+        ).toLowerCase() === 'true',
     },
   },
   isDevelopmentSystem: GlobalConfig.isDevelopmentSystem(),
@@ -4,15 +4,24 @@
  * SPDX-License-Identifier: AGPL-3.0-or-later
  */
 
+import { config } from './config';
 import { EventProxy } from './proxys/eventProxy';
 import { LoginWebAppProxy } from './proxys/loginWebAppProxy';
 import { LoginMobileAppProxy } from './proxys/loginMobileAppProxy';
 import { UserRegistrationProxy } from './proxys/userRegistrationProxy';
 import { ProbandEmailVerifiedProxy } from './proxys/probandEmailVerifiedProxy';
 
+/**
+ * The registration and email verification events are not forwarded when the
+ * authserver publishes them, otherwise they would be delivered twice.
+ */
+const probandEventProxies: typeof EventProxy[] = config.servers.authserver
+  .publishesProbandEvents
+  ? []
+  : [UserRegistrationProxy, ProbandEmailVerifiedProxy];
+
 export const proxies: typeof EventProxy[] = [
   LoginWebAppProxy,
   LoginMobileAppProxy,
-  UserRegistrationProxy,
-  ProbandEmailVerifiedProxy,
+  ...probandEventProxies,
 ];
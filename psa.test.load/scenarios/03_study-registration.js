@@ -0,0 +1,362 @@
+/*
+ * SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+ *
+ * SPDX-License-Identifier: AGPL-3.0-or-later
+ */
+
+import http from 'k6/http';
+import { exec, scenario } from 'k6/execution';
+import { check, fail, group, sleep } from 'k6';
+import { Counter, Gauge, Trend } from 'k6/metrics';
+import dev from '../stages/dev.js';
+import peak from '../stages/peak.js';
+
+// See the respective configuration file to learn more about their usage
+const stagesConfiguration = { dev, peak };
+
+export let options = {
+  stages: __ENV.STAGES
+    ? stagesConfiguration[__ENV.STAGES]
+    : stagesConfiguration.dev,
+  setupTimeout: '1m',
+  teardownTimeout: '1m',
+  thresholds: {
+    'http_req_duration{group:::registration page}': ['p(95)<1500'],
+    'http_req_duration{group:::register}': ['p(95)<1500'],
+    'http_req_duration{group:::verify email}': ['p(95)<1500'],
+    'http_req_duration{group:::login}': ['p(95)<1500'],
+    registration_page_duration: ['p(95)<1500'],
+    registration_submit_duration: ['p(95)<1500'],
+    verify_email_click_duration: ['p(95)<1500'],
+    login_duration: ['p(95)<1500'],
+    study_limit_overshoot: ['max==0'],
+  },
+};
+
+const BASE_URL = __ENV.URL || 'http://localhost:4000';
+const MAILHOG_URL = __ENV.MAILHOG_URL || 'http://localhost:8025';
+const KEYCLOAK_URL = `${BASE_URL}/api/v1/auth`;
+const REALM = 'pia-proband-realm';
+const CLIENT_ID = 'pia-proband-web-app-client';
+const REDIRECT_URI = __ENV.WEBAPP_URL || 'http://localhost:4200';
+
+const STUDIES = parseInt(__ENV.STUDIES || '2');
+const REGISTRATION_LIMIT = parseInt(__ENV.REGISTRATION_LIMIT || '20');
+const STEPS = (__ENV.STEPS || 'register,verify,login').split(',');
+const PASSWORD = 'Load-Test-1234';
+
+const registrationPageDuration = new Trend('registration_page_duration', true);
+const registrationSubmitDuration = new Trend('registration_submit_duration', true);
+const verifyEmailDeliveryDuration = new Trend('verify_email_delivery_duration', true);
+const verifyEmailClickDuration = new Trend('verify_email_click_duration', true);
+const loginDuration = new Trend('login_duration', true);
+const registrationsAccepted = new Counter('registrations_accepted');
+const registrationsRejected = new Counter('registrations_rejected');
+const emailsVerified = new Counter('emails_verified');
+const logins = new Counter('logins');
+const studyLimitOvershoot = new Gauge('study_limit_overshoot');
+const serverPhaseDuration = new Gauge('server_phase_avg_duration');
+
+/**
+ * Creates the study groups, which are filled up to their registration limit by the scenario.
+ */
+export function setup() {
+  const runId = Date.now().toString(36);
+  const adminPost = createAdminRequest('POST');
+  const studies = [];
+
+  for (let i = 0; i < STUDIES; i++) {
+    const name = `load-test-${runId}-${i}`;
+    const response = adminPost(`/groups`, {
+      name,
+      attributes: { maxAccountsCount: [String(REGISTRATION_LIMIT)] },
+    });
+
+    if (response.status !== 201) {
+      fail(`could not create study group ${name}: ${response.status}`);
+    }
+
+    studies.push(response.headers['Location'].split('/').pop());
+  }
+
+  // metrics are cumulative, so the teardown reports the difference
+  return { runId, studies, metricsBefore: getServerPhases() };
+}
+
+export default (data) => {
+  const study = data.studies[scenario.iterationInTest % data.studies.length];
+  const email = `${data.runId}-${scenario.iterationInTest}@load-test.local`;
+  let registered = false;
+
+  const page = group('registration page', () => {
+    const response = keycloakGet(
+      `/realms/${REALM}/protocol/openid-connect/registrations?client_id=${CLIENT_ID}` +
+        `&redirect_uri=${encodeURIComponent(REDIRECT_URI + '/')}&response_type=code&scope=openid` +
+        `&study=${study}`,
+      'registration page'
+    );
+    registrationPageDuration.add(response.timings.duration);
+    return response;
+  });
+
+  if (!STEPS.includes('register')) {
+    return;
+  }
+
+  group('register', () => {
+    const action = page.html('#kc-register-form').attr('action');
+    const response = http.post(
+      action,
+      {
+        email,
+        username: email,
+        password: PASSWORD,
+        'password-confirm': PASSWORD,
+        'user.attributes.study': study,
+        piaTosConfirm: 'on',
+        piaPolicyConfirm: 'on',
+      },
+      { tags: { name: 'register', type: 'page' } }
+    );
+    registrationSubmitDuration.add(response.timings.duration);
+
+    check(response, {
+      'keycloak:registration answered': (res) => res.status === 200,
+    });
+
+    // a rejected registration renders the form again, e.g. when the study is full
+    registered =
+      response.status === 200 &&
+      response.html('#kc-register-form').size() === 0;
+
+    if (registered) {
+      registrationsAccepted.add(1, { study });
+    } else {
+      registrationsRejected.add(1, { study });
+    }
+  });
+
+  if (!registered || !STEPS.includes('verify')) {
+    return;
+  }
+
+  group('verify email', () => {
+    const started = Date.now();
+    const link = waitForVerificationLink(email);
+    verifyEmailDeliveryDuration.add(Date.now() - started);
+
+    if (!check(link, { 'mail:received verification link': (l) => !!l })) {
+      return;
+    }
+
+    let response = keycloakClick(link);
+    let duration = response.timings.duration;
+
+    // a link opened without the registration's session asks for a confirmation first
+    const actionUri = response.html('a[href*="action-token"]').attr('href');
+    if (response.status === 200 && actionUri) {
+      response = keycloakClick(actionUri);
+      duration += response.timings.duration;
+    }
+
+    verifyEmailClickDuration.add(duration);
+
+    // the info page acknowledges the verification with the username, an already verified link shows none
+    if (
+      check(response, {
+        'keycloak:verified email': (res) =>
+          res.status === 200 &&
+          res.html('#kc-info-message strong').text().trim() !== '',
+      })
+    ) {
+      emailsVerified.add(1, { study });
+    }
+  });
+
+  if (!STEPS.includes('login')) {
+    return;
+  }
+
+  group('login', () => {
+    const response = http.post(
+      `${KEYCLOAK_URL}/realms/${REALM}/protocol/openid-connect/token`,
+      {
+        client_id: CLIENT_ID,
+        grant_type: 'password',
+        scope: 'openid',
+        username: email,
+        password: PASSWORD,
+      },
+      { tags: { name: 'keycloak login', type: 'api' } }
+    );
+    loginDuration.add(response.timings.duration);
+
+    if (
+      check(response, {
+        'keycloak:logged in successfully': (res) =>
+          res.status === 200 && !!res.json('access_token'),
+      })
+    ) {
+      logins.add(1, { study });
+    }
+  });
+
+  sleep(1);
+};
+
+/**
+ * Reports how far the studies were filled beyond their limit and the server side duration
+ * of the registration phases during the run.
+ */
+export function teardown(data) {
+  const adminGet = createAdminRequest('GET');
+
+  data.studies.forEach((study) => {
+    const members = adminGet(
+      `/groups/${study}/members?briefRepresentation=true&first=0&max=${
+        REGISTRATION_LIMIT * 10
+      }`
+    ).json();
+    const overshoot = Math.max(0, members.length - REGISTRATION_LIMIT);
+
+    studyLimitOvershoot.add(overshoot, { study });
+    console.log(
+      `study ${study}: ${members.length} of ${REGISTRATION_LIMIT} members, overshoot ${overshoot}`
+    );
+  });
+
+  const metricsAfter = getServerPhases();
+  Object.keys(metricsAfter).forEach((phase) => {
+    const before = data.metricsBefore[phase] || { sum: 0, count: 0 };
+    const count = metricsAfter[phase].count - before.count;
+
+    if (count > 0) {
+      const average = (metricsAfter[phase].sum - before.sum) / count;
+      serverPhaseDuration.add(average * 1000, { phase });
+      console.log(
+        `server phase ${phase}: ${count} times, avg ${(average * 1000).toFixed(1)}ms`
+      );
+    }
+  });
+}
+
+/**
+ * Sums `pia_study_registration_duration_seconds` of all studies by phase.
+ */
+function getServerPhases() {
+  const response = http.get(`${KEYCLOAK_URL}/realms/${REALM}/metrics`, {
+    tags: { name: 'metrics', type: 'api' },
+  });
+  const phases = {};
+
+  if (response.status !== 200) {
+    console.warn(`could not read metrics: ${response.status}`);
+    return phases;
+  }
+
+  const pattern =
+    /^pia_study_registration_duration_seconds_(sum|count)\{[^}]*phase="([^"]+)"[^}]*\} (\S+)$/gm;
+  let match;
+
+  while ((match = pattern.exec(response.body)) !== null) {
+    const phase = (phases[match[2]] = phases[match[2]] || { sum: 0, count: 0 });
+    phase[match[1]] += parseFloat(match[3]);
+  }
+
+  return phases;
+}
+
+/**
+ * Polls the mail sink for the verification email and returns its action token link.
+ */
+function waitForVerificationLink(email) {
+  for (let attempt = 0; attempt < 30; attempt++) {
+    const response = http.get(
+      `${MAILHOG_URL}/api/v2/search?kind=to&query=${encodeURIComponent(email)}`,
+      { tags: { name: 'mail sink', type: 'mail' } }
+    );
+    const items = response.status === 200 ? response.json('items') : [];
+
+    if (items && items.length > 0) {
+      // the body is quoted printable encoded HTML
+      const body = items[0].Content.Body.replace(/=\r?\n/g, '')
+        .replace(/=3D/g, '=')
+        .replace(/&amp;/g, '&');
+      const link = body.match(/https?:\/\/[^"'\s<>]*action-token\?[^"'\s<>]*/);
+
+      return link ? link[0] : null;
+    }
+
+    sleep(0.5);
+  }
+
+  return null;
+}
+
+/**
+ * Follows redirects within Keycloak only, the web app is not part of the local stack.
+ */
+function keycloakClick(url) {
+  let response = http.get(url, {
+    redirects: 0,
+    tags: { name: 'verify email link', type: 'page' },
+  });
+
+  while (
+    response.status === 302 &&
+    response.headers['Location'].startsWith(KEYCLOAK_URL)
+  ) {
+    response = http.get(response.headers['Location'], {
+      redirects: 0,
+      tags: { name: 'verify email link', type: 'page' },
+    });
+  }
+
+  return response;
+}
+
+function keycloakGet(path, name) {
+  const response = http.get(KEYCLOAK_URL + path, {
+    headers: { 'Accept-Language': 'de,en-US;q=0.7,en;q=0.3' },
+    tags: { name, type: 'page' },
+  });
+
+  check(response, {
+    [`page:${name}`]: (res) => res.status === 200,
+  });
+
+  return response;
+}
+
+function createAdminRequest(method) {
+  const token = http
+    .post(
+      `${KEYCLOAK_URL}/realms/master/protocol/openid-connect/token`,
+      {
+        client_id: 'admin-cli',
+        grant_type: 'password',
+        username: __ENV.ADMIN_USER || 'admin',
+        password: __ENV.ADMIN_PASSWORD || 'admin',
+      },
+      { tags: { name: 'admin login', type: 'api' } }
+    )
+    .json('access_token');
+
+  if (!token) {
+    exec.test.abort('could not log in to the admin API');
+  }
+
+  return (path, body) =>
+    http.request(
+      method,
+      `${KEYCLOAK_URL}/admin/realms/${REALM}${path}`,
+      body ? JSON.stringify(body) : null,
+      {
+        headers: {
+          Authorization: `Bearer ${token}`,
+          'Content-Type': 'application/json',
+        },
+        tags: { name: 'admin', type: 'api' },
+      }
+    );
+}
@@ -0,0 +1,75 @@
+#!/bin/bash
+
+#
+# SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+#
+# SPDX-License-Identifier: AGPL-3.0-or-later
+#
+
+#
+# Counts the database queries of each step of scenario 03 per registration.
+#
+# k6 cannot read pg_stat_statements itself, so the scenario runs once per step with STEPS limited to the steps
+# up to it. The statistics are reset before and snapshot after each run. The queries of a step are the difference
+# to the run of the previous step, the queries of setup and teardown are the same in every run and cancel out.
+# Only the first step, the registration page, contains them.
+#
+# ./util/db-query-counts-by-step.sh [iterations]
+#
+
+ITERATIONS=${1:-50}
+COMPOSE="docker compose -f docker-compose.study-registration.yml"
+SCENARIO_STEPS=("page" "register" "register,verify" "register,verify,login")
+SNAPSHOTS=$(mktemp -d)
+
+cd "$(dirname "$0")/.." || exit 1
+
+psql() {
+    $COMPOSE exec -T databaseauthserver psql -U authserver -At -F ',' "$@"
+}
+
+psql -c "CREATE EXTENSION IF NOT EXISTS pg_stat_statements" > /dev/null || exit 1
+
+for i in "${!SCENARIO_STEPS[@]}"
+do
+    psql -c "SELECT pg_stat_statements_reset();" > /dev/null
+
+    # every registration gets a slot, so no step is skipped because a study is full
+    STEPS=${SCENARIO_STEPS[$i]} REGISTRATION_LIMIT=$ITERATIONS \
+        k6 run --quiet --vus 5 --iterations "$ITERATIONS" ./scenarios/03_study-registration.js > /dev/null || exit 1
+
+    psql > "$SNAPSHOTS/$i.csv" <<'SQL'
+SELECT coalesce(substring(query FROM '(?:FROM|INTO|UPDATE)\s+([a-z_]+)'), 'other'), sum(calls)
+FROM pg_stat_statements
+JOIN pg_database ON pg_database.oid = dbid
+WHERE datname = current_database()
+GROUP BY 1;
+SQL
+done
+
+echo "step,table,queries per registration"
+
+for i in "${!SCENARIO_STEPS[@]}"
+do
+    step=${SCENARIO_STEPS[$i]##*,}
+    previous=/dev/null
+
+    if [ "$i" -gt 0 ]
+    then
+        previous="$SNAPSHOTS/$((i - 1)).csv"
+    fi
+
+    awk -F ',' -v step="$step" -v iterations="$ITERATIONS" '
+        FILENAME == ARGV[1] { before[$1] = $2; next }
+        { after[$1] = $2 }
+        END {
+            for (table in after) {
+                queries = (after[table] - before[table]) / iterations
+                total += queries
+                if (queries != 0) printf "%s,%s,%.1f\n", step, table, queries
+            }
+            printf "%s,total,%.1f\n", step, total
+        }' "$previous" "$SNAPSHOTS/$i.csv"
+done
+
+rm -r "$SNAPSHOTS"
@@ -0,0 +1,34 @@
+--
+-- SPDX-FileCopyrightText: 2024 Helmholtz-Zentrum für Infektionsforschung GmbH (HZI) <PiaPost@helmholtz-hzi.de>
+--
+-- SPDX-License-Identifier: AGPL-3.0-or-later
+--
+
+--
+-- Statements executed by Keycloak since the last `SELECT pg_stat_statements_reset();`,
+-- used by scenario 03 to count the database queries of the registration flow steps.
+--
+
+CREATE EXTENSION IF NOT EXISTS pg_stat_statements;
+
+\echo 'queries by table'
+SELECT substring(query FROM '(?:FROM|INTO|UPDATE)\s+([a-z_]+)') AS "table",
+       sum(calls) AS calls,
+       sum(rows) AS rows,
+       round(sum(total_time)::numeric, 1) AS total_ms
+FROM pg_stat_statements
+JOIN pg_database ON pg_database.oid = dbid
+WHERE datname = current_database()
+GROUP BY 1
+ORDER BY calls DESC;
+
+\echo 'most frequent statements'
+SELECT calls,
+       rows,
+       round(mean_time::numeric, 2) AS mean_ms,
+       left(regexp_replace(query, '\s+', ' ', 'g'), 160) AS query
+FROM pg_stat_statements
+JOIN pg_database ON pg_database.oid = dbid
+WHERE datname = current_database()
+ORDER BY calls DESC
+LIMIT 30;